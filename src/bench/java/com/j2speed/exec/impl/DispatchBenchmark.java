@@ -0,0 +1,166 @@
+package com.j2speed.exec.impl;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of dispatching a call on a compiled proxy to its
+ * {@link MethodInvocationHandler}, through the {@link MultiMethodInvocationHanlder}, against the
+ * direct call of an {@link Implementation} as generated at build time.
+ * <p>
+ * The handlers do not start any process, so only the dispatch is measured.
+ * 
+ * @author Alessandro Nistico
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class DispatchBenchmark {
+
+   public interface Commands {
+      Object noArgs();
+
+      Object oneArg(String value);
+
+      Object twoArgs(String first, String second);
+   }
+
+   private Commands commands;
+   private Commands implementation;
+
+   @Setup
+   public void setup() {
+      MultiMethodInvocationHanlder handler = new MultiMethodInvocationHanlder();
+      Map<Method, MethodInvocationHandler> handlers =
+               new HashMap<Method, MethodInvocationHandler>();
+      for (Method method : Commands.class.getMethods()) {
+         MethodInvocationHandler methodHandler = new ConstantHandler(method);
+         handler.add(method, methodHandler);
+         handlers.put(method, methodHandler);
+      }
+      commands = Commands.class.cast(Proxy.newProxyInstance(Commands.class.getClassLoader(),
+               new Class[] { Commands.class }, handler));
+      implementation = new CommandsImplementation(handlers);
+   }
+
+   @Benchmark
+   public Object noArgs() {
+      return commands.noArgs();
+   }
+
+   @Benchmark
+   public Object oneArg() {
+      return commands.oneArg("value");
+   }
+
+   @Benchmark
+   public Object twoArgs() {
+      return commands.twoArgs("first", "second");
+   }
+
+   @Benchmark
+   public Object noArgsImplementation() {
+      return implementation.noArgs();
+   }
+
+   @Benchmark
+   public Object oneArgImplementation() {
+      return implementation.oneArg("value");
+   }
+
+   @Benchmark
+   public Object twoArgsImplementation() {
+      return implementation.twoArgs("first", "second");
+   }
+
+   /**
+    * As generated by {@link com.j2speed.exec.processor.ExecProcessor}, which does not run on the
+    * benchmarks.
+    */
+   private static final class CommandsImplementation extends Implementation implements Commands {
+      private final MethodInvocationHandler noArgs;
+      private final MethodInvocationHandler oneArg;
+      private final MethodInvocationHandler twoArgs;
+
+      CommandsImplementation(Map<Method, MethodInvocationHandler> handlers) {
+         super(handlers);
+         noArgs = handler(Commands.class, "noArgs");
+         oneArg = handler(Commands.class, "oneArg", String.class);
+         twoArgs = handler(Commands.class, "twoArgs", String.class, String.class);
+      }
+
+      @Override
+      public Object noArgs() {
+         try {
+            return noArgs.invoke(this, null, null);
+         } catch (RuntimeException e) {
+            throw e;
+         } catch (Error e) {
+            throw e;
+         } catch (Throwable th) {
+            throw new UndeclaredThrowableException(th);
+         }
+      }
+
+      @Override
+      public Object oneArg(String value) {
+         try {
+            return oneArg.invoke(this, null, new Object[] { value });
+         } catch (RuntimeException e) {
+            throw e;
+         } catch (Error e) {
+            throw e;
+         } catch (Throwable th) {
+            throw new UndeclaredThrowableException(th);
+         }
+      }
+
+      @Override
+      public Object twoArgs(String first, String second) {
+         try {
+            return twoArgs.invoke(this, null, new Object[] { first, second });
+         } catch (RuntimeException e) {
+            throw e;
+         } catch (Error e) {
+            throw e;
+         } catch (Throwable th) {
+            throw new UndeclaredThrowableException(th);
+         }
+      }
+   }
+
+   private static final class ConstantHandler extends MethodInvocationHandler {
+      private static final Object RESULT = new Object();
+
+      ConstantHandler(Method method) {
+         super(method, 0, 0, null, null, new CommandTemplate(Collections.singletonList("cmd"),
+                  Collections.<Argument> emptyList(), null, null, false), Controller
+                  .processor(false), null, OutputBuffers.DEFAULT, null, null, null, null, null);
+      }
+
+      @Override
+      Object execute(Object[] args) throws Throwable {
+         return RESULT;
+      }
+   }
+}
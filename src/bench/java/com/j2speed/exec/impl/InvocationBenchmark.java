@@ -0,0 +1,57 @@
+package com.j2speed.exec.impl;
+
+import static com.j2speed.exec.impl.Compiler.using;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.j2speed.exec.Run;
+
+/**
+ * Measures the end to end latency of an invocation, from the proxy call to the result, using a
+ * command that does nothing, so the cost is dominated by the framework and the process spawning.
+ * 
+ * @author Alessandro Nistico
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class InvocationBenchmark {
+
+   public interface True {
+      @Run("/bin/true")
+      void run();
+
+      @Run("/bin/true {?}")
+      void run(String argument);
+   }
+
+   private True command;
+
+   @Setup
+   public void setup() {
+      command = using(True.class).compile();
+   }
+
+   @Benchmark
+   public void noArgs() {
+      command.run();
+   }
+
+   @Benchmark
+   public void oneArg() {
+      command.run("argument");
+   }
+}
@@ -0,0 +1,117 @@
+package com.j2speed.exec.impl;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.j2speed.exec.Processor;
+
+/**
+ * Measures the cost per line of a {@link LineProcessor}, feeding it the output in chunks of the
+ * same size used by the {@link OutputPump}.
+ * <p>
+ * Run with the {@code gc} profiler to get the bytes allocated per line ({@code gc.alloc.rate.norm}).
+ * 
+ * @author Alessandro Nistico
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class LineProcessorBenchmark {
+
+   static final int LINES = 1024;
+
+   static final int CHUNK = 4096;
+
+   private static final String SEPARATOR = System.getProperty("line.separator");
+
+   @Param({ "16", "128" })
+   public int lineLength;
+
+   @Param({ "US-ASCII", "UTF-8" })
+   public String charset;
+
+   private byte[] output;
+
+   private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+
+   private LineProcessor processor;
+
+   private LineProcessor sequenceProcessor;
+
+   @Setup
+   public void setup(final Blackhole blackhole) {
+      final Charset charset = Charset.forName(this.charset);
+      output = lines(LINES, lineLength, SEPARATOR).getBytes(charset);
+      processor = new LineProcessor(charset, SEPARATOR) {
+         @Override
+         protected void process(String line) {
+            blackhole.consume(line);
+         }
+      };
+      sequenceProcessor = new LineProcessor(charset, SEPARATOR) {
+         @Override
+         protected void process(String line) {
+            throw new AssertionError();
+         }
+
+         @Override
+         protected void process(CharSequence line) {
+            blackhole.consume(line.length());
+         }
+      };
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(LINES)
+   public void process() {
+      feed(output, buffer, processor);
+   }
+
+   /**
+    * Processes the lines as a reused {@link CharSequence}, without creating a {@link String}.
+    */
+   @Benchmark
+   @OperationsPerInvocation(LINES)
+   public void processSequence() {
+      feed(output, buffer, sequenceProcessor);
+   }
+
+   static String lines(int count, int length, String separator) {
+      final StringBuilder lines = new StringBuilder(count * (length + separator.length()));
+      for (int i = 0; i < count; i++) {
+         for (int c = 0; c < length; c++) {
+            lines.append((char) ('a' + (c % 26)));
+         }
+         lines.append(separator);
+      }
+      return lines.toString();
+   }
+
+   static void feed(byte[] output, ByteBuffer buffer, Processor processor) {
+      for (int offset = 0; offset < output.length; offset += CHUNK) {
+         buffer.clear();
+         buffer.put(output, offset, Math.min(CHUNK, output.length - offset));
+         buffer.flip();
+         processor.process(buffer);
+      }
+   }
+}
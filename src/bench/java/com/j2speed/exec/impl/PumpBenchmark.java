@@ -0,0 +1,110 @@
+package com.j2speed.exec.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.j2speed.exec.Processor;
+
+/**
+ * Measures the throughput of {@link OutputPump#pump(InputStream, Processor, OutputBuffers)} for
+ * outputs of different sizes, with fixed 4KB buffers and with adaptive ones.
+ * <p>
+ * The output is produced by an in memory stream, so the cost of the pipe is not included.
+ * 
+ * @author Alessandro Nistico
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PumpBenchmark {
+
+   @Param({ "1024", "1048576", "1073741824" })
+   public long size;
+
+   /**
+    * The buffer size, {@code 0} for adaptive buffers.
+    */
+   @Param({ "4096", "0" })
+   public int bufferSize;
+
+   private final byte[] data = new byte[OutputBuffers.MAX_SIZE];
+
+   private OutputBuffers buffers;
+
+   private Processor processor;
+
+   @Setup
+   public void setup(final Blackhole blackhole) {
+      Arrays.fill(data, (byte) 'x');
+      buffers = new OutputBuffers(bufferSize);
+      processor = new Processor() {
+         @Override
+         public void process(ByteBuffer buffer) {
+            blackhole.consume(buffer.get(buffer.limit() - 1));
+            buffer.position(buffer.limit());
+         }
+
+         @Override
+         public void done() {
+         }
+      };
+   }
+
+   @Benchmark
+   public void pump() throws IOException {
+      OutputPump.pump(new Output(data, size), processor, buffers);
+   }
+
+   /**
+    * Produces the given amount of bytes, repeating the provided data.
+    */
+   private static final class Output extends InputStream {
+      private final byte[] data;
+      private long remaining;
+
+      Output(byte[] data, long size) {
+         this.data = data;
+         this.remaining = size;
+      }
+
+      @Override
+      public int read() {
+         if (remaining == 0) {
+            return -1;
+         }
+         remaining--;
+         return data[0];
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (remaining == 0) {
+            return -1;
+         }
+         final int count = (int) Math.min(Math.min(len, data.length), remaining);
+         System.arraycopy(data, 0, b, off, count);
+         remaining -= count;
+         return count;
+      }
+   }
+}
@@ -0,0 +1,93 @@
+package com.j2speed.exec.impl;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures registering and deregistering a running process with the {@link Controller} from many
+ * threads, against the synchronized set used before.
+ * <p>
+ * No timeout is set, so only the registry is measured.
+ *
+ * @author Alessandro Nistico
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(8)
+public class RegistryBenchmark {
+
+   private static final Collection<Process> synchronizedRunning = new HashSet<Process>();
+
+   private final Process process = new IdleProcess();
+
+   @Benchmark
+   public void controller() {
+      Controller.register(process, 0);
+      Controller.done(process);
+   }
+
+   @Benchmark
+   public void synchronizedSet() {
+      synchronized (synchronizedRunning) {
+         synchronizedRunning.add(process);
+      }
+      synchronized (synchronizedRunning) {
+         synchronizedRunning.remove(process);
+      }
+   }
+
+   /**
+    * A process that is never started, each thread registers its own.
+    */
+   private static final class IdleProcess extends Process {
+      @Override
+      public OutputStream getOutputStream() {
+         return new ByteArrayOutputStream();
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public InputStream getErrorStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public int waitFor() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int exitValue() {
+         throw new IllegalThreadStateException();
+      }
+
+      @Override
+      public void destroy() {
+      }
+   }
+}
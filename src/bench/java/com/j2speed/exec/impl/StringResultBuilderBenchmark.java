@@ -0,0 +1,65 @@
+package com.j2speed.exec.impl;
+
+import static com.j2speed.exec.impl.LineProcessorBenchmark.CHUNK;
+import static com.j2speed.exec.impl.LineProcessorBenchmark.feed;
+import static com.j2speed.exec.impl.LineProcessorBenchmark.lines;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of building a {@link String} result from the output of a command with the
+ * {@link StringResultBuilder}.
+ * <p>
+ * Run with the {@code gc} profiler to get the bytes allocated per result
+ * ({@code gc.alloc.rate.norm}).
+ * 
+ * @author Alessandro Nistico
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class StringResultBuilderBenchmark {
+
+   @Param({ "1024", "65536", "1048576" })
+   public int size;
+
+   @Param({ "US-ASCII", "UTF-8" })
+   public String charset;
+
+   private Charset decoder;
+
+   private byte[] output;
+
+   private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+
+   @Setup
+   public void setup() {
+      decoder = Charset.forName(charset);
+      output = lines(size / 64, 63, "\n").getBytes(decoder);
+   }
+
+   @Benchmark
+   public String build() {
+      final StringResultBuilder builder = new StringResultBuilder(decoder);
+      feed(output, buffer, builder);
+      builder.done();
+      return builder.build();
+   }
+}
@@ -0,0 +1,86 @@
+package com.j2speed.exec.impl;
+
+import static com.j2speed.exec.impl.Compiler.using;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.j2speed.exec.Run;
+
+/**
+ * Starts many concurrent asynchronous invocations and reports, as a JSON object, the peak number
+ * of threads, the peak resident memory and the throughput.
+ * <p>
+ * Usage: {@code ThreadScaling <platform|virtual> [invocations] [seconds]}, the defaults are 10000
+ * invocations of a command sleeping for 1 second. Each run should be in a new JVM, so the peaks
+ * are not shared between the modes.
+ * 
+ * @author Alessandro Nistico
+ */
+public class ThreadScaling {
+
+   public interface Sleep {
+      @Run("/bin/sleep {?}")
+      CompletableFuture<Void> sleep(String seconds);
+   }
+
+   public static void main(String[] args) throws Exception {
+      final boolean virtual = "virtual".equals(args[0]);
+      final int invocations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+      final String seconds = args.length > 2 ? args[2] : "1";
+
+      final Sleep sleep = using(Sleep.class).virtualThreads(virtual).compile();
+
+      final List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>(
+               invocations);
+      int failures = 0;
+      final long start = System.nanoTime();
+      for (int i = 0; i < invocations; i++) {
+         results.add(sleep.sleep(seconds));
+      }
+      for (CompletableFuture<Void> result : results) {
+         try {
+            result.get();
+         } catch (Exception e) {
+            failures++;
+         }
+      }
+      final long elapsed = System.nanoTime() - start;
+
+      System.out.println("{\"mode\":\"" + (virtual ? "virtual" : "platform")
+               + "\",\"javaVersion\":\"" + System.getProperty("java.version")
+               + "\",\"invocations\":" + invocations + ",\"failures\":" + failures
+               + ",\"elapsedMillis\":" + (elapsed / 1000000) + ",\"invocationsPerSecond\":"
+               + (invocations * 1000000000L / elapsed) + ",\"peakThreads\":"
+               + ManagementFactory.getThreadMXBean().getPeakThreadCount()
+               + ",\"peakResidentKB\":" + peakResident() + "}");
+   }
+
+   /**
+    * @return the peak resident set size in KB, or -1 if not available on this platform.
+    */
+   private static long peakResident() throws IOException {
+      final File status = new File("/proc/self/status");
+      if (!status.canRead()) {
+         return -1;
+      }
+      final BufferedReader reader = new BufferedReader(new FileReader(status));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.startsWith("VmHWM:")) {
+               return Long.parseLong(line.substring(6).replace("kB", "").trim());
+            }
+         }
+         return -1;
+      } finally {
+         reader.close();
+      }
+   }
+}
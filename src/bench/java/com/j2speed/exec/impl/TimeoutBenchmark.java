@@ -0,0 +1,120 @@
+package com.j2speed.exec.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures scheduling and cancelling the timeout of a command that completes in time, with the
+ * {@link TimerWheel} and with a single thread {@link ScheduledExecutorService}, as used before.
+ * <p>
+ * The timeouts are long, so none of them fires and the cancelled ones pile up in the queue of the
+ * executor, as with many short commands.
+ *
+ * @author Alessandro Nistico
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(4)
+public class TimeoutBenchmark {
+
+   /**
+    * The timeout, in milliseconds.
+    */
+   @Param({ "60000" })
+   public long timeout;
+
+   private final Process process = new IdleProcess();
+
+   private TimerWheel wheel;
+
+   private ScheduledExecutorService scheduler;
+
+   private Runnable task;
+
+   @Setup
+   public void setup() {
+      wheel = new TimerWheel(TimerWheel.DEFAULT_TICK, 512, new NamedFactory("bench-wheel"));
+      scheduler = Executors.newSingleThreadScheduledExecutor(new NamedFactory("bench-scheduler"));
+      task = new Runnable() {
+         @Override
+         public void run() {
+         }
+      };
+   }
+
+   @TearDown
+   public void tearDown() {
+      scheduler.shutdownNow();
+   }
+
+   @Benchmark
+   public void wheel() {
+      wheel.schedule(process, timeout, null).cancel();
+   }
+
+   @Benchmark
+   public void scheduler() {
+      final ScheduledFuture<?> future = scheduler.schedule(task, timeout, MILLISECONDS);
+      future.cancel(true);
+   }
+
+   /**
+    * A process that never terminates, which is never killed either as the timeouts do not fire.
+    */
+   private static final class IdleProcess extends Process {
+      @Override
+      public OutputStream getOutputStream() {
+         return new ByteArrayOutputStream();
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public InputStream getErrorStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public int waitFor() {
+         throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int exitValue() {
+         throw new IllegalThreadStateException();
+      }
+
+      @Override
+      public void destroy() {
+      }
+   }
+}
@@ -0,0 +1,26 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Used to set the size of the buffers used to read the output of a command. This can be applied
+ * globally on a type and/or specifically on a method.
+ * <p>
+ * By default the size adapts to the output of each method, from 4KB up to 1MB. An explicit size is
+ * rounded up to a power of two within the same bounds.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface BufferSize {
+   /**
+    * The size of the buffers in bytes, {@code 0} to adapt it to the output.
+    */
+   int value();
+}
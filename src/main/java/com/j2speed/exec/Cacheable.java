@@ -0,0 +1,38 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a command as a pure function of its arguments, so its results are kept in memory and the
+ * command is not run again for the same command line, working directory and {@link Env}. Applied
+ * on a type, each method of the type has its own cache.
+ * <p>
+ * The least recently used results are evicted beyond the maximum size. The cached results are
+ * shared by the invocations, so they should be immutable. Timeouts, rejections and interruptions
+ * are never cached.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface Cacheable {
+   /**
+    * The maximum number of cached results.
+    */
+   int size() default 1024;
+
+   /**
+    * The time, in milliseconds, a result is cached, {@code 0} to cache it until evicted.
+    */
+   long ttl() default 0;
+
+   /**
+    * The time, in milliseconds, a failure is cached, {@code 0} to not cache failures.
+    */
+   long failureTtl() default 0;
+}
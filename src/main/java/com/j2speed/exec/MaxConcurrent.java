@@ -0,0 +1,39 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Used to bound the number of invocations that run at the same time, an invocation running a
+ * pipeline counts once whatever the number of its processes. Applied on a type, the bound is shared
+ * by all the methods of the type, applied on a method it bounds that method only, and both can be
+ * used together.
+ * <p>
+ * The invocations that cannot start wait in a queue, ordered by their {@link Priority} and then by
+ * arrival, and fail with a {@link RejectedException} if the queue is full or they wait too long. The
+ * methods returning a future return it at once, the future fails if the invocation is rejected.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface MaxConcurrent {
+   /**
+    * The maximum number of invocations running at the same time.
+    */
+   int value();
+
+   /**
+    * The maximum number of invocations waiting to start.
+    */
+   int queue() default Integer.MAX_VALUE;
+
+   /**
+    * The maximum time, in milliseconds, an invocation waits to start, {@code 0} to wait forever.
+    */
+   long maxWait() default 0;
+}
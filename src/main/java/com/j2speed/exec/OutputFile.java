@@ -0,0 +1,27 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Used on a {@link java.io.File} or {@link java.nio.file.Path} parameter to redirect the standard
+ * output of the command to that file, so the output is written by the command directly, without
+ * passing through the JVM.
+ * <p>
+ * The method must return {@code void}, {@link java.io.File} or {@link java.nio.file.Path}, in
+ * which case the file is returned once the command terminates normally. A relative file is
+ * resolved against the current directory of the JVM, not the working directory of the command.
+ *
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ PARAMETER })
+public @interface OutputFile {
+   /**
+    * Whether the output is appended to the file rather than replacing its content.
+    */
+   boolean append() default false;
+}
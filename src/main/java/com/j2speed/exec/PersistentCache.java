@@ -0,0 +1,41 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a command as a pure function of its arguments, so its output is kept on disk and the
+ * command is not run again for the same command line, working directory and {@link Env}, even by
+ * other JVMs or after a restart. Applied on a type, it applies to all the methods of the type.
+ * <p>
+ * The outputs are kept in a directory shared by any number of methods and JVMs of the host, and the
+ * least recently used ones are evicted beyond the maximum size. Only the outputs of the commands
+ * that succeeded are kept. It can be used together with {@link Cacheable}, which is looked up
+ * first.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface PersistentCache {
+   /**
+    * The directory of the cache.
+    */
+   String value();
+
+   /**
+    * The maximum size of the outputs kept in the directory, in bytes.
+    */
+   long maxSize() default 256L * 1024 * 1024;
+
+   /**
+    * Whether the last modification and the size of the {@link java.io.File} and
+    * {@link java.nio.file.Path} parameters are part of the key, so the output is not reused once
+    * the input files change.
+    */
+   boolean stamps() default true;
+}
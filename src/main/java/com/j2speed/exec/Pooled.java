@@ -0,0 +1,51 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Used to run a command as a pool of long lived worker processes, instead of starting a new
+ * process for each invocation. This can be applied globally on a type and/or specifically on a
+ * method.
+ * <p>
+ * The command specified with {@link Run} is used to start the workers, so it cannot contain binding
+ * parameters. Instead, the parameters of an invocation are written to the standard input of a
+ * worker, separated by a space and framed like the response, and the response is read from the
+ * standard output of the worker, framed by the {@link #delimiter()} or, if {@link #lengthPrefix()}
+ * is set, by a 4 bytes big-endian length.
+ * <p>
+ * Workers that terminate or time out are replaced by new ones. The error output of a worker
+ * serving a request is passed to the {@link ErrorFactory error builder} of the method, which
+ * reports the failure if the worker terminates abnormally.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface Pooled {
+   /**
+    * The maximum number of workers, which is also the maximum number of concurrent requests.
+    */
+   int size() default 1;
+
+   /**
+    * The number of requests after which a worker is replaced by a new one, {@code 0} means never.
+    */
+   int maxRequests() default 0;
+
+   /**
+    * The delimiter for requests and responses. An invocation whose request contains the delimiter
+    * is rejected with an {@link IllegalArgumentException}.
+    */
+   String delimiter() default "\n";
+
+   /**
+    * Whether requests and responses are prefixed by their length rather than terminated by the
+    * {@link #delimiter()}.
+    */
+   boolean lengthPrefix() default false;
+}
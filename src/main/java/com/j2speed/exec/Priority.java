@@ -0,0 +1,18 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the {@code int} parameter holding the priority of an invocation waiting to start because
+ * of {@link MaxConcurrent}. Higher values start first, the default is {@code 0}.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ PARAMETER })
+public @interface Priority {
+}
@@ -0,0 +1,15 @@
+package com.j2speed.exec;
+
+/**
+ * Thrown when an invocation cannot start because too many are running or waiting already.
+ * 
+ * @author Alessandro Nistico
+ * @see MaxConcurrent
+ */
+public class RejectedException extends ExecutionException {
+   private static final long serialVersionUID = 1L;
+
+   public RejectedException(String message) {
+      super(message);
+   }
+}
@@ -4,6 +4,9 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 
 /**
  * Allows to build a result by processing of the process output.
+ * <p>
+ * A builder holding resources, such as a file, can implement {@link java.io.Closeable}: it is
+ * closed by the framework when the invocation fails and the result is never built.
  * 
  * @author Alessandro Nistico
  * 
@@ -0,0 +1,28 @@
+package com.j2speed.exec;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Shares a running process among the concurrent invocations with the same command line, working
+ * directory and {@link Env}, so a burst of identical invocations forks a single process. Applied on
+ * a type, it applies to all the methods of the type.
+ * <p>
+ * The result is built once, so all the invocations sharing the process get the same instance of
+ * the result, or of the failure, not a copy. It is meant for immutable results, as {@link String},
+ * the primitive types and {@code void}: a mutable result, as an array or a collection, modified by
+ * an invocation is seen modified by the others.
+ * <p>
+ * Unlike {@link Cacheable}, nothing is kept once the process terminated: an invocation started
+ * afterwards runs the command again.
+ * 
+ * @author Alessandro Nistico
+ */
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface SingleFlight {
+}
@@ -0,0 +1,473 @@
+package com.j2speed.exec.impl;
+
+import java.lang.reflect.Method;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.MaxConcurrent;
+import com.j2speed.exec.RejectedException;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Bounds the number of invocations running at the same time of a compiled method, or of all the
+ * methods of a compiled type, as set with {@link MaxConcurrent}. An invocation running a pipeline
+ * takes a single slot, whatever the number of its processes.
+ * <p>
+ * The invocations that cannot start wait in a queue ordered by priority, higher first, and then by
+ * arrival. A released slot is handed to the first waiter directly, so a new invocation never
+ * overtakes the waiting ones. The asynchronous invocations wait without a thread, their start is
+ * continued by the thread releasing their slot. The statistics of the queue are exposed to size the
+ * limits.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+public final class Admission {
+   @NonNull
+   private final String name;
+   private final int maxConcurrent;
+   private final int maxQueued;
+   private final long maxWait;
+   /**
+    * The admission of the type, acquired after this one.
+    */
+   @CheckForNull
+   private final Admission parent;
+
+   @NonNull
+   private final ReentrantLock lock = new ReentrantLock();
+   @GuardedBy("lock")
+   @NonNull
+   private final PriorityQueue<Waiter> queue = new PriorityQueue<Waiter>();
+   @GuardedBy("lock")
+   private int inFlight;
+   @GuardedBy("lock")
+   private long arrivals;
+   @GuardedBy("lock")
+   private int maxQueueDepth;
+   @GuardedBy("lock")
+   private long admitted;
+   @GuardedBy("lock")
+   private long rejected;
+   @GuardedBy("lock")
+   private long waited;
+   @GuardedBy("lock")
+   private long totalWait;
+   @GuardedBy("lock")
+   private long longestWait;
+
+   /**
+    * @param name
+    *           the name of the method or type, used in the messages.
+    * @param maxConcurrent
+    *           the maximum number of processes running at the same time.
+    * @param maxQueued
+    *           the maximum number of invocations waiting to start.
+    * @param maxWait
+    *           the maximum time, in milliseconds, an invocation waits, {@code 0} to wait forever.
+    * @param parent
+    *           the admission to acquire after this one, if any.
+    */
+   Admission(@NonNull String name, int maxConcurrent, int maxQueued, long maxWait,
+            @CheckForNull Admission parent) {
+      if (maxConcurrent <= 0) {
+         throw new IllegalArgumentException("Max concurrent processes must be positive");
+      }
+      if (maxQueued < 0 || maxWait < 0) {
+         throw new IllegalArgumentException("Negative max queued invocations or max wait");
+      }
+      this.name = name;
+      this.maxConcurrent = maxConcurrent;
+      this.maxQueued = maxQueued;
+      this.maxWait = maxWait;
+      this.parent = parent;
+   }
+
+   /**
+    * Gets the admission of a method of a compiled proxy.
+    *
+    * @param proxy
+    *           the compiled proxy.
+    * @param method
+    *           the method.
+    * @return the admission of the method, which is the one of its type if only the type is bounded,
+    *         {@code null} if the method is not bounded.
+    */
+   @CheckForNull
+   public static Admission of(@NonNull Object proxy, @NonNull Method method) {
+      final MethodInvocationHandler handler = Implementation.handlerOf(proxy, method);
+      return handler != null ? handler.admission() : null;
+   }
+
+   /**
+    * @return the name of the bounded method or type.
+    */
+   @NonNull
+   public String name() {
+      return name;
+   }
+
+   /**
+    * @return the admission of the type of a bounded method, if also bounded.
+    */
+   @CheckForNull
+   public Admission parent() {
+      return parent;
+   }
+
+   /**
+    * @return the maximum number of processes running at the same time.
+    */
+   public int maxConcurrent() {
+      return maxConcurrent;
+   }
+
+   /**
+    * @return the number of invocations running.
+    */
+   public int inFlight() {
+      lock.lock();
+      try {
+         return inFlight;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of invocations waiting to start.
+    */
+   public int queueDepth() {
+      lock.lock();
+      try {
+         return queue.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the highest number of invocations that waited to start at the same time.
+    */
+   public int maxQueueDepth() {
+      lock.lock();
+      try {
+         return maxQueueDepth;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of invocations started.
+    */
+   public long admitted() {
+      lock.lock();
+      try {
+         return admitted;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of invocations rejected, because the queue was full or they waited too
+    *         long.
+    */
+   public long rejected() {
+      lock.lock();
+      try {
+         return rejected;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the average time, in nanoseconds, waited by the invocations that had to wait.
+    */
+   public long averageWaitNanos() {
+      lock.lock();
+      try {
+         return waited == 0 ? 0 : totalWait / waited;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the longest time, in nanoseconds, waited by an invocation.
+    */
+   public long maxWaitNanos() {
+      lock.lock();
+      try {
+         return longestWait;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits for the invocation to be allowed to start, which must be followed by a
+    * {@link #release()} once the invocation completes.
+    *
+    * @param priority
+    *           the priority of the invocation, higher first.
+    * @throws RejectedException
+    *            if the queue is full or the invocation waited too long.
+    * @throws InterruptedException
+    *            if the thread is interrupted while waiting.
+    */
+   void acquire(int priority) throws InterruptedException {
+      acquireLocal(priority);
+      if (parent != null) {
+         try {
+            parent.acquire(priority);
+         } catch (InterruptedException e) {
+            release(false);
+            throw e;
+         } catch (RuntimeException e) {
+            release(false);
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * Queues the invocation to be allowed to start, without waiting, which must be followed by a
+    * {@link #release()} once the invocation completes.
+    *
+    * @param priority
+    *           the priority of the invocation, higher first.
+    * @return a future completed once the invocation is allowed to start, by the thread releasing its
+    *         slot if it had to wait, or exceptionally with a {@link RejectedException} if the queue
+    *         is full or the invocation waited too long.
+    */
+   @NonNull
+   CompletableFuture<Void> acquireAsync(final int priority) {
+      final CompletableFuture<Void> local = acquireLocalAsync(priority);
+      if (parent == null) {
+         return local;
+      }
+      return local.thenCompose(new Function<Void, CompletionStage<Void>>() {
+         @Override
+         public CompletionStage<Void> apply(Void admitted) {
+            return parent.acquireAsync(priority).whenComplete(new BiConsumer<Void, Throwable>() {
+               @Override
+               public void accept(Void admitted, Throwable failure) {
+                  if (failure != null) {
+                     release(false);
+                  }
+               }
+            });
+         }
+      });
+   }
+
+   /**
+    * Allows the next waiting invocation to start.
+    */
+   void release() {
+      release(true);
+   }
+
+   private void release(boolean withParent) {
+      if (withParent && parent != null) {
+         parent.release();
+      }
+      final Waiter next;
+      lock.lock();
+      try {
+         inFlight--;
+         next = admitNext();
+      } finally {
+         lock.unlock();
+      }
+      if (next != null) {
+         next.future.complete(null);
+      }
+   }
+
+   @NonNull
+   private CompletableFuture<Void> acquireLocalAsync(int priority) {
+      final Waiter waiter;
+      lock.lock();
+      try {
+         if (inFlight < maxConcurrent && queue.isEmpty()) {
+            inFlight++;
+            admitted++;
+            return CompletableFuture.completedFuture(null);
+         }
+         if (queue.size() >= maxQueued) {
+            rejected++;
+            return CompletableFuture.failedFuture(new RejectedException(name + " has "
+                     + queue.size() + " invocations waiting already"));
+         }
+         waiter = new Waiter(priority, arrivals++, null);
+         queue.add(waiter);
+         maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+      } finally {
+         lock.unlock();
+      }
+      if (maxWait > 0) {
+         CompletableFuture.delayedExecutor(maxWait, TimeUnit.MILLISECONDS).execute(
+                  new Runnable() {
+                     @Override
+                     public void run() {
+                        expire(waiter);
+                     }
+                  });
+      }
+      return waiter.future;
+   }
+
+   /**
+    * Rejects an asynchronous invocation still waiting once its maximum wait elapsed.
+    */
+   private void expire(@NonNull Waiter waiter) {
+      lock.lock();
+      try {
+         if (!queue.remove(waiter)) {
+            return;
+         }
+         rejected++;
+      } finally {
+         lock.unlock();
+      }
+      waiter.future.completeExceptionally(new RejectedException(name + " waited more than "
+               + maxWait + "ms"));
+   }
+
+   private void acquireLocal(int priority) throws InterruptedException {
+      Waiter handed = null;
+      lock.lock();
+      try {
+         if (inFlight < maxConcurrent && queue.isEmpty()) {
+            inFlight++;
+            admitted++;
+            return;
+         }
+         if (queue.size() >= maxQueued) {
+            rejected++;
+            throw new RejectedException(name + " has " + queue.size()
+                     + " invocations waiting already");
+         }
+         final Waiter waiter = new Waiter(priority, arrivals++, lock.newCondition());
+         queue.add(waiter);
+         maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+         final long start = System.nanoTime();
+         try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait);
+            while (!waiter.admitted) {
+               if (maxWait == 0) {
+                  waiter.condition.await();
+               } else if (remaining > 0) {
+                  remaining = waiter.condition.awaitNanos(remaining);
+               } else {
+                  queue.remove(waiter);
+                  rejected++;
+                  throw new RejectedException(name + " waited more than " + maxWait + "ms");
+               }
+            }
+         } catch (InterruptedException e) {
+            if (waiter.admitted) {
+               // the slot has been handed over already, so it goes to the next one
+               inFlight--;
+               handed = admitNext();
+            } else {
+               queue.remove(waiter);
+            }
+            throw e;
+         }
+         waited(start);
+      } finally {
+         lock.unlock();
+         if (handed != null) {
+            handed.future.complete(null);
+         }
+      }
+   }
+
+   @GuardedBy("lock")
+   private void waited(long start) {
+      final long wait = System.nanoTime() - start;
+      waited++;
+      totalWait += wait;
+      longestWait = Math.max(longestWait, wait);
+   }
+
+   /**
+    * Hands the slot released to the next waiter, if any.
+    *
+    * @return the asynchronous waiter admitted, whose future is to complete once the lock released,
+    *         {@code null} if none.
+    */
+   @GuardedBy("lock")
+   @CheckForNull
+   private Waiter admitNext() {
+      if (inFlight < maxConcurrent) {
+         final Waiter next = queue.poll();
+         if (next != null) {
+            next.admitted = true;
+            inFlight++;
+            admitted++;
+            if (next.condition != null) {
+               next.condition.signal();
+            } else {
+               waited(next.start);
+               return next;
+            }
+         }
+      }
+      return null;
+   }
+
+   @Override
+   public String toString() {
+      return "Admission[" + name + "]: " + inFlight() + "/" + maxConcurrent + " running, "
+               + queueDepth() + " waiting";
+   }
+
+   private static final class Waiter implements Comparable<Waiter> {
+      final int priority;
+      final long arrival;
+      final long start = System.nanoTime();
+      /**
+       * Signalled when admitted, {@code null} for the asynchronous waiters.
+       */
+      @CheckForNull
+      final Condition condition;
+      /**
+       * Completed when admitted, for the asynchronous waiters.
+       */
+      @NonNull
+      final CompletableFuture<Void> future = new CompletableFuture<Void>();
+      @GuardedBy("Admission.lock")
+      boolean admitted;
+
+      Waiter(int priority, long arrival, @CheckForNull Condition condition) {
+         this.priority = priority;
+         this.arrival = arrival;
+         this.condition = condition;
+      }
+
+      @Override
+      public int compareTo(Waiter other) {
+         if (priority != other.priority) {
+            return priority > other.priority ? -1 : 1;
+         }
+         return arrival < other.arrival ? -1 : (arrival == other.arrival ? 0 : 1);
+      }
+   }
+}
@@ -3,6 +3,8 @@
  */
 package com.j2speed.exec.impl;
 
+import javax.annotation.concurrent.Immutable;
+
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
@@ -10,15 +12,16 @@ import edu.umd.cs.findbugs.annotations.NonNull;
  * 
  * @author alex
  */
+@Immutable
 public final class Argument {
-   private final StringBuilder buffer;
+   @NonNull
+   private final String prefix;
+   @NonNull
    private final String postfix;
-   private final int prefixLength;
    private final int index;
 
    public Argument(String prefix, String postfix, int index) {
-      this.prefixLength = prefix.length();
-      this.buffer = new StringBuilder(prefix.length() + postfix.length() + 16).append(prefix);
+      this.prefix = prefix;
       this.postfix = postfix;
       this.index = index;
    }
@@ -40,11 +43,13 @@ public final class Argument {
     * 
     * @return the string to use in the command line.
     */
+   @NonNull
    public String apply(@NonNull Object value) {
-      try {
-         return buffer.append(value).append(postfix).toString();
-      } finally {
-         buffer.setLength(prefixLength);
+      final String string = value.toString();
+      if (prefix.isEmpty() && postfix.isEmpty()) {
+         return string;
       }
+      return new StringBuilder(prefix.length() + string.length() + postfix.length())
+               .append(prefix).append(string).append(postfix).toString();
    }
 }
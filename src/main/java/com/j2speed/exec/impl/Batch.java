@@ -0,0 +1,350 @@
+package com.j2speed.exec.impl;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.ExecutionException;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Invokes a compiled method for each of a sequence of argument tuples, running a bounded number of
+ * invocations at the same time.
+ * <p>
+ * Exactly {@code parallelism} invocations are in flight as long as there are arguments left: a new
+ * invocation is started as soon as one completes, regardless of the order in which the results
+ * are consumed. The results are returned in the order of the arguments, and the failure of an
+ * invocation is recorded in its {@link Outcome} instead of aborting the batch. If the method is
+ * asynchronous, an invocation is in flight until its future completes.
+ * <p>
+ * The arguments are read lazily, so a batch can run over a sequence that does not fit in memory if
+ * the results are {@link #stream(Iterable) streamed}. The outcomes not consumed yet, because the
+ * consumer is slow or waits for an earlier one, are bounded by a window of {@link #WINDOW} times
+ * the parallelism: once it is full no invocation is started until the consumer takes an outcome.
+ *
+ * @author Alessandro Nistico
+ *
+ * @param <R>
+ *           the result type of the method.
+ */
+@Immutable
+public final class Batch<R> {
+   /**
+    * The number of outcomes, as a multiple of the parallelism, that can be started and not
+    * consumed yet.
+    */
+   public static final int WINDOW = 4;
+
+   @NonNull
+   private final Object proxy;
+   @NonNull
+   private final Method method;
+   @NonNull
+   private final MethodInvocationHandler handler;
+   private final int parallelism;
+   @NonNull
+   private final Executor executor;
+
+   /**
+    * @param proxy
+    *           the compiled proxy.
+    * @param method
+    *           the method of the proxy to invoke.
+    * @param parallelism
+    *           the maximum number of invocations outstanding.
+    */
+   public Batch(@NonNull Object proxy, @NonNull Method method, int parallelism) {
+      this(proxy, method, parallelism, false);
+   }
+
+   /**
+    * @param proxy
+    *           the compiled proxy.
+    * @param method
+    *           the method of the proxy to invoke.
+    * @param parallelism
+    *           the maximum number of invocations outstanding.
+    * @param virtualThreads
+    *           whether to wait for the invocations on virtual threads.
+    */
+   public Batch(@NonNull Object proxy, @NonNull Method method, int parallelism,
+            boolean virtualThreads) {
+      // invoked directly, so the method does not need to be accessible from here
+      final MethodInvocationHandler handler = Implementation.handlerOf(proxy, method);
+      if (handler == null || !method.getDeclaringClass().isInstance(proxy)) {
+         throw new IllegalArgumentException("Method " + method + " not implemented by the proxy");
+      }
+      if (parallelism <= 0) {
+         throw new IllegalArgumentException("Parallelism must be positive");
+      }
+      this.proxy = proxy;
+      this.method = method;
+      this.handler = handler;
+      this.parallelism = parallelism;
+      this.executor = Controller.processor(virtualThreads);
+   }
+
+   /**
+    * @return the maximum number of invocations outstanding.
+    */
+   public int parallelism() {
+      return parallelism;
+   }
+
+   /**
+    * Runs the batch to completion.
+    *
+    * @param arguments
+    *           the arguments of each invocation.
+    * @return the outcomes of the invocations, in the order of the arguments.
+    */
+   @NonNull
+   public List<Outcome<R>> invokeAll(@NonNull Iterable<Object[]> arguments) {
+      final List<Outcome<R>> outcomes = new ArrayList<Outcome<R>>();
+      for (Iterator<Outcome<R>> i = stream(arguments); i.hasNext();) {
+         outcomes.add(i.next());
+      }
+      return outcomes;
+   }
+
+   /**
+    * Starts the batch, returning its outcomes as they become available.
+    * <p>
+    * The iterator blocks until the next outcome, in the order of the arguments, is available. If
+    * the waiting thread is interrupted an {@link ExecutionException} is thrown, but the batch keeps
+    * running.
+    *
+    * @param arguments
+    *           the arguments of each invocation.
+    * @return the outcomes of the invocations, in the order of the arguments.
+    */
+   @NonNull
+   public Iterator<Outcome<R>> stream(@NonNull Iterable<Object[]> arguments) {
+      return new Run(arguments.iterator());
+   }
+
+   /**
+    * The outcome of an invocation of a batch, either a result or a failure.
+    *
+    * @param <R>
+    *           the result type of the method.
+    */
+   @Immutable
+   public static final class Outcome<R> {
+      private final int index;
+      @CheckForNull
+      private final R result;
+      @CheckForNull
+      private final Throwable failure;
+
+      Outcome(int index, @CheckForNull R result, @CheckForNull Throwable failure) {
+         this.index = index;
+         this.result = result;
+         this.failure = failure;
+      }
+
+      /**
+       * @return the position of the arguments of the invocation in the batch.
+       */
+      public int index() {
+         return index;
+      }
+
+      /**
+       * @return whether the invocation succeeded.
+       */
+      public boolean isSuccess() {
+         return failure == null;
+      }
+
+      /**
+       * @return the result of the invocation, {@code null} if it failed.
+       */
+      @CheckForNull
+      public R result() {
+         return result;
+      }
+
+      /**
+       * @return the failure of the invocation, {@code null} if it succeeded.
+       */
+      @CheckForNull
+      public Throwable failure() {
+         return failure;
+      }
+
+      /**
+       * @return the result of the invocation.
+       * @throws ExecutionException
+       *            if the invocation failed, with the failure as cause unless it is an
+       *            {@link ExecutionException} already.
+       */
+      @CheckForNull
+      public R get() {
+         if (failure == null) {
+            return result;
+         }
+         if (failure instanceof ExecutionException) {
+            throw (ExecutionException) failure;
+         }
+         throw new ExecutionException(failure);
+      }
+
+      @Override
+      public String toString() {
+         return "Outcome[" + index + "]: " + (failure == null ? result : failure);
+      }
+   }
+
+   /**
+    * A running batch.
+    */
+   @ThreadSafe
+   private final class Run implements Iterator<Outcome<R>> {
+      @GuardedBy("this")
+      @NonNull
+      private final Iterator<Object[]> arguments;
+      /**
+       * The invocations started and not consumed yet, in the order of the arguments, never more
+       * than the window.
+       */
+      @GuardedBy("this")
+      @NonNull
+      private final ArrayDeque<Slot> pending = new ArrayDeque<Slot>();
+      /**
+       * The number of invocations started and not completed yet.
+       */
+      @GuardedBy("this")
+      private int running;
+      @GuardedBy("this")
+      private int next;
+      @GuardedBy("this")
+      private boolean exhausted;
+
+      Run(@NonNull Iterator<Object[]> arguments) {
+         this.arguments = arguments;
+         synchronized (this) {
+            fill();
+         }
+      }
+
+      @Override
+      public synchronized boolean hasNext() {
+         return !pending.isEmpty();
+      }
+
+      @Override
+      public synchronized Outcome<R> next() {
+         final Slot head = pending.peek();
+         if (head == null) {
+            throw new NoSuchElementException();
+         }
+         try {
+            while (head.outcome == null) {
+               wait();
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException("Interrupted waiting for the batch", e);
+         }
+         pending.poll();
+         fill();
+         return head.outcome;
+      }
+
+      /**
+       * Starts invocations as long as fewer than the parallelism are in flight and the window is
+       * not full.
+       */
+      @GuardedBy("this")
+      private void fill() {
+         while (running < parallelism && pending.size() < parallelism * WINDOW && start()) {
+            // starting the next invocation
+         }
+      }
+
+      /**
+       * Starts the invocation for the next arguments, if any.
+       *
+       * @return whether an invocation has been started.
+       */
+      @GuardedBy("this")
+      private boolean start() {
+         if (exhausted) {
+            return false;
+         }
+         final Slot slot = new Slot(next);
+         final Object[] args;
+         try {
+            if (!arguments.hasNext()) {
+               exhausted = true;
+               return false;
+            }
+            args = arguments.next();
+         } catch (RuntimeException e) {
+            // the batch cannot go on, the failure is reported in place of the missing arguments
+            exhausted = true;
+            slot.outcome = new Outcome<R>(slot.index, null, e);
+            pending.add(slot);
+            return false;
+         }
+         next++;
+         running++;
+         pending.add(slot);
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               complete(slot, invoke(slot.index, args));
+            }
+         });
+         return true;
+      }
+
+      private synchronized void complete(@NonNull Slot slot, @NonNull Outcome<R> outcome) {
+         slot.outcome = outcome;
+         running--;
+         fill();
+         notifyAll();
+      }
+   }
+
+   @NonNull
+   @SuppressWarnings("unchecked")
+   private Outcome<R> invoke(int index, @CheckForNull Object[] args) {
+      try {
+         Object result = handler.invoke(proxy, method, args);
+         if (result instanceof Future) {
+            try {
+               result = ((Future<?>) result).get();
+            } catch (java.util.concurrent.ExecutionException e) {
+               throw e.getCause();
+            }
+         }
+         return new Outcome<R>(index, (R) result, null);
+      } catch (Throwable th) {
+         return new Outcome<R>(index, null, th);
+      }
+   }
+
+   private final class Slot {
+      final int index;
+      @GuardedBy("Run.this")
+      @CheckForNull
+      Outcome<R> outcome;
+
+      Slot(int index) {
+         this.index = index;
+      }
+   }
+}
@@ -0,0 +1,109 @@
+package com.j2speed.exec.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.SingleFlight;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The invocations of a compiled method running a process, as set with {@link SingleFlight}, so the
+ * identical invocations started meanwhile join them rather than starting a process of their own.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+public final class Coalescer {
+   @NonNull
+   private final String name;
+   @NonNull
+   private final ConcurrentMap<ResultCache.Key, CompletableFuture<Object>> flights =
+            new ConcurrentHashMap<ResultCache.Key, CompletableFuture<Object>>();
+   @NonNull
+   private final LongAdder saved = new LongAdder();
+
+   /**
+    * @param name
+    *           the name of the method, used in the messages.
+    */
+   Coalescer(@NonNull String name) {
+      this.name = name;
+   }
+
+   /**
+    * Gets the coalescer of a method of a compiled proxy.
+    *
+    * @param proxy
+    *           the compiled proxy.
+    * @param method
+    *           the method.
+    * @return the coalescer of the method, {@code null} if the invocations are not coalesced.
+    */
+   @CheckForNull
+   public static Coalescer of(@NonNull Object proxy, @NonNull Method method) {
+      final MethodInvocationHandler handler = Implementation.handlerOf(proxy, method);
+      return handler != null ? handler.coalescer() : null;
+   }
+
+   /**
+    * @return the name of the coalesced method.
+    */
+   @NonNull
+   public String name() {
+      return name;
+   }
+
+   /**
+    * @return the number of processes not started, as the invocations joined a running one.
+    */
+   public long saved() {
+      return saved.sum();
+   }
+
+   /**
+    * @return the number of distinct invocations running.
+    */
+   public int inFlight() {
+      return flights.size();
+   }
+
+   /**
+    * Starts an invocation, unless an identical one is running.
+    *
+    * @param key
+    *           the key of the invocation.
+    * @param flight
+    *           the result of the invocation, if started.
+    * @return the result of the running invocation to join, {@code null} if the invocation is to be
+    *         started.
+    */
+   @CheckForNull
+   CompletableFuture<Object> join(@NonNull ResultCache.Key key,
+            @NonNull CompletableFuture<Object> flight) {
+      final CompletableFuture<Object> running = flights.putIfAbsent(key, flight);
+      if (running != null) {
+         saved.increment();
+      }
+      return running;
+   }
+
+   /**
+    * Ends an invocation, before its result is completed, so the invocations started afterwards run
+    * the command again.
+    */
+   void land(@NonNull ResultCache.Key key, @NonNull CompletableFuture<Object> flight) {
+      flights.remove(key, flight);
+   }
+
+   @Override
+   public String toString() {
+      return "Coalescer[" + name + "]: " + inFlight() + " running, " + saved() + " saved";
+   }
+}
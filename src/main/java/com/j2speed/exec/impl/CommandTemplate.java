@@ -0,0 +1,180 @@
+package com.j2speed.exec.impl;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.Immutable;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The parsed form of a command, as produced by the {@link MethodCompiler}.
+ * <p>
+ * A template is never modified after creation, so it can be shared by any number of concurrent
+ * invocations: each of them creates its own {@link ProcessBuilder} through
+ * {@link #newBuilder(List, File, Map)}.
+ * <p>
+ * A command can be a pipeline of more stages, in which case the tokens of all the stages are kept
+ * in sequence and split by {@link #stage(List, int)} once the arguments are bound.
+ *
+ * @author Alessandro Nistico
+ */
+@Immutable
+final class CommandTemplate {
+   @NonNull
+   private final String[] tokens;
+   @NonNull
+   private final List<String> command;
+   @NonNull
+   private final Argument[] arguments;
+   /**
+    * The index of the first token of each stage.
+    */
+   @NonNull
+   private final int[] stages;
+   @CheckForNull
+   private final File directory;
+   @NonNull
+   private final Map<String, String> environment;
+   private final boolean redirectError;
+
+   CommandTemplate(@NonNull List<String> tokens, @NonNull List<Argument> arguments,
+            @CheckForNull File directory, @CheckForNull Map<String, String> environment,
+            boolean redirectError) {
+      this(tokens, arguments, new int[] { 0 }, directory, environment, redirectError);
+   }
+
+   CommandTemplate(@NonNull List<String> tokens, @NonNull List<Argument> arguments,
+            @NonNull int[] stages, @CheckForNull File directory,
+            @CheckForNull Map<String, String> environment, boolean redirectError) {
+      if (stages.length == 0 || stages[0] != 0) {
+         throw new IllegalArgumentException("The first stage must start with the command");
+      }
+      this.tokens = tokens.toArray(new String[tokens.size()]);
+      this.stages = stages.clone();
+      this.command = Collections.unmodifiableList(Arrays.asList(this.tokens.clone()));
+      this.arguments = arguments.toArray(new Argument[arguments.size()]);
+      this.directory = directory;
+      if (environment == null || environment.isEmpty()) {
+         this.environment = Collections.emptyMap();
+      } else {
+         this.environment = Collections.unmodifiableMap(new HashMap<String, String>(environment));
+      }
+      this.redirectError = redirectError;
+   }
+
+   /**
+    * @return a new copy of the command tokens, where the binding parameters can be applied.
+    */
+   @NonNull
+   String[] tokens() {
+      return tokens.clone();
+   }
+
+   /**
+    * @return the unmodifiable command, as parsed.
+    */
+   @NonNull
+   List<String> command() {
+      return command;
+   }
+
+   /**
+    * @return the number of tokens in the command.
+    */
+   int size() {
+      return tokens.length;
+   }
+
+   /**
+    * @return the number of stages of the pipeline, {@code 1} if the command is not a pipeline.
+    */
+   int stagesCount() {
+      return stages.length;
+   }
+
+   /**
+    * Gets the command line of a stage from the command line of the whole pipeline.
+    * 
+    * @param command
+    *           the command line of the pipeline, with the arguments bound.
+    * @param index
+    *           the index of the stage.
+    * @return the command line of the stage. The tokens added for the varargs belong to the stage
+    *         of their placeholder, the last argument, so the later stages are shifted.
+    */
+   @NonNull
+   List<String> stage(@NonNull List<String> command, int index) {
+      final int added = command.size() - tokens.length;
+      final int varargs = added > 0 ? arguments[arguments.length - 1].getIndex() : -1;
+      int start = stages[index];
+      if (added > 0 && start > varargs) {
+         start += added;
+      }
+      int end = command.size();
+      if (index + 1 < stages.length) {
+         end = stages[index + 1];
+         if (added > 0 && end > varargs) {
+            end += added;
+         }
+      }
+      return command.subList(start, end);
+   }
+
+   @NonNull
+   Argument argument(int index) {
+      return arguments[index];
+   }
+
+   int argumentsCount() {
+      return arguments.length;
+   }
+
+   @CheckForNull
+   File directory() {
+      return directory;
+   }
+
+   @NonNull
+   Map<String, String> environment() {
+      return environment;
+   }
+
+   boolean redirectError() {
+      return redirectError;
+   }
+
+   /**
+    * Creates a new builder for a single invocation.
+    *
+    * @param command
+    *           the command line for the invocation.
+    * @param directory
+    *           the working directory for the invocation, if {@code null} the one in the template
+    *           is used.
+    * @param environment
+    *           the environment values for the invocation, they override the ones in the template.
+    * @return the new builder.
+    */
+   @NonNull
+   ProcessBuilder newBuilder(@NonNull List<String> command, @CheckForNull File directory,
+            @CheckForNull Map<String, String> environment) {
+      final ProcessBuilder builder = new ProcessBuilder(command);
+      builder.directory(directory != null ? directory : this.directory);
+      builder.redirectErrorStream(redirectError);
+      // the builder copies the system environment only when it is accessed, so we only access it
+      // when there is something to override
+      if (!this.environment.isEmpty()) {
+         builder.environment().putAll(this.environment);
+      }
+      if (environment != null) {
+         builder.environment().putAll(environment);
+      }
+      return builder;
+   }
+}
@@ -5,12 +5,18 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
 import java.util.Map;
 
+import com.j2speed.exec.BufferSize;
+import com.j2speed.exec.Cacheable;
 import com.j2speed.exec.ErrorBuilderFactory;
 import com.j2speed.exec.ErrorFactory;
+import com.j2speed.exec.MaxConcurrent;
 import com.j2speed.exec.NormalTermination;
+import com.j2speed.exec.PersistentCache;
+import com.j2speed.exec.Pooled;
 import com.j2speed.exec.RedirectError;
 import com.j2speed.exec.ResultBuilderFactory;
 import com.j2speed.exec.ResultFactory;
+import com.j2speed.exec.SingleFlight;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -37,10 +43,31 @@ public abstract class Compiler<T> {
    private ErrorBuilderFactory<?> errorFactory;
    @CheckForNull
    private File commandDirectory;
+   private boolean revalidate;
    @CheckForNull
    private File workingDirectory;
    @CheckForNull
    private Map<String, String> environment;
+   private int poolSize;
+   private int maxRequests;
+   @CheckForNull
+   private String delimiter;
+   private boolean lengthPrefix;
+   private boolean virtualThreads;
+   private boolean multiplexed;
+   private int bufferSize;
+   private int maxConcurrent;
+   private int maxQueued;
+   private long maxWait;
+   private boolean metrics;
+   private int cacheSize;
+   private long cacheTtl;
+   private long cacheFailureTtl;
+   @CheckForNull
+   private File cacheDirectory;
+   private long cacheMaxSize;
+   private boolean cacheStamps;
+   private boolean singleFlight;
 
    @NonNull
    public static <T> TypeCompiler<T> using(@NonNull Class<? extends T> type) {
@@ -101,6 +128,26 @@ public abstract class Compiler<T> {
       return commandDirectory;
    }
 
+   /**
+    * Sets whether the executables of the commands are checked when compiled, and resolved again
+    * if they changed since resolved: modified, removed or, if missing, installed.
+    * <p>
+    * The commands are otherwise compiled once per JVM, so a process fails to start if its
+    * executable is removed after being resolved, even if another one is in the path.
+    * 
+    * @param revalidate
+    * @return
+    */
+   @NonNull
+   public Compiler<T> revalidate(boolean revalidate) {
+      this.revalidate = revalidate;
+      return this;
+   }
+
+   protected boolean revalidate() {
+      return revalidate;
+   }
+
    /**
     * Sets the working directory for the managed command.
     * 
@@ -155,6 +202,330 @@ public abstract class Compiler<T> {
       return errorFactory;
    }
 
+   /**
+    * Runs the command as a pool of long lived worker processes.
+    * 
+    * @param size
+    *           the maximum number of workers, {@code 0} to start a new process for each invocation.
+    * @param maxRequests
+    *           the number of requests after which a worker is replaced, {@code 0} means never.
+    * @return
+    * @see Pooled
+    */
+   @NonNull
+   public Compiler<T> pooled(int size, int maxRequests) {
+      if (size < 0 || maxRequests < 0) {
+         throw new IllegalArgumentException("Negative pool size or max requests");
+      }
+      this.poolSize = size;
+      this.maxRequests = maxRequests;
+      return this;
+   }
+
+   protected int poolSize() {
+      return poolSize;
+   }
+
+   protected int maxRequests() {
+      return maxRequests;
+   }
+
+   /**
+    * Sets the delimiter for the requests and responses of pooled workers.
+    * 
+    * @param delimiter
+    * @return
+    * @see Pooled#delimiter()
+    */
+   @NonNull
+   public Compiler<T> delimiter(@CheckForNull String delimiter) {
+      if (delimiter != null && delimiter.isEmpty()) {
+         throw new IllegalArgumentException("Empty delimiter");
+      }
+      this.delimiter = delimiter;
+      return this;
+   }
+
+   @CheckForNull
+   protected String delimiter() {
+      return delimiter;
+   }
+
+   /**
+    * Sets whether the requests and responses of pooled workers are prefixed by their length.
+    * 
+    * @param lengthPrefix
+    * @return
+    * @see Pooled#lengthPrefix()
+    */
+   @NonNull
+   public Compiler<T> lengthPrefix(boolean lengthPrefix) {
+      this.lengthPrefix = lengthPrefix;
+      return this;
+   }
+
+   protected boolean lengthPrefix() {
+      return lengthPrefix;
+   }
+
+   /**
+    * Sets whether the output of the command, and the asynchronous invocations, are processed on
+    * virtual threads rather than on a pool of platform threads.
+    * <p>
+    * This has no effect if the JVM does not support virtual threads. Virtual threads can also be
+    * enabled for all the compiled methods with the {@code com.j2speed.exec.virtualThreads} system
+    * property.
+    * 
+    * @param virtualThreads
+    * @return
+    */
+   @NonNull
+   public Compiler<T> virtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+   }
+
+   protected boolean virtualThreads() {
+      return virtualThreads;
+   }
+
+   /**
+    * Sets whether the output of the command is pumped by the shared output multiplexer, a few
+    * threads polling the output of all the running commands, rather than by a thread for each
+    * stream.
+    * <p>
+    * This is meant for many, mostly idle, long running commands. The multiplexer can also be enabled
+    * for all the compiled methods with the {@code com.j2speed.exec.multiplexed} system property.
+    * Methods with an {@link com.j2speed.exec.OutputProcessor} parameter are never multiplexed, as
+    * the processor may block.
+    * 
+    * @param multiplexed
+    * @return
+    */
+   @NonNull
+   public Compiler<T> multiplexed(boolean multiplexed) {
+      this.multiplexed = multiplexed;
+      return this;
+   }
+
+   protected boolean multiplexed() {
+      return multiplexed;
+   }
+
+   /**
+    * Sets the size of the buffers used to read the output of the command.
+    * 
+    * @param bufferSize
+    * @return
+    * @see BufferSize#value()
+    */
+   @NonNull
+   public Compiler<T> bufferSize(int bufferSize) {
+      if (bufferSize < 0) {
+         throw new IllegalArgumentException("Negative buffer size");
+      }
+      this.bufferSize = bufferSize;
+      return this;
+   }
+
+   protected int bufferSize() {
+      return bufferSize;
+   }
+
+   /**
+    * Sets whether the metrics of the compiled methods are recorded and exposed through JMX, as
+    * {@code com.j2speed.exec:type=Method} MBeans.
+    * <p>
+    * Recording the metrics neither locks nor allocates, but the MBeans are never unregistered, so
+    * this is meant for proxies compiled once. The metrics can also be enabled for all the compiled
+    * methods with the {@code com.j2speed.exec.metrics} system property.
+    * 
+    * @param metrics
+    * @return
+    */
+   @NonNull
+   public Compiler<T> metrics(boolean metrics) {
+      this.metrics = metrics;
+      return this;
+   }
+
+   protected boolean metrics() {
+      return metrics;
+   }
+
+   /**
+    * Bounds the number of processes running at the same time. Set on a type compiler the bound is
+    * shared by all the methods of the type, set on a method compiler it bounds that method only.
+    * 
+    * @param max
+    *           the maximum number of processes running at the same time, {@code 0} for no bound.
+    * @param maxQueued
+    *           the maximum number of invocations waiting to start.
+    * @param maxWait
+    *           the maximum time, in milliseconds, an invocation waits to start, {@code 0} to wait
+    *           forever.
+    * @return
+    * @see MaxConcurrent
+    */
+   @NonNull
+   public Compiler<T> maxConcurrent(int max, int maxQueued, long maxWait) {
+      if (max < 0 || maxQueued < 0 || maxWait < 0) {
+         throw new IllegalArgumentException("Negative max concurrent, max queued or max wait");
+      }
+      this.maxConcurrent = max;
+      this.maxQueued = maxQueued;
+      this.maxWait = maxWait;
+      return this;
+   }
+
+   protected int maxConcurrent() {
+      return maxConcurrent;
+   }
+
+   protected int maxQueued() {
+      return maxQueued;
+   }
+
+   protected long maxWait() {
+      return maxWait;
+   }
+
+   /**
+    * Caches the results of the command, which must be a pure function of its command line,
+    * working directory and environment. Set on a type compiler each method of the type has its own
+    * cache.
+    * 
+    * @param size
+    *           the maximum number of cached results, {@code 0} to not cache them.
+    * @param ttl
+    *           the time, in milliseconds, a result is cached, {@code 0} to cache it until evicted.
+    * @param failureTtl
+    *           the time, in milliseconds, a failure is cached, {@code 0} to not cache failures.
+    * @return
+    * @see Cacheable
+    */
+   @NonNull
+   public Compiler<T> cacheable(int size, long ttl, long failureTtl) {
+      if (size < 0 || ttl < 0 || failureTtl < 0) {
+         throw new IllegalArgumentException("Negative cache size or time to live");
+      }
+      this.cacheSize = size;
+      this.cacheTtl = ttl;
+      this.cacheFailureTtl = failureTtl;
+      return this;
+   }
+
+   protected int cacheSize() {
+      return cacheSize;
+   }
+
+   protected long cacheTtl() {
+      return cacheTtl;
+   }
+
+   protected long cacheFailureTtl() {
+      return cacheFailureTtl;
+   }
+
+   /**
+    * @param name
+    *           the name of the cached method.
+    * @return the cache set on this compiler, if any.
+    */
+   @CheckForNull
+   ResultCache newCache(@NonNull String name) {
+      if (cacheSize == 0) {
+         return null;
+      }
+      return new ResultCache(name, cacheSize, cacheTtl, cacheFailureTtl);
+   }
+
+   /**
+    * Keeps the output of the command on disk, shared with the other JVMs using the same directory.
+    * The command must be a pure function of its command line, working directory, environment and
+    * input files.
+    * 
+    * @param directory
+    *           the directory of the cache, {@code null} to not keep the output.
+    * @param maxSize
+    *           the maximum size of the outputs kept in the directory, in bytes.
+    * @param stamps
+    *           whether the last modification and the size of the {@link File} and
+    *           {@link java.nio.file.Path} parameters are part of the key.
+    * @return
+    * @see PersistentCache
+    */
+   @NonNull
+   public Compiler<T> persistentCache(@CheckForNull File directory, long maxSize, boolean stamps) {
+      if (directory != null && maxSize <= 0) {
+         throw new IllegalArgumentException("Cache size must be positive");
+      }
+      this.cacheDirectory = directory;
+      this.cacheMaxSize = maxSize;
+      this.cacheStamps = stamps;
+      return this;
+   }
+
+   @CheckForNull
+   protected File cacheDirectory() {
+      return cacheDirectory;
+   }
+
+   protected long cacheMaxSize() {
+      return cacheMaxSize;
+   }
+
+   protected boolean cacheStamps() {
+      return cacheStamps;
+   }
+
+   /**
+    * @param name
+    *           the name of the cached method.
+    * @return the disk cache set on this compiler, if any.
+    */
+   @CheckForNull
+   DiskCache newDiskCache(@NonNull String name) {
+      if (cacheDirectory == null) {
+         return null;
+      }
+      return new DiskCache(name, cacheDirectory, cacheMaxSize, cacheStamps);
+   }
+
+   /**
+    * Sets whether the concurrent invocations with the same command line, working directory and
+    * environment share a single process, and the same instance of its result, so the result should
+    * be immutable.
+    * 
+    * @param singleFlight
+    * @return
+    * @see SingleFlight
+    */
+   @NonNull
+   public Compiler<T> singleFlight(boolean singleFlight) {
+      this.singleFlight = singleFlight;
+      return this;
+   }
+
+   protected boolean singleFlight() {
+      return singleFlight;
+   }
+
+   /**
+    * @param name
+    *           the name of the bounded method or type.
+    * @param parent
+    *           the bound of the type, if any.
+    * @return the bound to the running processes set on this compiler, or the parent if not set.
+    */
+   @CheckForNull
+   Admission newAdmission(@NonNull String name, @CheckForNull Admission parent) {
+      if (maxConcurrent == 0) {
+         return parent;
+      }
+      return new Admission(name, maxConcurrent, maxQueued, maxWait, parent);
+   }
+
    void parseAnnotations(@NonNull AnnotatedElement element) {
       redirectError = false;
       resultFactory = null;
@@ -169,6 +540,24 @@ public abstract class Compiler<T> {
             errorFactory = createFactory(((ErrorFactory) annotation).value());
          } else if (annotationType == NormalTermination.class) {
             normalTermination = ((NormalTermination) annotation).value();
+         } else if (annotationType == Pooled.class) {
+            final Pooled pooled = (Pooled) annotation;
+            pooled(pooled.size(), pooled.maxRequests());
+            delimiter(pooled.delimiter());
+            lengthPrefix(pooled.lengthPrefix());
+         } else if (annotationType == BufferSize.class) {
+            bufferSize(((BufferSize) annotation).value());
+         } else if (annotationType == MaxConcurrent.class) {
+            final MaxConcurrent maxConcurrent = (MaxConcurrent) annotation;
+            maxConcurrent(maxConcurrent.value(), maxConcurrent.queue(), maxConcurrent.maxWait());
+         } else if (annotationType == Cacheable.class) {
+            final Cacheable cacheable = (Cacheable) annotation;
+            cacheable(cacheable.size(), cacheable.ttl(), cacheable.failureTtl());
+         } else if (annotationType == SingleFlight.class) {
+            singleFlight = true;
+         } else if (annotationType == PersistentCache.class) {
+            final PersistentCache cache = (PersistentCache) annotation;
+            persistentCache(new File(cache.value()), cache.maxSize(), cache.stamps());
          }
       }
    }
@@ -1,35 +1,97 @@
 package com.j2speed.exec.impl;
 
 import static java.util.concurrent.Executors.newCachedThreadPool;
-import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-import javax.annotation.concurrent.GuardedBy;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import com.j2speed.exec.ExecutionException;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 final class Controller {
 
+   /**
+    * System property to run the output processing and the asynchronous invocations on virtual
+    * threads, when supported by the JVM, for all the compiled methods.
+    */
+   static final String VIRTUAL_THREADS = "com.j2speed.exec.virtualThreads";
+
+   /**
+    * System property to pump the output with the {@link OutputMultiplexer} for all the compiled
+    * methods.
+    */
+   static final String MULTIPLEXED = "com.j2speed.exec.multiplexed";
+
+   /**
+    * System property for the number of threads of the {@link OutputMultiplexer}, one by default.
+    */
+   static final String MULTIPLEXER_THREADS = "com.j2speed.exec.multiplexerThreads";
+
+   /**
+    * System property to record the metrics of all the compiled methods and expose them through
+    * JMX.
+    */
+   static final String METRICS = "com.j2speed.exec.metrics";
+
+   /**
+    * The JMX domain of the metrics.
+    */
+   static final String JMX_DOMAIN = "com.j2speed.exec";
+
+   /**
+    * System property for the resolution of the timeouts, in milliseconds, 10 by default.
+    */
+   static final String WATCHDOG_TICK = "com.j2speed.exec.watchdogTick";
+
+   /**
+    * The number of buckets of the timeouts wheel, with the default tick a round takes about 5
+    * seconds.
+    */
+   private static final int WATCHDOG_BUCKETS = 512;
+
    private static final ExecutorService PROCESSOR;
 
-   private static final ScheduledExecutorService SCHEDULER;
+   private static final TimerWheel WATCHDOGS;
+
+   /**
+    * The running processes. A process is added before checking that the JVM is not shutting down,
+    * and the shutdown hook clears the flag before destroying the processes, so each process is
+    * either seen by the hook or destroyed when registered.
+    */
+   private static final Set<Process> running = ConcurrentHashMap.newKeySet();
+   /**
+    * The last instance of the metrics registered under each name.
+    */
+   private static final ConcurrentMap<String, AtomicInteger> INSTANCES =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+   private static volatile boolean active = true;
 
-   @GuardedBy("running")
-   private static final Collection<Process> running = new HashSet<Process>();
+   private static final LongAdder KILLS = new LongAdder();
 
-   @GuardedBy("running")
-   private static boolean active = true;
+   private static final LongAdder TIMEOUTS = new LongAdder();
 
    static {
       PROCESSOR = newCachedThreadPool(new NamedFactory("output-processor"));
-      SCHEDULER = newSingleThreadScheduledExecutor(new NamedFactory("watchdog"));
+      WATCHDOGS = new TimerWheel(Long.getLong(WATCHDOG_TICK, TimerWheel.DEFAULT_TICK),
+               WATCHDOG_BUCKETS, new NamedFactory("watchdog"));
       Runtime.getRuntime().addShutdownHook(new ShutdownHook());
    }
 
@@ -38,34 +100,294 @@ final class Controller {
 
    @NonNull
    static Watchdog register(@NonNull Process process, long timeout) {
-      synchronized (running) {
-         if (active) {
-            final Watchdog watchdog = new Watchdog(process);
-            if (timeout > 0) {
-               watchdog.setFuture(SCHEDULER.schedule(watchdog, timeout, MILLISECONDS));
-            }
-            running.add(process);
-            return watchdog;
-         } else {
-            process.destroy();
-            throw new ExecutionException("shutting down");
-         }
-      }
+      return register(process, timeout, null);
    }
 
-   static void done(@NonNull Process process) {
-      synchronized (running) {
+   /**
+    * Registers a running process, killing it if it does not terminate within the given timeout.
+    * 
+    * @param process
+    *           the process to register.
+    * @param timeout
+    *           the timeout in milliseconds, if not positive the process is not watched.
+    * @param metrics
+    *           the metrics recording the timeout, if any.
+    * @return the watchdog to cancel when the process terminates.
+    */
+   @NonNull
+   static Watchdog register(@NonNull Process process, long timeout,
+            @CheckForNull MethodMetrics metrics) {
+      running.add(process);
+      if (!active) {
          running.remove(process);
+         process.destroy();
+         throw new ExecutionException("shutting down");
       }
+      return WATCHDOGS.schedule(process, timeout, metrics);
+   }
+
+   /**
+    * Watches an already registered process for a single operation, killing it if the operation does
+    * not complete within the given timeout.
+    * 
+    * @param process
+    *           the process to watch.
+    * @param timeout
+    *           the timeout in milliseconds, if not positive the process is not watched.
+    * @return the watchdog to cancel when the operation completes.
+    */
+   @NonNull
+   static Watchdog watch(@NonNull Process process, long timeout,
+            @CheckForNull MethodMetrics metrics) {
+      return WATCHDOGS.schedule(process, timeout, metrics);
+   }
+
+   static void done(@NonNull Process process) {
+      running.remove(process);
    }
 
    static void kill(@NonNull Process process) {
+      kill(process, false);
+   }
+
+   /**
+    * @param timedOut
+    *           whether the process is killed because it timed out.
+    */
+   static void kill(@NonNull Process process, boolean timedOut) {
+      KILLS.increment();
+      ProcessEvents.killed(process, timedOut);
       process.destroy();
       done(process);
    }
 
-   static void pump(@NonNull OutputPump pumper) {
-      PROCESSOR.execute(pumper);
+   static void timedOut(@CheckForNull MethodMetrics metrics) {
+      TIMEOUTS.increment();
+      if (metrics != null) {
+         metrics.timedOut();
+      }
+   }
+
+   /**
+    * Creates the metrics of a compiled method, if requested, either with the {@code metrics}
+    * parameter or with the {@value #METRICS} system property.
+    * 
+    * @param metrics
+    *           whether to record the metrics.
+    * @param method
+    *           the compiled method.
+    * @param admission
+    *           the bound to the running processes of the method, if any.
+    * @param cache
+    *           the cache of the results of the method, if any.
+    * @param coalescer
+    *           the coalescer of the invocations of the method, if any.
+    * @return the metrics, or {@code null} if they are not recorded.
+    */
+   @CheckForNull
+   static MethodMetrics metrics(boolean metrics, @NonNull Method method,
+            @CheckForNull Admission admission, @CheckForNull ResultCache cache,
+            @CheckForNull Coalescer coalescer) {
+      if (!metrics && !Boolean.getBoolean(METRICS)) {
+         return null;
+      }
+      return new MethodMetrics(method, admission, cache, coalescer);
+   }
+
+   /**
+    * Registers the metrics of a compiled method with the platform MBean server as
+    * {@code com.j2speed.exec:type=Method,interface=<interface>,method=<method>}, along with the
+    * metrics of all the methods as {@code com.j2speed.exec:type=Controller}.
+    * <p>
+    * Each compilation of the interface has its own metrics, the later ones registered with an
+    * {@code instance} key. The MBean is unregistered once the compiled proxy is garbage collected.
+    * 
+    * @param metrics
+    *           the metrics of the method.
+    * @param compiled
+    *           the compiled proxy, or implementation, the method belongs to.
+    */
+   static void expose(@NonNull MethodMetrics metrics, @NonNull Object compiled) {
+      final Method method = metrics.method();
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         if (!server.isRegistered(ControllerMetrics.NAME)) {
+            try {
+               server.registerMBean(new ControllerMetrics(), ControllerMetrics.NAME);
+            } catch (InstanceAlreadyExistsException e) {
+               // registered concurrently
+            }
+         }
+         final String name = JMX_DOMAIN + ":type=Method,interface="
+                  + method.getDeclaringClass().getName() + ",method="
+                  + ObjectName.quote(method.getName() + parameters(method));
+         AtomicInteger instances = INSTANCES.get(name);
+         if (instances == null) {
+            final AtomicInteger added = INSTANCES.putIfAbsent(name, instances = new AtomicInteger());
+            if (added != null) {
+               instances = added;
+            }
+         }
+         for (;;) {
+            final int instance = instances.incrementAndGet();
+            final ObjectName objectName = new ObjectName(instance == 1 ? name : name
+                     + ",instance=" + instance);
+            try {
+               server.registerMBean(metrics, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+               // registered by another class loader, tries the next instance
+               continue;
+            }
+            Unregistration.CLEANER.register(compiled, new Unregistration(server, objectName));
+            break;
+         }
+      } catch (JMException e) {
+         throw new IllegalStateException("Cannot register the metrics of " + method, e);
+      }
+   }
+
+   @NonNull
+   private static String parameters(@NonNull Method method) {
+      final StringBuilder parameters = new StringBuilder(32).append('(');
+      for (Class<?> type : method.getParameterTypes()) {
+         if (parameters.length() > 1) {
+            parameters.append(',');
+         }
+         parameters.append(type.getSimpleName());
+      }
+      return parameters.append(')').toString();
+   }
+
+   /**
+    * Selects the executor for the output processing and the asynchronous invocations.
+    * <p>
+    * Virtual threads are used if requested, either with the {@code virtualThreads} parameter or with
+    * the {@value #VIRTUAL_THREADS} system property, and supported by the JVM, otherwise a pool of
+    * platform threads is used.
+    * 
+    * @param virtualThreads
+    *           whether to use virtual threads.
+    * @return the executor.
+    */
+   @NonNull
+   static Executor processor(boolean virtualThreads) {
+      if (virtualThreads || Boolean.getBoolean(VIRTUAL_THREADS)) {
+         return VirtualProcessor.INSTANCE;
+      }
+      return PROCESSOR;
+   }
+
+   /**
+    * Selects the multiplexer for the output of the commands.
+    * <p>
+    * The multiplexer is used if requested, either with the {@code multiplexed} parameter or with
+    * the {@value #MULTIPLEXED} system property, and it is shared by all the compiled methods.
+    * 
+    * @param multiplexed
+    *           whether to use the multiplexer.
+    * @return the multiplexer, or {@code null} if each stream is pumped by its own thread.
+    */
+   @CheckForNull
+   static OutputMultiplexer multiplexer(boolean multiplexed) {
+      if (multiplexed || Boolean.getBoolean(MULTIPLEXED)) {
+         return Multiplexer.INSTANCE;
+      }
+      return null;
+   }
+
+   /**
+    * The metrics of all the compiled methods.
+    */
+   private static final class ControllerMetrics implements ControllerMXBean {
+      static final ObjectName NAME;
+
+      static {
+         try {
+            NAME = new ObjectName(JMX_DOMAIN + ":type=Controller");
+         } catch (MalformedObjectNameException e) {
+            throw new ExceptionInInitializerError(e);
+         }
+      }
+
+      @Override
+      public int getRunningProcesses() {
+         return running.size();
+      }
+
+      @Override
+      public long getKills() {
+         return KILLS.sum();
+      }
+
+      @Override
+      public long getTimeouts() {
+         return TIMEOUTS.sum();
+      }
+
+      @Override
+      public int getTemplates() {
+         return TemplateRegistry.size();
+      }
+
+      @Override
+      public long getTemplateHits() {
+         return TemplateRegistry.hits();
+      }
+   }
+
+   /**
+    * Unregisters the metrics of a method once its compiled proxy is unreachable, from a thread
+    * started when the metrics are first exposed.
+    */
+   private static final class Unregistration implements Runnable {
+      static final Cleaner CLEANER = Cleaner.create(new NamedFactory("metrics-cleaner"));
+
+      @NonNull
+      private final MBeanServer server;
+      @NonNull
+      private final ObjectName name;
+
+      Unregistration(@NonNull MBeanServer server, @NonNull ObjectName name) {
+         this.server = server;
+         this.name = name;
+      }
+
+      @Override
+      public void run() {
+         try {
+            server.unregisterMBean(name);
+         } catch (JMException e) {
+            // already unregistered
+         }
+      }
+   }
+
+   /**
+    * Lazily starts the multiplexer threads, only when the multiplexer is used.
+    */
+   private static final class Multiplexer {
+      static final OutputMultiplexer INSTANCE = new OutputMultiplexer(Math.max(1,
+               Integer.getInteger(MULTIPLEXER_THREADS, 1)));
+   }
+
+   /**
+    * Lazily creates the executor that starts a new virtual thread for each task, if the JVM supports
+    * virtual threads.
+    */
+   private static final class VirtualProcessor {
+      static final Executor INSTANCE;
+
+      static {
+         Executor processor;
+         try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            processor = (Executor) factory.invoke(null);
+         } catch (Exception e) {
+            // virtual threads are not available, or not enabled, in this JVM
+            processor = PROCESSOR;
+         }
+         INSTANCE = processor;
+      }
    }
 
    private static final class ShutdownHook extends Thread {
@@ -75,13 +397,11 @@ final class Controller {
 
       @Override
       public void run() {
-         synchronized (running) {
-            active = false;
-            for (Process process : running) {
-               try {
-                  process.destroy();
-               } catch (Throwable th) {
-               }
+         active = false;
+         for (Process process : running) {
+            try {
+               process.destroy();
+            } catch (Throwable th) {
             }
          }
       }
@@ -0,0 +1,34 @@
+package com.j2speed.exec.impl;
+
+/**
+ * The metrics of all the compiled methods, as exposed through JMX.
+ *
+ * @author Alessandro Nistico
+ */
+public interface ControllerMXBean {
+
+   /**
+    * @return the number of processes running.
+    */
+   int getRunningProcesses();
+
+   /**
+    * @return the number of processes killed, because they timed out or their output failed.
+    */
+   long getKills();
+
+   /**
+    * @return the number of processes killed because they timed out.
+    */
+   long getTimeouts();
+
+   /**
+    * @return the number of command templates compiled and kept for the next compilations.
+    */
+   int getTemplates();
+
+   /**
+    * @return the number of compilations that found their command template already compiled.
+    */
+   long getTemplateHits();
+}
@@ -0,0 +1,310 @@
+package com.j2speed.exec.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.PersistentCache;
+import com.j2speed.exec.ResultBuilder;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The outputs of a compiled method cached on disk, as set with {@link PersistentCache}, shared by
+ * all the JVMs of the host using the same directory.
+ * <p>
+ * The outputs are addressed by a digest of the command line, the working directory, the
+ * environment overrides and, optionally, the last modification and size of the input files, so
+ * methods running the same command share the outputs too. A cached output is passed to a new
+ * result builder, as if read from a process, so any result type can be cached.
+ * <p>
+ * An output is kept in memory until cached, so the outputs larger than {@value #MAX_OUTPUT} bytes
+ * are passed through to the result builder but not cached.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+public final class DiskCache {
+   /**
+    * The largest output cached, 64MB.
+    */
+   static final int MAX_OUTPUT = 1 << 26;
+
+   @NonNull
+   private final String name;
+   @NonNull
+   private final DiskStore store;
+   private final long maxSize;
+   private final boolean stamps;
+
+   @NonNull
+   private final LongAdder hits = new LongAdder();
+   @NonNull
+   private final LongAdder misses = new LongAdder();
+   @NonNull
+   private final LongAdder stores = new LongAdder();
+
+   /**
+    * @param name
+    *           the name of the method, used in the messages.
+    * @param directory
+    *           the directory of the cache.
+    * @param maxSize
+    *           the maximum size of the outputs cached in the directory, in bytes.
+    * @param stamps
+    *           whether the last modification and size of the input files are part of the key.
+    */
+   DiskCache(@NonNull String name, @NonNull File directory, long maxSize, boolean stamps) {
+      if (maxSize <= 0) {
+         throw new IllegalArgumentException("Cache size must be positive");
+      }
+      this.name = name;
+      this.store = DiskStore.of(directory);
+      this.maxSize = maxSize;
+      this.stamps = stamps;
+   }
+
+   /**
+    * Gets the disk cache of a method of a compiled proxy.
+    *
+    * @param proxy
+    *           the compiled proxy.
+    * @param method
+    *           the method.
+    * @return the disk cache of the method, {@code null} if the method is not cached on disk.
+    */
+   @CheckForNull
+   public static DiskCache of(@NonNull Object proxy, @NonNull Method method) {
+      final MethodInvocationHandler handler = Implementation.handlerOf(proxy, method);
+      return handler != null ? handler.diskCache() : null;
+   }
+
+   /**
+    * @return the name of the cached method.
+    */
+   @NonNull
+   public String name() {
+      return name;
+   }
+
+   /**
+    * @return the number of invocations answered from the disk.
+    */
+   public long hits() {
+      return hits.sum();
+   }
+
+   /**
+    * @return the number of invocations that ran the command.
+    */
+   public long misses() {
+      return misses.sum();
+   }
+
+   /**
+    * @return the number of outputs written by this JVM.
+    */
+   public long stores() {
+      return stores.sum();
+   }
+
+   /**
+    * @return the number of outputs cached in the directory, by all the methods and JVMs.
+    */
+   public int count() {
+      return store.count();
+   }
+
+   /**
+    * @return the size of the outputs cached in the directory, by all the methods and JVMs.
+    */
+   public long bytes() {
+      return store.bytes();
+   }
+
+   /**
+    * Computes the key of an invocation.
+    *
+    * @param template
+    *           the command, for its stages and its defaults.
+    * @param command
+    *           the command line of the invocation.
+    * @param directory
+    *           the working directory of the invocation, if not the default one.
+    * @param environment
+    *           the environment overrides of the invocation, if any.
+    * @param files
+    *           the input files of the invocation.
+    * @return the key, 16 bytes.
+    */
+   @NonNull
+   byte[] key(@NonNull CommandTemplate template, @NonNull List<String> command,
+            @CheckForNull File directory, @CheckForNull Map<String, String> environment,
+            @NonNull List<File> files) {
+      final MessageDigest digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+      update(digest, template.redirectError() ? "redirected" : "separate");
+      final int stages = template.stagesCount();
+      for (int i = 0; i < stages; i++) {
+         final List<String> stage = template.stage(command, i);
+         update(digest, Integer.toString(stage.size()));
+         for (String token : stage) {
+            update(digest, token);
+         }
+      }
+      if (directory == null) {
+         directory = template.directory();
+      }
+      update(digest, (directory != null ? directory : new File("")).getAbsolutePath());
+      final Map<String, String> overrides = new TreeMap<String, String>(template.environment());
+      if (environment != null) {
+         overrides.putAll(environment);
+      }
+      for (Map.Entry<String, String> entry : overrides.entrySet()) {
+         update(digest, entry.getKey());
+         update(digest, String.valueOf(entry.getValue()));
+      }
+      if (stamps) {
+         for (File file : files) {
+            update(digest, file.getAbsolutePath());
+            update(digest, Long.toString(file.lastModified()));
+            update(digest, Long.toString(file.length()));
+         }
+      }
+      return Arrays.copyOf(digest.digest(), 16);
+   }
+
+   private static void update(@NonNull MessageDigest digest, @NonNull String value) {
+      final byte[] bytes = value.getBytes(UTF_8);
+      digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+      digest.update(bytes);
+   }
+
+   /**
+    * Opens the cached output of an invocation, counting a hit or a miss.
+    *
+    * @return the output, {@code null} if not cached or not readable.
+    */
+   @CheckForNull
+   InputStream get(@NonNull byte[] key) {
+      InputStream output;
+      try {
+         output = store.get(key);
+      } catch (IOException e) {
+         output = null;
+      }
+      (output != null ? hits : misses).increment();
+      return output;
+   }
+
+   /**
+    * @return a builder that caches the output of the invocation, once the result is built.
+    */
+   @NonNull
+   <R> ResultBuilder<R> capture(@NonNull byte[] key, @NonNull ResultBuilder<R> result) {
+      return new Capture<R>(key, result);
+   }
+
+   @Override
+   public String toString() {
+      return "DiskCache[" + name + "]: " + hits() + " hits, " + misses() + " misses";
+   }
+
+   /**
+    * Keeps a copy of the output passed to a result builder, and caches it when the result is
+    * built, that is when the command succeeded.
+    */
+   @NotThreadSafe
+   private final class Capture<R> implements ResultBuilder<R>, Closeable {
+      @NonNull
+      private final byte[] key;
+      @NonNull
+      private final ResultBuilder<R> result;
+      @CheckForNull
+      private byte[] output = new byte[256];
+      private int length;
+      /**
+       * The bytes left in the buffer by the builder, which are passed again with the next ones.
+       */
+      private int left;
+
+      Capture(@NonNull byte[] key, @NonNull ResultBuilder<R> result) {
+         this.key = key;
+         this.result = result;
+      }
+
+      @Override
+      public void setProcessInput(@NonNull OutputStream input) {
+         result.setProcessInput(input);
+      }
+
+      @Override
+      public void process(@NonNull ByteBuffer buffer) {
+         final int read = buffer.remaining() - left;
+         if (output != null && read > 0) {
+            final long required = (long) length + read;
+            if (required > Math.min(maxSize, MAX_OUTPUT)) {
+               // too large to be cached, still passed to the builder
+               output = null;
+            } else {
+               if (required > output.length) {
+                  output = Arrays.copyOf(output, (int) Math.min(MAX_OUTPUT, Math.max(
+                           (long) output.length << 1, required)));
+               }
+               buffer.duplicate().position(buffer.limit() - read).get(output, length, read);
+               length += read;
+            }
+         }
+         try {
+            result.process(buffer);
+         } finally {
+            left = buffer.remaining();
+         }
+      }
+
+      @Override
+      public void done() {
+         result.done();
+      }
+
+      @Override
+      public R build() {
+         final R built = result.build();
+         if (output != null) {
+            try {
+               store.put(key, output, length, maxSize);
+               stores.increment();
+            } catch (IOException e) {
+               // not cached, the result is still valid
+            }
+         }
+         return built;
+      }
+
+      @Override
+      public void close() {
+         MethodInvocationHandler.discard(result);
+      }
+   }
+}
@@ -0,0 +1,425 @@
+package com.j2speed.exec.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A directory of cached outputs, shared by all the JVMs of a host.
+ * <p>
+ * Each output is a file named after its 128 bits key. The files are written aside and moved in
+ * place, so a reader never sees a partial output. The index is a memory mapped hash table, with
+ * linear probing, of the keys, sizes and last accesses of the outputs, used to evict the least
+ * recently used ones beyond the size limit. The index is only accessed while holding the lock of
+ * its file, so any number of JVMs can read and update it, and it is rebuilt empty if found
+ * corrupted, with an inconsistent header or without a free slot, as it is only a cache.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class DiskStore {
+   private static final int MAGIC = 0x4A325843;
+   private static final int VERSION = 1;
+   /**
+    * The slots of the index, filled up to three quarters, about 2MB.
+    */
+   private static final int CAPACITY = 1 << 16;
+   private static final int MAX_COUNT = CAPACITY / 4 * 3;
+   private static final int HEADER = 64;
+   private static final int SLOT = 32;
+
+   private static final int MAGIC_OFFSET = 0;
+   private static final int VERSION_OFFSET = 4;
+   private static final int CAPACITY_OFFSET = 8;
+   private static final int COUNT_OFFSET = 12;
+   private static final int BYTES_OFFSET = 16;
+   private static final int CLOCK_OFFSET = 24;
+
+   private static final ConcurrentMap<Path, DiskStore> STORES =
+            new ConcurrentHashMap<Path, DiskStore>();
+
+   @NonNull
+   private final Path directory;
+   @NonNull
+   private final FileChannel channel;
+   @GuardedBy("lock")
+   @NonNull
+   private final MappedByteBuffer index;
+   /**
+    * The lock of the index within the JVM, as the lock of the file is held by the whole JVM.
+    */
+   @NonNull
+   private final ReentrantLock lock = new ReentrantLock();
+   @GuardedBy("lock")
+   @CheckForNull
+   private FileLock fileLock;
+
+   private DiskStore(@NonNull Path directory) throws IOException {
+      this.directory = directory;
+      this.channel = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE,
+               StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.index = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) CAPACITY
+               * SLOT);
+      // checked, and reset if needed, under the lock of the file
+      lock();
+      unlock();
+   }
+
+   /**
+    * @return the store of a directory, shared by all the methods cached in it.
+    */
+   @NonNull
+   static DiskStore of(@NonNull File directory) {
+      final Path path;
+      try {
+         Files.createDirectories(directory.toPath());
+         // a single store per directory, as a JVM cannot lock the same file twice
+         path = directory.toPath().toRealPath();
+      } catch (IOException e) {
+         throw new IllegalStateException("Cannot open the cache in " + directory, e);
+      }
+      return STORES.computeIfAbsent(path, new Function<Path, DiskStore>() {
+         @Override
+         public DiskStore apply(Path path) {
+            try {
+               return new DiskStore(path);
+            } catch (IOException e) {
+               throw new IllegalStateException("Cannot open the cache in " + path, e);
+            }
+         }
+      });
+   }
+
+   /**
+    * Opens a cached output, marking it as the most recently used.
+    *
+    * @param key
+    *           the 16 bytes key of the output.
+    * @return the output, {@code null} if not cached.
+    */
+   @CheckForNull
+   InputStream get(@NonNull byte[] key) throws IOException {
+      final long high = high(key);
+      final long low = low(key);
+      lock();
+      try {
+         final int slot = find(high, low);
+         if (slot == -1) {
+            return null;
+         }
+         index.putLong(slot + 24, tick());
+      } finally {
+         unlock();
+      }
+      try {
+         return Files.newInputStream(file(high, low));
+      } catch (NoSuchFileException e) {
+         // removed from another JVM, or by hand
+         lock();
+         try {
+            remove(high, low);
+         } finally {
+            unlock();
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Caches an output, evicting the least recently used ones beyond the given size.
+    *
+    * @param key
+    *           the 16 bytes key of the output.
+    * @param output
+    *           the output.
+    * @param length
+    *           the length of the output.
+    * @param maxSize
+    *           the maximum size of all the cached outputs, in bytes.
+    */
+   void put(@NonNull byte[] key, @NonNull byte[] output, int length, long maxSize)
+            throws IOException {
+      if (length > maxSize) {
+         return;
+      }
+      final long high = high(key);
+      final long low = low(key);
+      final Path file = file(high, low);
+      Files.createDirectories(file.getParent());
+      final Path written = Files.createTempFile(directory, "output", ".tmp");
+      try {
+         Files.write(written, length == output.length ? output : Arrays.copyOf(output, length));
+         try {
+            Files.move(written, file, StandardCopyOption.ATOMIC_MOVE,
+                     StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(written);
+      }
+      lock();
+      try {
+         // replaced, so accounted again
+         remove(high, low);
+         evict(maxSize - length, MAX_COUNT - 1);
+         insert(high, low, length);
+      } finally {
+         unlock();
+      }
+   }
+
+   /**
+    * @return the number of cached outputs.
+    */
+   int count() {
+      lock();
+      try {
+         return index.getInt(COUNT_OFFSET);
+      } finally {
+         unlock();
+      }
+   }
+
+   /**
+    * @return the size of the cached outputs, in bytes.
+    */
+   long bytes() {
+      lock();
+      try {
+         return index.getLong(BYTES_OFFSET);
+      } finally {
+         unlock();
+      }
+   }
+
+   /**
+    * Locks the index, first within the JVM and then for the other JVMs, and resets it if
+    * corrupted.
+    */
+   private void lock() {
+      lock.lock();
+      if (lock.getHoldCount() > 1) {
+         return;
+      }
+      try {
+         fileLock = channel.lock();
+      } catch (IOException e) {
+         lock.unlock();
+         throw new IllegalStateException("Cannot lock the cache index in " + directory, e);
+      }
+      if (!valid()) {
+         reset();
+      }
+   }
+
+   private void unlock() {
+      if (lock.getHoldCount() > 1) {
+         lock.unlock();
+         return;
+      }
+      try {
+         fileLock.release();
+      } catch (IOException e) {
+         // the lock is released with the channel anyway
+      } finally {
+         fileLock = null;
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return whether the header of the index is consistent, the slots are checked when probed.
+    */
+   @GuardedBy("lock")
+   private boolean valid() {
+      final int count = index.getInt(COUNT_OFFSET);
+      return index.getInt(MAGIC_OFFSET) == MAGIC && index.getInt(VERSION_OFFSET) == VERSION
+               && index.getInt(CAPACITY_OFFSET) == CAPACITY && count >= 0 && count <= MAX_COUNT
+               && index.getLong(BYTES_OFFSET) >= 0 && index.getLong(CLOCK_OFFSET) >= 0;
+   }
+
+   /**
+    * Empties the index, new, corrupted or written by another version: the outputs left are never
+    * evicted.
+    */
+   @GuardedBy("lock")
+   private void reset() {
+      for (int i = 0, length = HEADER + CAPACITY * SLOT; i < length; i += 8) {
+         index.putLong(i, 0);
+      }
+      index.putInt(VERSION_OFFSET, VERSION);
+      index.putInt(CAPACITY_OFFSET, CAPACITY);
+      index.putInt(MAGIC_OFFSET, MAGIC);
+   }
+
+   @GuardedBy("lock")
+   private long tick() {
+      final long clock = index.getLong(CLOCK_OFFSET) + 1;
+      index.putLong(CLOCK_OFFSET, clock);
+      return clock;
+   }
+
+   /**
+    * @return the offset of the slot of the key, {@code -1} if not found.
+    */
+   @GuardedBy("lock")
+   private int find(long high, long low) {
+      for (int i = home(high), probes = 0; probes < CAPACITY; i = (i + 1) & (CAPACITY - 1),
+               probes++) {
+         final int slot = offset(i);
+         if (index.getLong(slot + 24) == 0) {
+            return -1;
+         }
+         if (index.getLong(slot) == high && index.getLong(slot + 8) == low) {
+            return slot;
+         }
+      }
+      // no empty slot, while at most three quarters are used
+      reset();
+      return -1;
+   }
+
+   @GuardedBy("lock")
+   private void insert(long high, long low, long size) {
+      int i = home(high);
+      for (int probes = 0; index.getLong(offset(i) + 24) != 0; probes++) {
+         if (probes == CAPACITY) {
+            reset();
+            i = home(high);
+            break;
+         }
+         i = (i + 1) & (CAPACITY - 1);
+      }
+      final int slot = offset(i);
+      index.putLong(slot, high);
+      index.putLong(slot + 8, low);
+      index.putLong(slot + 16, size);
+      index.putLong(slot + 24, tick());
+      index.putInt(COUNT_OFFSET, index.getInt(COUNT_OFFSET) + 1);
+      index.putLong(BYTES_OFFSET, index.getLong(BYTES_OFFSET) + size);
+   }
+
+   /**
+    * Removes a key from the index, shifting back the following keys of the same run, so no
+    * tombstone is needed.
+    */
+   @GuardedBy("lock")
+   private void remove(long high, long low) {
+      final int found = find(high, low);
+      if (found == -1) {
+         return;
+      }
+      index.putInt(COUNT_OFFSET, index.getInt(COUNT_OFFSET) - 1);
+      index.putLong(BYTES_OFFSET, index.getLong(BYTES_OFFSET) - index.getLong(found + 16));
+      final int removed = (found - HEADER) / SLOT;
+      int hole = removed;
+      // bounded, should the run fill the whole index
+      for (int i = (hole + 1) & (CAPACITY - 1); i != removed; i = (i + 1) & (CAPACITY - 1)) {
+         final int slot = offset(i);
+         if (index.getLong(slot + 24) == 0) {
+            break;
+         }
+         final int home = home(index.getLong(slot));
+         // the key can fill the hole if its home is not between the hole and its slot
+         if (((i - home) & (CAPACITY - 1)) >= ((i - hole) & (CAPACITY - 1))) {
+            final int to = offset(hole);
+            for (int field = 0; field < SLOT; field += 8) {
+               index.putLong(to + field, index.getLong(slot + field));
+            }
+            hole = i;
+         }
+      }
+      final int emptied = offset(hole);
+      for (int field = 0; field < SLOT; field += 8) {
+         index.putLong(emptied + field, 0);
+      }
+   }
+
+   /**
+    * Evicts the least recently used outputs, down to nine tenths of the given limits, so the next
+    * outputs do not evict again.
+    */
+   @GuardedBy("lock")
+   private void evict(long maxBytes, int maxCount) {
+      final int count = index.getInt(COUNT_OFFSET);
+      if (index.getLong(BYTES_OFFSET) <= maxBytes && count <= maxCount) {
+         return;
+      }
+      final long targetBytes = maxBytes - maxBytes / 10;
+      final int targetCount = maxCount - maxCount / 10;
+      // the last access in the high bits and the slot in the low ones, sorted by access
+      final long[] slots = new long[count];
+      int n = 0;
+      for (int i = 0; i < CAPACITY && n < count; i++) {
+         final long access = index.getLong(offset(i) + 24);
+         if (access != 0) {
+            slots[n++] = access << 16 | i;
+         }
+      }
+      Arrays.sort(slots, 0, n);
+      final long[] evicted = new long[n * 2];
+      long bytes = index.getLong(BYTES_OFFSET);
+      int remaining = count;
+      int e = 0;
+      for (int j = 0; j < n && (bytes > targetBytes || remaining > targetCount); j++) {
+         final int slot = offset((int) (slots[j] & (CAPACITY - 1)));
+         evicted[e++] = index.getLong(slot);
+         evicted[e++] = index.getLong(slot + 8);
+         bytes -= index.getLong(slot + 16);
+         remaining--;
+      }
+      // removed once collected, as removing shifts the slots
+      for (int j = 0; j < e; j += 2) {
+         remove(evicted[j], evicted[j + 1]);
+         try {
+            Files.deleteIfExists(file(evicted[j], evicted[j + 1]));
+         } catch (IOException ex) {
+            // left on disk, but no longer accounted
+         }
+      }
+   }
+
+   @NonNull
+   private Path file(long high, long low) {
+      final String name = String.format("%016x%016x", high, low);
+      return directory.resolve(name.substring(0, 2)).resolve(name);
+   }
+
+   private static int home(long high) {
+      return (int) high & (CAPACITY - 1);
+   }
+
+   private static int offset(int slot) {
+      return HEADER + slot * SLOT;
+   }
+
+   private static long high(@NonNull byte[] key) {
+      return ByteBuffer.wrap(key, 0, 8).getLong();
+   }
+
+   private static long low(@NonNull byte[] key) {
+      return ByteBuffer.wrap(key, 8, 8).getLong();
+   }
+}
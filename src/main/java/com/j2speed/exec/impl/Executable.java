@@ -0,0 +1,157 @@
+package com.j2speed.exec.impl;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.Immutable;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The executable of a command, resolved to an absolute path when the command is compiled rather
+ * than searched in the path by the operating system at each start of a process.
+ * <p>
+ * The path is searched as the JDK does when starting a process, in the directories of the
+ * {@code PATH} of this JVM, so the resolved executable is the one that would be started anyway.
+ * The names with a separator are not resolved, nor are the ones found after a relative directory
+ * of the path, as they depend on the working directory of each process. On Windows the names are
+ * never resolved, as the operating system searches more than the path.
+ * <p>
+ * The resolutions are shared by all the commands, missing executables included, so compiling the
+ * commands of a missing executable does not search the path again: the process fails to start as
+ * it would without the resolution.
+ *
+ * @author Alessandro Nistico
+ */
+@Immutable
+final class Executable {
+   private static final boolean RESOLVED = !System.getProperty("os.name", "").startsWith("Windows");
+   private static final ConcurrentMap<String, Executable> EXECUTABLES =
+            new ConcurrentHashMap<String, Executable>();
+   /**
+    * Cached in place of the names that cannot be resolved.
+    */
+   private static final Executable UNRESOLVED = new Executable("", null, null);
+
+   @NonNull
+   private final String name;
+   @CheckForNull
+   private final File directory;
+   @CheckForNull
+   private final File file;
+   private final long lastModified;
+   private final long length;
+
+   private Executable(@NonNull String name, @CheckForNull File directory, @CheckForNull File file) {
+      this.name = name;
+      this.directory = directory;
+      this.file = file;
+      this.lastModified = file != null ? file.lastModified() : 0;
+      this.length = file != null ? file.length() : 0;
+   }
+
+   /**
+    * Resolves an executable in the path.
+    *
+    * @param name
+    *           the name of the executable, as in the command.
+    * @return the executable, missing if not found, {@code null} if the name cannot be resolved.
+    */
+   @CheckForNull
+   static Executable resolve(@NonNull String name) {
+      Executable executable = EXECUTABLES.get(name);
+      if (executable == null) {
+         executable = search(name);
+         EXECUTABLES.put(name, executable);
+      }
+      return executable != UNRESOLVED ? executable : null;
+   }
+
+   /**
+    * Resolves an executable in a directory, as set with {@link Compiler#commandIn(File)}.
+    *
+    * @param directory
+    *           the directory of the executable.
+    * @param name
+    *           the name of the executable, as in the command.
+    * @return the executable.
+    */
+   @NonNull
+   static Executable in(@NonNull File directory, @NonNull String name) {
+      final File file = new File(directory, name).getAbsoluteFile();
+      if (!file.exists()) {
+         throw new IllegalArgumentException("The specified command " + file + " does not exist");
+      }
+      if (!file.canExecute()) {
+         throw new IllegalArgumentException("The specified command " + file
+                  + " cannot be executed");
+      }
+      return new Executable(name, directory, file);
+   }
+
+   @NonNull
+   private static Executable search(@NonNull String name) {
+      if (!RESOLVED || name.indexOf('/') != -1 || name.indexOf(File.separatorChar) != -1
+               || name.indexOf('"') != -1) {
+         return UNRESOLVED;
+      }
+      final String path = System.getenv("PATH");
+      if (path == null) {
+         // the JDK searches the working directory first
+         return UNRESOLVED;
+      }
+      for (String directory : path.split(File.pathSeparator, -1)) {
+         if (directory.isEmpty() || !new File(directory).isAbsolute()) {
+            return UNRESOLVED;
+         }
+         final File file = new File(directory, name);
+         if (file.isFile() && file.canExecute()) {
+            return new Executable(name, null, file);
+         }
+      }
+      return new Executable(name, null, null);
+   }
+
+   /**
+    * @return the path to start, the absolute path of the executable if found, otherwise its name.
+    */
+   @NonNull
+   String path() {
+      return file != null ? file.getPath() : name;
+   }
+
+   /**
+    * @return whether the executable was found.
+    */
+   boolean found() {
+      return file != null;
+   }
+
+   /**
+    * Resolves the executable again, if changed since resolved: modified, removed or, if missing,
+    * installed.
+    *
+    * @return this executable if not changed, otherwise the new resolution.
+    */
+   @NonNull
+   Executable current() {
+      if (directory != null) {
+         return file.lastModified() == lastModified && file.length() == length ? this : in(
+                  directory, name);
+      }
+      if (file != null ? file.isFile() && file.lastModified() == lastModified
+               && file.length() == length : !search(name).found()) {
+         return this;
+      }
+      final Executable current = search(name);
+      EXECUTABLES.put(name, current);
+      return current;
+   }
+
+   @Override
+   public String toString() {
+      return path();
+   }
+}
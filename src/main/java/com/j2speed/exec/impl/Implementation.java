@@ -0,0 +1,154 @@
+package com.j2speed.exec.impl;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The base of the implementations generated at build time by
+ * {@link com.j2speed.exec.processor.ExecProcessor}, used by {@link TypeCompiler#compile()} in place
+ * of a {@link Proxy} when found.
+ * <p>
+ * A generated implementation keeps the handler of each method in a field, so an invocation is a
+ * direct call of its handler: no {@link InvocationHandler} in between and no lookup of the
+ * handler of the invoked method.
+ * <p>
+ * A generated implementation is named after its interface, as in {@code Outer$Inner$$Exec} for the
+ * interface {@code Outer.Inner}, and has a constructor taking the handlers of the methods.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+public abstract class Implementation {
+   /**
+    * The suffix of the binary name of the implementation of an interface.
+    */
+   public static final String SUFFIX = "$$Exec";
+
+   private static final Constructors CONSTRUCTORS = new Constructors();
+
+   @NonNull
+   private final Map<Method, MethodInvocationHandler> handlers;
+
+   /**
+    * @param handlers
+    *           the handlers of the methods of the implemented interface.
+    */
+   protected Implementation(@NonNull Map<Method, MethodInvocationHandler> handlers) {
+      this.handlers = handlers;
+   }
+
+   /**
+    * Gets the handler of a method, once, when the implementation is created.
+    *
+    * @param type
+    *           the implemented interface.
+    * @param name
+    *           the name of the method.
+    * @param parameterTypes
+    *           the parameter types of the method.
+    * @return the handler of the method.
+    */
+   @NonNull
+   protected final MethodInvocationHandler handler(@NonNull Class<?> type, @NonNull String name,
+            @NonNull Class<?>... parameterTypes) {
+      final MethodInvocationHandler handler;
+      try {
+         handler = handlers.get(type.getMethod(name, parameterTypes));
+      } catch (NoSuchMethodException e) {
+         throw new IllegalStateException("Implementation of " + type + " out of date", e);
+      }
+      if (handler == null) {
+         throw new IllegalStateException("Method " + name + " of " + type + " not mapped");
+      }
+      return handler;
+   }
+
+   /**
+    * Gets the handler of a method of a compiled proxy or implementation.
+    *
+    * @param compiled
+    *           the compiled proxy or implementation.
+    * @param method
+    *           the method.
+    * @return the handler of the method, {@code null} if not found.
+    */
+   @CheckForNull
+   static MethodInvocationHandler handlerOf(@NonNull Object compiled, @NonNull Method method) {
+      if (compiled instanceof Implementation) {
+         return ((Implementation) compiled).handlers.get(method);
+      }
+      if (!Proxy.isProxyClass(compiled.getClass())) {
+         throw new IllegalArgumentException("Not a compiled proxy: " + compiled);
+      }
+      InvocationHandler handler = Proxy.getInvocationHandler(compiled);
+      if (handler instanceof MultiMethodInvocationHanlder) {
+         handler = ((MultiMethodInvocationHanlder) handler).get(method);
+      }
+      return handler instanceof MethodInvocationHandler ? (MethodInvocationHandler) handler : null;
+   }
+
+   /**
+    * Creates the generated implementation of an interface, if any.
+    *
+    * @param type
+    *           the interface.
+    * @param handlers
+    *           the handlers of the methods of the interface.
+    * @return the implementation, {@code null} if none was generated for the interface.
+    */
+   @CheckForNull
+   static <T> T create(@NonNull Class<T> type,
+            @NonNull Map<Method, MethodInvocationHandler> handlers) {
+      final Constructor<?> constructor = CONSTRUCTORS.get(type);
+      if (constructor == null) {
+         return null;
+      }
+      try {
+         return type.cast(constructor.newInstance(handlers));
+      } catch (InvocationTargetException e) {
+         final Throwable cause = e.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IllegalStateException("Cannot create " + constructor.getDeclaringClass(),
+                  cause);
+      } catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("Cannot create " + constructor.getDeclaringClass(), e);
+      }
+   }
+
+   /**
+    * Looks up the generated implementations once per interface, as a class not found is costly.
+    */
+   private static final class Constructors extends ClassValue<Constructor<?>> {
+      @Override
+      protected Constructor<?> computeValue(Class<?> type) {
+         final Class<?> implementation;
+         try {
+            implementation = Class.forName(type.getName() + SUFFIX, false, type.getClassLoader());
+         } catch (ClassNotFoundException e) {
+            return null;
+         }
+         if (!Implementation.class.isAssignableFrom(implementation)
+                  || !type.isAssignableFrom(implementation)) {
+            return null;
+         }
+         try {
+            final Constructor<?> constructor = implementation.getDeclaredConstructor(Map.class);
+            constructor.setAccessible(true);
+            return constructor;
+         } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Implementation of " + type + " out of date", e);
+         }
+      }
+   }
+}
@@ -0,0 +1,133 @@
+package com.j2speed.exec.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The output of a command, as built by a {@link SpillingResultBuilder}.
+ * <p>
+ * The output is held in a heap buffer if it is small, otherwise it is held in a temporary file and
+ * exposed as a sequence of read-only memory mapped segments. The temporary file is released when
+ * the output is closed, which should be done as soon as the output is not needed anymore.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+public final class LargeOutput implements Closeable {
+   @NonNull
+   private final ByteBuffer[] segments;
+   private final long size;
+   @CheckForNull
+   private final FileChannel file;
+
+   LargeOutput(@NonNull ByteBuffer[] segments, long size, @CheckForNull FileChannel file) {
+      this.segments = segments;
+      this.size = size;
+      this.file = file;
+   }
+
+   /**
+    * @return the total number of bytes in the output.
+    */
+   public long size() {
+      return size;
+   }
+
+   /**
+    * @return whether the output has been spilled to a file.
+    */
+   public boolean isSpilled() {
+      return file != null;
+   }
+
+   /**
+    * @return the number of segments of the output.
+    */
+   public int segmentsCount() {
+      return segments.length;
+   }
+
+   /**
+    * Gets a segment of the output. Each segment is at most 1GB, so outputs larger than a
+    * {@link ByteBuffer} can be accessed.
+    *
+    * @param index
+    *           the index of the segment.
+    * @return a new read-only view of the segment, positioned at its beginning.
+    */
+   @NonNull
+   public ByteBuffer segment(int index) {
+      return segments[index].duplicate();
+   }
+
+   /**
+    * @return a new stream over the whole output.
+    */
+   @NonNull
+   public InputStream openStream() {
+      return new SegmentsInputStream();
+   }
+
+   /**
+    * Releases the temporary file, if any. The segments must not be accessed after the output is
+    * closed.
+    */
+   @Override
+   public void close() throws IOException {
+      if (file != null) {
+         // the file is opened to be deleted on close, on Unix it is unlinked already and its space
+         // is released once the mappings are collected too
+         file.close();
+      }
+   }
+
+   private final class SegmentsInputStream extends InputStream {
+      private int index;
+      @NonNull
+      private ByteBuffer current = segments.length > 0 ? segment(0) : ByteBuffer.allocate(0);
+
+      @Override
+      public int read() {
+         if (!next()) {
+            return -1;
+         }
+         return current.get() & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (len == 0) {
+            return 0;
+         }
+         if (!next()) {
+            return -1;
+         }
+         final int read = Math.min(len, current.remaining());
+         current.get(b, off, read);
+         return read;
+      }
+
+      @Override
+      public int available() {
+         return current.remaining();
+      }
+
+      private boolean next() {
+         while (!current.hasRemaining()) {
+            if (index + 1 >= segments.length) {
+               return false;
+            }
+            current = segment(++index);
+         }
+         return true;
+      }
+   }
+}
@@ -0,0 +1,113 @@
+package com.j2speed.exec.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A lock free histogram of durations, in nanoseconds, with a relative error of at most 12.5%.
+ * <p>
+ * Each power of two is divided in 8 linear buckets, so the whole range of a {@code long} fits in
+ * less than 500 counters, allocated once. Recording a value increments a single counter and does
+ * not allocate anything.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class LatencyHistogram {
+   private static final int SUB_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+   private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+   @NonNull
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   @NonNull
+   private final LongAdder total = new LongAdder();
+   @NonNull
+   private final AtomicLong max = new AtomicLong();
+
+   void record(long nanos) {
+      if (nanos < 0) {
+         nanos = 0;
+      }
+      counts.incrementAndGet(indexOf(nanos));
+      total.add(nanos);
+      long current;
+      while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+         // another thread recorded a new maximum
+      }
+   }
+
+   /**
+    * @return the number of recorded values.
+    */
+   long count() {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         count += counts.get(i);
+      }
+      return count;
+   }
+
+   /**
+    * @return the mean of the recorded values.
+    */
+   long mean() {
+      final long count = count();
+      return count == 0 ? 0 : total.sum() / count;
+   }
+
+   /**
+    * @return the maximum of the recorded values.
+    */
+   long max() {
+      return max.get();
+   }
+
+   /**
+    * @param percentile
+    *           the percentile, between {@code 0} and {@code 100}.
+    * @return the upper bound of the bucket holding the percentile of the recorded values.
+    */
+   long percentile(double percentile) {
+      final long[] snapshot = new long[BUCKETS];
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         count += snapshot[i] = counts.get(i);
+      }
+      if (count == 0) {
+         return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         if ((seen += snapshot[i]) >= rank) {
+            return Math.min(upperBound(i), max.get());
+         }
+      }
+      return max.get();
+   }
+
+   static int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      final int exponent = 63 - Long.numberOfLeadingZeros(value);
+      final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+   }
+
+   static long upperBound(int index) {
+      if (index < SUB_BUCKETS) {
+         return index;
+      }
+      final int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+      final long sub = index % SUB_BUCKETS;
+      final long width = 1L << (exponent - SUB_BITS);
+      return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+   }
+}
@@ -1,7 +1,11 @@
 package com.j2speed.exec.impl;
 
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
 import com.j2speed.exec.OutputProcessor;
 
@@ -9,55 +13,189 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
  * A line based {@link OutputProcessor}.
- * 
+ * <p>
+ * Lines are split on the bytes of the separator, and only then decoded, reusing the same decoder
+ * and buffers for all the lines. This requires a charset that encodes the separator as ASCII and
+ * never uses those bytes within other characters, as US-ASCII, UTF-8 and the ISO-8859 charsets.
+ *
  * @author Alessandro Nistico
  */
 public abstract class LineProcessor extends BaseOutputProcessor {
    private static final String platformSeparator = System.getProperty("line.separator");
 
    @NonNull
-   private final String separator;
-   private final int separatorLength;
-   private int separatorPosition;
+   private final byte[] separator;
+   /**
+    * For each prefix of the separator, the length of its longest proper prefix that is also a
+    * suffix, so a partial match can continue after a mismatch.
+    */
+   @NonNull
+   private final int[] fallback;
+   private int matched;
 
-   private Charset charset;
-   private final StringBuilder builder = new StringBuilder(64);
+   @NonNull
+   private final CharsetDecoder decoder;
+   /**
+    * The bytes of a line that spans more chunks of output.
+    */
+   @NonNull
+   private byte[] pending = new byte[64];
+   @NonNull
+   private ByteBuffer pendingBuffer = ByteBuffer.wrap(pending);
+   private int pendingLength;
+   @NonNull
+   private CharBuffer chars = CharBuffer.allocate(64);
 
    protected LineProcessor() {
       this(Charset.forName("US-ASCII"), platformSeparator);
    }
 
    protected LineProcessor(@NonNull Charset charset, @NonNull String separator) {
-      this.charset = charset;
-      this.separator = separator;
-      separatorLength = separator.length();
+      if (separator.isEmpty()) {
+         throw new IllegalArgumentException("Empty separator");
+      }
+      this.separator = separator.getBytes(charset);
+      if (this.separator.length != separator.length()) {
+         throw new IllegalArgumentException("The separator is not ASCII in " + charset);
+      }
+      for (int i = 0; i < separator.length(); i++) {
+         if (separator.charAt(i) != this.separator[i]) {
+            throw new IllegalArgumentException("The separator is not ASCII in " + charset);
+         }
+      }
+      this.fallback = fallback(this.separator);
+      this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE);
    }
 
    public final void process(ByteBuffer buffer) {
-      char[] chars = charset.decode(buffer).array();
-      char s = separator.charAt(separatorPosition);
-      for (int i = 0, charsCount = chars.length; i < charsCount; i++) {
-         char c = chars[i];
-         builder.append(c);
-         if (c == s) {
-            separatorPosition++;
-            if (separatorPosition == separatorLength) {
-               separatorPosition = 0;
-               builder.setLength(builder.length() - separatorLength);
-               try {
-                  process(builder.toString());
-               } finally {
-                  builder.setLength(0);
-               }
+      final byte[] separator = this.separator;
+      final int length = separator.length;
+      int start = buffer.position();
+      final int end = buffer.limit();
+      int matched = this.matched;
+      final byte[] array = buffer.hasArray() ? buffer.array() : null;
+      final int offset = array != null ? buffer.arrayOffset() : 0;
+      for (int i = start; i < end; i++) {
+         final byte b = array != null ? array[offset + i] : buffer.get(i);
+         while (matched > 0 && b != separator[matched]) {
+            matched = fallback[matched - 1];
+         }
+         if (b == separator[matched] && ++matched == length) {
+            matched = 0;
+            // the separator may have started in the previous chunk
+            final int lineEnd = i + 1 - length;
+            if (lineEnd < start) {
+               pendingLength -= start - lineEnd;
+               emit(buffer, start, start, end);
+            } else {
+               emit(buffer, start, lineEnd, end);
             }
+            start = i + 1;
          }
       }
+      this.matched = matched;
+      append(buffer, start, end, end);
+      buffer.position(end);
    }
-   
+
    @Override
    public final void done() {
-      process(builder.toString());
+      if (pendingLength > 0) {
+         final ByteBuffer line = pendingBuffer;
+         line.limit(pendingLength).position(0);
+         pendingLength = 0;
+         process(decode(line));
+      }
+      matched = 0;
    }
 
+   /**
+    * Processes a line, without the separator.
+    *
+    * @param line
+    */
    protected abstract void process(String line);
+
+   /**
+    * Processes a line, without the separator.
+    * <p>
+    * The default implementation passes the line as a {@link String} to {@link #process(String)}.
+    * Subclasses can override this method to avoid creating a {@link String} for each line, in which
+    * case {@link #process(String)} is not invoked.
+    *
+    * @param line
+    *           the line, only valid during this invocation as it is reused for the next lines.
+    */
+   protected void process(@NonNull CharSequence line) {
+      process(line.toString());
+   }
+
+   /**
+    * Processes the line ending at the given position of the buffer, the buffer limit is restored
+    * afterwards.
+    */
+   private void emit(@NonNull ByteBuffer buffer, int start, int end, int limit) {
+      final ByteBuffer line;
+      if (pendingLength == 0) {
+         // decoded in place, no copy is needed
+         buffer.limit(end).position(start);
+         line = buffer;
+      } else {
+         append(buffer, start, end, limit);
+         line = pendingBuffer;
+         line.limit(pendingLength).position(0);
+         pendingLength = 0;
+      }
+      try {
+         process(decode(line));
+      } finally {
+         buffer.limit(limit);
+      }
+   }
+
+   @NonNull
+   private CharSequence decode(@NonNull ByteBuffer line) {
+      final int required = (int) (line.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+      if (chars.capacity() < required) {
+         chars = CharBuffer.allocate(Math.max(required, chars.capacity() << 1));
+      }
+      final CharBuffer chars = this.chars;
+      chars.clear();
+      decoder.reset();
+      decoder.decode(line, chars, true);
+      decoder.flush(chars);
+      chars.flip();
+      return chars;
+   }
+
+   private void append(@NonNull ByteBuffer buffer, int start, int end, int limit) {
+      final int count = end - start;
+      if (count == 0) {
+         return;
+      }
+      if (pendingLength + count > pending.length) {
+         pending = Arrays.copyOf(pending, Math.max(pendingLength + count, pending.length << 1));
+         pendingBuffer = ByteBuffer.wrap(pending);
+      }
+      buffer.limit(end).position(start);
+      buffer.get(pending, pendingLength, count);
+      buffer.limit(limit);
+      pendingLength += count;
+   }
+
+   @NonNull
+   private static int[] fallback(@NonNull byte[] separator) {
+      final int[] fallback = new int[separator.length];
+      for (int i = 1, k = 0; i < separator.length; i++) {
+         while (k > 0 && separator[i] != separator[k]) {
+            k = fallback[k - 1];
+         }
+         if (separator[i] == separator[k]) {
+            k++;
+         }
+         fallback[i] = k;
+      }
+      return fallback;
+   }
 }
@@ -1,15 +1,22 @@
 package com.j2speed.exec.impl;
 
+import static com.j2speed.exec.impl.MethodInvocationHandler.isStreamed;
+import static com.j2speed.exec.impl.MethodInvocationHandler.resultType;
+
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.j2speed.exec.ErrorBuilderFactory;
 import com.j2speed.exec.ResultBuilderFactory;
 import com.j2speed.exec.Run;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 public final class MethodCompiler<T> extends Compiler<T> {
@@ -17,6 +24,8 @@ public final class MethodCompiler<T> extends Compiler<T> {
 
    private Method method;
    private String command;
+   @CheckForNull
+   private MethodMetrics metrics;
 
    MethodCompiler(@NonNull TypeCompiler<T> global, @NonNull Method method) {
       this.global = global;
@@ -81,7 +90,7 @@ public final class MethodCompiler<T> extends Compiler<T> {
    @Override
    protected File commandDirectory() {
       if (super.commandDirectory() != null) {
-         return super.workingDirectory();
+         return super.commandDirectory();
       }
       return global.commandDirectory();
    }
@@ -128,33 +137,227 @@ public final class MethodCompiler<T> extends Compiler<T> {
          return global.errorFactory();
    }
 
+   @Override
+   public MethodCompiler<T> pooled(int size, int maxRequests) {
+      super.pooled(size, maxRequests);
+      return this;
+   }
+
+   @Override
+   protected int poolSize() {
+      if (super.poolSize() > 0)
+         return super.poolSize();
+      else
+         return global.poolSize();
+   }
+
+   @Override
+   protected int maxRequests() {
+      if (super.poolSize() > 0)
+         return super.maxRequests();
+      else
+         return global.maxRequests();
+   }
+
+   @Override
+   public MethodCompiler<T> delimiter(String delimiter) {
+      super.delimiter(delimiter);
+      return this;
+   }
+
+   @Override
+   protected String delimiter() {
+      if (super.delimiter() != null)
+         return super.delimiter();
+      else
+         return global.delimiter();
+   }
+
+   @Override
+   public MethodCompiler<T> lengthPrefix(boolean lengthPrefix) {
+      super.lengthPrefix(lengthPrefix);
+      return this;
+   }
+
+   @Override
+   protected boolean lengthPrefix() {
+      if (super.lengthPrefix())
+         return super.lengthPrefix();
+      else
+         return global.lengthPrefix();
+   }
+
+   @Override
+   public MethodCompiler<T> virtualThreads(boolean virtualThreads) {
+      super.virtualThreads(virtualThreads);
+      return this;
+   }
+
+   @Override
+   protected boolean virtualThreads() {
+      if (super.virtualThreads())
+         return super.virtualThreads();
+      else
+         return global.virtualThreads();
+   }
+
+   @Override
+   public MethodCompiler<T> bufferSize(int bufferSize) {
+      super.bufferSize(bufferSize);
+      return this;
+   }
+
+   @Override
+   protected int bufferSize() {
+      if (super.bufferSize() > 0)
+         return super.bufferSize();
+      else
+         return global.bufferSize();
+   }
+
+   @Override
+   public MethodCompiler<T> multiplexed(boolean multiplexed) {
+      super.multiplexed(multiplexed);
+      return this;
+   }
+
+   @Override
+   protected boolean multiplexed() {
+      if (super.multiplexed())
+         return super.multiplexed();
+      else
+         return global.multiplexed();
+   }
+
+   @Override
+   public MethodCompiler<T> metrics(boolean metrics) {
+      super.metrics(metrics);
+      return this;
+   }
+
+   @Override
+   protected boolean metrics() {
+      if (super.metrics())
+         return super.metrics();
+      else
+         return global.metrics();
+   }
+
+   /**
+    * Bounds the number of processes started by this method, in addition to the bound of the type.
+    */
+   @Override
+   public MethodCompiler<T> maxConcurrent(int max, int maxQueued, long maxWait) {
+      super.maxConcurrent(max, maxQueued, maxWait);
+      return this;
+   }
+
+   @Override
+   public MethodCompiler<T> cacheable(int size, long ttl, long failureTtl) {
+      super.cacheable(size, ttl, failureTtl);
+      return this;
+   }
+
+   /**
+    * Caches the results of this method if set on this method or on the type.
+    */
+   @Override
+   @CheckForNull
+   ResultCache newCache(@NonNull String name) {
+      final ResultCache cache = super.newCache(name);
+      return cache != null ? cache : global.newCache(name);
+   }
+
+   @Override
+   public MethodCompiler<T> persistentCache(File directory, long maxSize, boolean stamps) {
+      super.persistentCache(directory, maxSize, stamps);
+      return this;
+   }
+
+   /**
+    * Keeps the output of this method on disk if set on this method or on the type.
+    */
+   @Override
+   @CheckForNull
+   DiskCache newDiskCache(@NonNull String name) {
+      final DiskCache cache = super.newDiskCache(name);
+      return cache != null ? cache : global.newDiskCache(name);
+   }
+
+   @Override
+   public MethodCompiler<T> singleFlight(boolean singleFlight) {
+      super.singleFlight(singleFlight);
+      return this;
+   }
+
+   @Override
+   protected boolean singleFlight() {
+      if (super.singleFlight())
+         return super.singleFlight();
+      else
+         return global.singleFlight();
+   }
+
+   @Override
+   public MethodCompiler<T> revalidate(boolean revalidate) {
+      super.revalidate(revalidate);
+      return this;
+   }
+
+   @Override
+   protected boolean revalidate() {
+      if (super.revalidate())
+         return super.revalidate();
+      else
+         return global.revalidate();
+   }
+
    @Override
    public T compile() {
       return global.compile();
    }
 
-   MethodInvocationHandler newHandler() {
+   MethodInvocationHandler newHandler(@CheckForNull Admission typeAdmission) {
       if (command == null || command.isEmpty()) {
          throw new IllegalStateException("No command specified for method " + method);
       }
-      ProcessBuilder builder = new ProcessBuilder(new ArrayList<String>());
-      List<Argument> arguments = new LinkedList<Argument>();
+      Map<String, String> environment = new HashMap<String, String>();
+      if (global.environment() != null && !global.environment().isEmpty()) {
+         environment.putAll(global.environment());
+      }
+      if (environment() != null && !environment().isEmpty()) {
+         environment.putAll(environment());
+      }
 
-      return parseCommand(builder, arguments);
+      // compiled once for all the methods and compilers with the same command and settings
+      final TemplateRegistry.Key key = new TemplateRegistry.Key(command, commandDirectory(),
+               workingDirectory(), environment, redirectError());
+      CommandTemplate template = TemplateRegistry.get(key, revalidate());
+      if (template == null) {
+         List<String> tokens = new ArrayList<String>();
+         List<Argument> arguments = new LinkedList<Argument>();
+         template = parseCommand(key, tokens, arguments, environment);
+      }
+      return newHandler(template, typeAdmission);
    }
 
-   private MethodInvocationHandler parseCommand(ProcessBuilder builder, List<Argument> arguments) {
-      List<String> tokens = builder.command();
+   @NonNull
+   private CommandTemplate parseCommand(@NonNull TemplateRegistry.Key key, List<String> tokens,
+            List<Argument> arguments, @NonNull Map<String, String> environment) {
 
       boolean quoting = false;
       int tokenStart = 0;
       String prefix = null;
       int index = -1;
+      // the first token of each stage of a pipeline
+      List<Integer> stages = new ArrayList<Integer>();
+      stages.add(0);
 
       parsing: for (int cIdx = 0, strLength = command.length(); cIdx < strLength;) {
 
          final char ch = command.charAt(cIdx++);
          switch (ch) {
+         case '|': // pipe to the next stage
          case ' ':
             if (!quoting) {
                if (prefix != null) {
@@ -165,6 +368,10 @@ public final class MethodCompiler<T> extends Compiler<T> {
                }
                prefix = null;
                tokenStart = cIdx;
+               if (ch == '|') {
+                  checkStageNotEmpty(stages, tokens);
+                  stages.add(tokens.size());
+               }
             }
             continue parsing;
 
@@ -196,49 +403,106 @@ public final class MethodCompiler<T> extends Compiler<T> {
       } else if (tokenStart < command.length()) {
          tokens.add(command.substring(tokenStart));
       }
+      checkStageNotEmpty(stages, tokens);
 
+      // the executables are resolved once, rather than searched at each start of a process
       File commandDirectory = commandDirectory();
-      if (commandDirectory != null) {
-         if (!commandDirectory.isDirectory()) {
-            throw new IllegalArgumentException(commandDirectory + " is not a directory");
-         }
-         File cmd = new File(commandDirectory, tokens.get(0));
-         if (!cmd.exists()) {
-            throw new IllegalArgumentException("The specified command " + cmd + " does not exist");
-         }
-         if (!cmd.canExecute()) {
-            throw new IllegalArgumentException("The specified command " + cmd
-                     + " cannot be executed");
+      if (commandDirectory != null && !commandDirectory.isDirectory()) {
+         throw new IllegalArgumentException(commandDirectory + " is not a directory");
+      }
+      final Executable[] executables = new Executable[stages.size()];
+      for (int i = 0; i < executables.length; i++) {
+         final int stage = stages.get(i);
+         executables[i] = commandDirectory != null ? Executable.in(commandDirectory, tokens
+                  .get(stage)) : Executable.resolve(tokens.get(stage));
+         if (executables[i] != null) {
+            tokens.set(stage, executables[i].path());
          }
-         tokens.set(0, "\"" + cmd.getAbsolutePath() + "\"");
       }
 
-      builder.directory(workingDirectory());
-
-      builder.redirectErrorStream(redirectError());
-
-      if (global.environment() != null && !global.environment().isEmpty()) {
-         builder.environment().putAll(global.environment());
-      }
-      if (environment() != null && !environment().isEmpty()) {
-         builder.environment().putAll(environment());
+      final int[] stageStarts = new int[stages.size()];
+      for (int i = 0; i < stageStarts.length; i++) {
+         stageStarts[i] = stages.get(i);
       }
+      final CommandTemplate template = new CommandTemplate(tokens, arguments, stageStarts,
+               workingDirectory(), environment, redirectError());
+      TemplateRegistry.put(key, template, executables);
+      return template;
+   }
 
-      final ResultBuilderFactory<?> resultBuilderFactory = method.getReturnType() == Void.class ? null
+   @NonNull
+   private MethodInvocationHandler newHandler(@NonNull CommandTemplate template,
+            @CheckForNull Admission typeAdmission) {
+      final String name = method.toString();
+      final Admission admission = newAdmission(name, typeAdmission);
+      final Executor processor = Controller.processor(virtualThreads());
+      final OutputMultiplexer multiplexer = Controller.multiplexer(multiplexed());
+      final OutputBuffers buffers = new OutputBuffers(bufferSize());
+      final ResultCache cache = newCache(name);
+      final DiskCache diskCache = newDiskCache(name);
+      final Coalescer coalescer = singleFlight() ? new Coalescer(name) : null;
+      final MethodMetrics metrics = this.metrics = Controller.metrics(metrics(), method,
+               admission, cache, coalescer);
+
+      final ResultBuilderFactory<?> resultBuilderFactory = resultType(method) == Void.class ? null
                : resultFactory();
+      if (poolSize() > 0) {
+         if (template.argumentsCount() > 0) {
+            throw new IllegalArgumentException("Binding parameters are not allowed in the command"
+                     + " of pooled method " + method);
+         }
+         if (template.stagesCount() > 1) {
+            throw new IllegalArgumentException("Pipelines are not allowed in the command of pooled"
+                     + " method " + method);
+         }
+         if (cache != null || diskCache != null || coalescer != null) {
+            throw new IllegalArgumentException("Pooled method " + method
+                     + " cannot be cached nor coalesced");
+         }
+         if (isStreamed(method)) {
+            throw new IllegalArgumentException("Pooled method " + method
+                     + " cannot return its output, which is shared by the requests");
+         }
+         final String delimiter = delimiter();
+         return new PooledInvocationHandler(method, timeout(), normalTermination(),
+                  resultBuilderFactory, errorFactory(), template, processor, new WorkerPool(
+                           template, processor, poolSize(), maxRequests(),
+                           delimiter != null ? delimiter : "\n", lengthPrefix()), admission, metrics);
+      }
+
       final Class<?>[] parameterTypes = method.getParameterTypes();
       if (parameterTypes == null || parameterTypes.length == 0) {
          return new NoArgsInvocationHandler(method, timeout(), normalTermination(),
-                  resultBuilderFactory, errorFactory(), builder, arguments);
+                  resultBuilderFactory, errorFactory(), template, processor, multiplexer,
+                  buffers, admission, metrics, cache, diskCache, coalescer);
       }
 
       if (parameterTypes[parameterTypes.length - 1].isArray()) {
          return new VarargsInvocationHandler(method, timeout(), normalTermination(),
-                  resultBuilderFactory, errorFactory(), builder, arguments);
+                  resultBuilderFactory, errorFactory(), template, processor, multiplexer,
+                  buffers, admission, metrics, cache, diskCache, coalescer);
       }
 
       return new MethodInvocationHandler(method, timeout(), normalTermination(),
-               resultBuilderFactory, errorFactory(), builder, arguments);
+               resultBuilderFactory, errorFactory(), template, processor, multiplexer, buffers,
+               admission, metrics, cache, diskCache, coalescer);
+   }
+
+   /**
+    * Exposes the metrics of the last compiled handler, if recorded, until the compiled proxy is
+    * unreachable.
+    */
+   void expose(@NonNull Object compiled) {
+      if (metrics != null) {
+         Controller.expose(metrics, compiled);
+         metrics = null;
+      }
+   }
+
+   private void checkStageNotEmpty(@NonNull List<Integer> stages, @NonNull List<String> tokens) {
+      if (stages.get(stages.size() - 1) == tokens.size()) {
+         throw new IllegalArgumentException("Empty pipeline stage in \"" + command + "\"");
+      }
    }
 
    private static void checkCharacterIs(char expected, int cIdx, String str) {
@@ -4,30 +4,57 @@
 package com.j2speed.exec.impl;
 
 import static com.j2speed.exec.impl.Controller.done;
-import static com.j2speed.exec.impl.Controller.pump;
 import static com.j2speed.exec.impl.Controller.register;
 import static com.j2speed.exec.impl.OutputPump.pump;
+import static com.j2speed.exec.impl.ProcessEvents.spawned;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.ProcessBuilder.Redirect;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import com.j2speed.exec.Env;
 import com.j2speed.exec.ErrorBuilder;
 import com.j2speed.exec.ErrorBuilderFactory;
 import com.j2speed.exec.ExecutionException;
+import com.j2speed.exec.OutputFile;
 import com.j2speed.exec.OutputProcessor;
+import com.j2speed.exec.Priority;
+import com.j2speed.exec.Processor;
 import com.j2speed.exec.ResultBuilder;
 import com.j2speed.exec.ResultBuilderFactory;
 import com.j2speed.exec.Timeout;
+import com.j2speed.exec.TimeoutException;
 import com.j2speed.exec.WorkingDir;
+import com.j2speed.exec.impl.ProcessEvents.RecordedOutput;
+import com.j2speed.exec.impl.ProcessEvents.SpawnEvent;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -62,21 +89,52 @@ public class MethodInvocationHandler implements InvocationHandler {
 
    };
 
+   /**
+    * The admission of the invocations of the methods without a bound.
+    */
+   private static final CompletableFuture<Void> ADMITTED = CompletableFuture.completedFuture(null);
+
+   private final boolean async;
+   /**
+    * Whether the method returns the output of the command, read lazily by the caller.
+    */
+   private final boolean streamed;
    private final int normalTermination;
+   /**
+    * The name of the method, in the recorded events.
+    */
+   @NonNull
+   private final String name;
    @NonNull
-   private final ProcessBuilder builder;
+   private final CommandTemplate template;
    @NonNull
-   private final Map<String, String> environment;
+   private final Executor processor;
+   @CheckForNull
+   private final OutputMultiplexer multiplexer;
    @NonNull
-   private final Argument[] arguments;
+   private final OutputBuffers buffers;
    @CheckForNull
-   private OutputProcessor outputProcessor;
+   private final Admission admission;
+   @CheckForNull
+   private final MethodMetrics metrics;
+   @CheckForNull
+   private final ResultCache cache;
+   @CheckForNull
+   private final DiskCache diskCache;
+   /**
+    * The indexes of the {@link File} and {@link Path} parameters bound to the command, whose
+    * changes invalidate the output cached on disk.
+    */
+   @NonNull
+   private final int[] inputFiles;
+   @CheckForNull
+   private final Coalescer coalescer;
    @CheckForNull
    private final ResultBuilderFactory<?> resultBuilderFactory;
    @CheckForNull
    private final ErrorBuilderFactory<?> errorBuilderFactory;
 
-   private long timeout;
+   private final long timeout;
 
    private final int outputProcessorIndex;
 
@@ -86,31 +144,45 @@ public class MethodInvocationHandler implements InvocationHandler {
 
    private final int timeoutIndex;
 
-   public MethodInvocationHandler(@NonNull Method method, long timeout, int normalTermination,
+   private final int outputFileIndex;
+
+   private final int priorityIndex;
+
+   private final boolean appendOutput;
+
+   @NonNull
+   private final Class<?> resultType;
+
+   MethodInvocationHandler(@NonNull Method method, long timeout, int normalTermination,
             @CheckForNull ResultBuilderFactory<?> resultBuilderFactory,
             @CheckForNull ErrorBuilderFactory<?> errorBuilderFactory,
-            @NonNull ProcessBuilder builder, @NonNull List<Argument> arguments) {
+            @NonNull CommandTemplate template, @NonNull Executor processor,
+            @CheckForNull OutputMultiplexer multiplexer, @NonNull OutputBuffers buffers,
+            @CheckForNull Admission admission, @CheckForNull MethodMetrics metrics,
+            @CheckForNull ResultCache cache, @CheckForNull DiskCache diskCache,
+            @CheckForNull Coalescer coalescer) {
 
-      final int argsCount = arguments.size();
+      final int argsCount = template.argumentsCount();
       final Class<?>[] params = method.getParameterTypes();
       final int paramsCount;
       if ((paramsCount = params.length) < argsCount) {
          throw new IllegalArgumentException("Not enough parameters in the method");
       }
 
-      if (resultBuilderFactory != null) {
-         if (method.getReturnType() != resultBuilderFactory.getResultType()) {
-            throw new IllegalArgumentException("Incompatible result type "
-                     + resultBuilderFactory.getResultType() + ", expected "
-                     + method.getReturnType());
-         }
+      final Class<?> resultType = resultType(method);
+      final boolean streamed = isStreamed(method);
+      if (streamed) {
+         // the caller reads the output, so there is nothing to build
+         resultBuilderFactory = null;
       }
 
       int outputProcessorIndex = -1;
+      int outputFileIndex = -1;
+      boolean appendOutput = false;
       int workingDirIndex = -1;
       int environmentIndex = -1;
       int timeoutIndex = -1;
-      Map<String, String> environment = Collections.emptyMap();
+      int priorityIndex = -1;
       final Annotation[][] annotations = method.getParameterAnnotations();
       for (int i = 0; i < paramsCount; i++) {
          if (OutputProcessor.class.isAssignableFrom(params[i])) {
@@ -121,7 +193,7 @@ public class MethodInvocationHandler implements InvocationHandler {
             // If an output processor parameter is used, the return value of the method should
             // be void and the factory should be set to null
             resultBuilderFactory = null;
-            if (method.getReturnType() != void.class) {
+            if (resultType != void.class && resultType != Void.class) {
                throw new IllegalStateException("Method " + method
                         + " has an OutputProcessor parameter and should return void");
             }
@@ -132,100 +204,868 @@ public class MethodInvocationHandler implements InvocationHandler {
             continue;
          }
 
-         if (contains(paramAnnotations, WorkingDir.class, Env.class, Timeout.class)) {
+         if (contains(paramAnnotations, WorkingDir.class, Env.class, Timeout.class,
+                  OutputFile.class, Priority.class)) {
             if (!File.class.isAssignableFrom(params[i])) {
                throw new IllegalArgumentException("@WorkingDir requires a parameter type of "
                         + File.class);
             }
             workingDirIndex = i;
-         } else if (contains(paramAnnotations, Env.class, WorkingDir.class, Timeout.class)) {
+         } else if (contains(paramAnnotations, Env.class, WorkingDir.class, Timeout.class,
+                  OutputFile.class, Priority.class)) {
             if (!Map.class.isAssignableFrom(params[i])) {
                throw new IllegalArgumentException("@Env requires a parameter type of " + Map.class
                         + "<String,String>");
             }
             environmentIndex = i;
-            environment = builder.environment();
-         } else if (contains(paramAnnotations, Timeout.class, WorkingDir.class, Env.class)) {
+         } else if (contains(paramAnnotations, Timeout.class, WorkingDir.class, Env.class,
+                  OutputFile.class, Priority.class)) {
             if (params[i] != long.class) {
                throw new IllegalArgumentException("@Timeout requires a parameter type of "
                         + long.class);
             }
             timeoutIndex = i;
+         } else if (contains(paramAnnotations, OutputFile.class, WorkingDir.class, Env.class,
+                  Timeout.class, Priority.class)) {
+            if (params[i] != File.class && params[i] != Path.class) {
+               throw new IllegalArgumentException("@OutputFile requires a parameter type of "
+                        + File.class + " or " + Path.class);
+            }
+            if (outputFileIndex != -1) {
+               throw new IllegalArgumentException("Only one @OutputFile is allowed");
+            }
+            outputFileIndex = i;
+            for (Annotation a : paramAnnotations) {
+               if (a instanceof OutputFile) {
+                  appendOutput = ((OutputFile) a).append();
+               }
+            }
+            // the output goes straight to the file, so there is nothing to build
+            resultBuilderFactory = null;
+            if (resultType != void.class && resultType != Void.class && resultType != File.class
+                     && resultType != Path.class) {
+               throw new IllegalStateException("Method " + method
+                        + " has an @OutputFile parameter and should return void, " + File.class
+                        + " or " + Path.class);
+            }
+         } else if (contains(paramAnnotations, Priority.class, WorkingDir.class, Env.class,
+                  Timeout.class, OutputFile.class)) {
+            if (params[i] != int.class) {
+               throw new IllegalArgumentException("@Priority requires a parameter type of "
+                        + int.class);
+            }
+            priorityIndex = i;
          }
       }
 
+      if (outputProcessorIndex != -1 && outputFileIndex != -1) {
+         throw new IllegalArgumentException("@OutputFile cannot be used with an OutputProcessor");
+      }
+      if (streamed && (outputProcessorIndex != -1 || outputFileIndex != -1)) {
+         throw new IllegalArgumentException("Method " + method
+                  + " returns its output, it cannot have an OutputProcessor nor an @OutputFile");
+      }
+      if ((cache != null || diskCache != null || coalescer != null)
+               && (outputProcessorIndex != -1 || outputFileIndex != -1 || streamed)) {
+         throw new IllegalArgumentException("Method " + method
+                  + " cannot be cached nor coalesced, its output is not a result");
+      }
+
+      if (resultBuilderFactory != null) {
+         if (resultType != resultBuilderFactory.getResultType()) {
+            throw new IllegalArgumentException("Incompatible result type "
+                     + resultBuilderFactory.getResultType() + ", expected " + resultType);
+         }
+      }
+
+      this.async = isAsync(method);
+      this.streamed = streamed;
       this.normalTermination = normalTermination;
+      this.name = method.getDeclaringClass().getName() + '.' + method.getName();
       this.timeout = timeout;
-      this.builder = builder;
-      this.arguments = arguments.toArray(new Argument[argsCount]);
+      this.template = template;
+      this.processor = processor;
+      // an output processor is allowed to block, so it is never multiplexed, nor are pipelines,
+      // nor the outputs read by the caller
+      this.multiplexer = outputProcessorIndex == -1 && template.stagesCount() == 1 && !streamed
+               ? multiplexer : null;
+      this.buffers = buffers;
+      this.admission = admission;
+      this.metrics = metrics;
+      this.cache = cache;
+      this.diskCache = diskCache;
+      this.coalescer = coalescer;
       this.resultBuilderFactory = resultBuilderFactory;
       this.errorBuilderFactory = errorBuilderFactory;
       this.outputProcessorIndex = outputProcessorIndex;
       this.workingDirIndex = workingDirIndex;
       this.environmentIndex = environmentIndex;
-      this.environment = environment;
       this.timeoutIndex = timeoutIndex;
+      this.outputFileIndex = outputFileIndex;
+      this.priorityIndex = priorityIndex;
+      this.appendOutput = appendOutput;
+      int inputs = 0;
+      final int[] inputFiles = new int[paramsCount];
+      for (int i = 0; i < paramsCount; i++) {
+         if ((params[i] == File.class || params[i] == Path.class) && notExecutionParameter(i)) {
+            inputFiles[inputs++] = i;
+         }
+      }
+      this.inputFiles = Arrays.copyOf(inputFiles, inputs);
+      this.resultType = resultType;
    }
 
+   /**
+    * Invokes the command.
+    * <p>
+    * If the method returns a {@link Future}, the command is executed asynchronously and the
+    * returned future completes, normally or exceptionally, when the command terminates. The result
+    * is then built as a continuation of the exit of the process, so no thread waits for it.
+    * <p>
+    * If the method returns an {@link InputStream}, a {@link Stream} or an {@link Iterator}, the
+    * command is started and its output returned as is, read by the caller as the command writes
+    * it. The command is checked at the end of its output, and killed if the output is closed
+    * before.
+    * <p>
+    * If the number of running processes is bounded, the invocation waits for its turn first.
+    * <p>
+    * If the results are cached, the command runs only if the cache does not hold the result of the
+    * same command line, working directory and environment. Then, if the outputs are cached on
+    * disk, a cached output is read on the calling thread and passed to a new result builder.
+    * <p>
+    * If the invocations are coalesced, an invocation identical to a running one waits for the
+    * result of the running one, rather than running the command.
+    */
    @Override
-   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-      final Process process;
-      final boolean redirectError;
-      final long timeout;
-      final OutputProcessor output;
-      synchronized (builder) {
-         process = start(builder, arguments, args);
-         output = outputProcessor;
-         redirectError = builder.redirectErrorStream();
-         timeout = this.timeout;
+   public final Object invoke(Object proxy, Method method, final Object[] args) throws Throwable {
+      final MethodMetrics metrics = this.metrics;
+      if (metrics == null) {
+         return dispatch(args);
       }
-      final Watchdog watchdog = register(process, timeout);
+      final long start = metrics.started();
+      final Object result;
+      try {
+         result = dispatch(args);
+      } catch (Throwable th) {
+         metrics.completed(start, true);
+         throw th;
+      }
+      if (async) {
+         ((CompletableFuture<?>) result).whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable failure) {
+               metrics.completed(start, failure != null);
+            }
+         });
+      } else {
+         metrics.completed(start, false);
+      }
+      return result;
+   }
 
-      final ErrorBuilder<?> error = processError(process, redirectError);
-      final ResultBuilder<?> result = processOutput(process, output);
+   private Object dispatch(@CheckForNull Object[] args) throws Throwable {
+      if (cache == null && coalescer == null) {
+         return load(args);
+      }
+      final ResultCache.Key key = ResultCache.key(command(template, args), workingDirectory(args),
+               environment(args));
+      if (cache == null) {
+         return coalesce(key, args);
+      }
+      final ResultCache.Entry cached = cache.get(key);
+      if (cached != null) {
+         return async ? cached.future() : cached.get();
+      }
+      final Object result;
+      try {
+         result = coalesce(key, args);
+      } catch (Throwable th) {
+         cache.failed(key, th);
+         throw th;
+      }
+      if (async) {
+         // the caller sees the result once cached
+         return ((CompletableFuture<?>) result).whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable failure) {
+               if (failure == null) {
+                  cache.put(key, result);
+               } else {
+                  cache.failed(key, failure instanceof CompletionException
+                           && failure.getCause() != null ? failure.getCause() : failure);
+               }
+            }
+         });
+      }
+      cache.put(key, result);
+      return result;
+   }
 
-      watchdog.cancel();
-      if (process.exitValue() != normalTermination) {
-         throw buildError(error);
+   private Object run(@CheckForNull final Object[] args) throws Throwable {
+      if (streamed) {
+         return stream(args);
       }
+      if (multiplexer != null) {
+         return invokeMultiplexed(args);
+      }
+      if (!async) {
+         return executeAdmitted(args);
+      }
+      final CompletableFuture<Object> future = new CompletableFuture<Object>();
+      admit(args).whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+         @Override
+         public void accept(Void admitted, Throwable failure) {
+            if (failure != null) {
+               future.completeExceptionally(cause(failure));
+               return;
+            }
+            final CompletableFuture<Object> execution = execution(future);
+            if (future.isDone()) {
+               // cancelled while waiting for its turn
+               execution.cancel(false);
+               return;
+            }
+            try {
+               executeAsync(args, execution);
+            } catch (Throwable th) {
+               execution.completeExceptionally(th);
+            }
+         }
+      }, processor);
+      return future;
+   }
+
+   /**
+    * Executes the command on a processor thread, once admitted, which pumps the output and leaves,
+    * the future is completed when the process exits.
+    * 
+    * @param args
+    *           the invocation arguments.
+    * @param future
+    *           the future to complete with the result of the command.
+    */
+   void executeAsync(@CheckForNull Object[] args, @NonNull final CompletableFuture<Object> future)
+            throws Throwable {
+      if (template.stagesCount() > 1) {
+         future.complete(execute(args));
+         return;
+      }
+      final File output = outputFile(args);
+      final ProcessBuilder builder = newBuilder(args, output);
+      final Process process = start(builder);
+      final Watchdog watchdog = register(process, timeout(args), metrics);
+
+      final ErrorBuilder<? extends Throwable> error;
+      final CompletableFuture<Void> errorPumped;
+      if (builder.redirectErrorStream()) {
+         error = null;
+         errorPumped = CompletableFuture.completedFuture(null);
+      } else {
+         error = newErrorBuilder();
+         errorPumped = CompletableFuture.runAsync(new OutputPump(process,
+                  process.getErrorStream(), error, stderr()), processor);
+      }
+      final ResultBuilder<?> result = pumpOutput(process, process, args);
 
-      return result.build();
+      CompletableFuture.allOf(errorPumped, process.onExit()).whenCompleteAsync(
+               new BiConsumer<Void, Throwable>() {
+                  @Override
+                  public void accept(Void exited, Throwable failure) {
+                     complete(process, watchdog, error, result, output, null, future);
+                  }
+               }, processor);
+   }
+
+   final Object executeAdmitted(@CheckForNull Object[] args) throws Throwable {
+      if (admission == null) {
+         return execute(args);
+      }
+      admission.acquire(priority(args));
+      try {
+         return execute(args);
+      } finally {
+         admission.release();
+      }
+   }
+
+   /**
+    * Executes the command, waiting for it to terminate.
+    * <p>
+    * No state is shared between invocations, apart from the immutable {@link CommandTemplate}, so
+    * concurrent callers never wait for each other.
+    * 
+    * @param args
+    *           the invocation arguments.
+    * @return the result of the command.
+    */
+   Object execute(@CheckForNull Object[] args) throws Throwable {
+      final File output = outputFile(args);
+      if (template.stagesCount() > 1) {
+         return executePipeline(args, output);
+      }
+      final ProcessBuilder builder = newBuilder(args, output);
+      final Process process = start(builder);
+      final Watchdog watchdog = register(process, timeout(args), metrics);
+
+      final ErrorBuilder<?> error = processError(process, builder.redirectErrorStream());
+      final ResultBuilder<?> result = processOutput(process, args);
+
+      try {
+         watchdog.cancel();
+         if (exited(process) != normalTermination) {
+            throw buildError(error);
+         }
+      } catch (Throwable th) {
+         discard(result);
+         throw th;
+      }
+
+      return output != null ? outputResult(output) : result.build();
+   }
+
+   /**
+    * Executes a pipeline, with the stages connected by the operating system, so only the output of
+    * the last stage is read. The pipeline fails if any of its stages fails, and the errors of all
+    * the failed stages are reported.
+    */
+   private Object executePipeline(@CheckForNull Object[] args, @CheckForNull File output)
+            throws Throwable {
+      final List<Process> processes = startPipeline(args, output);
+      final int count = processes.size();
+      final long timeout = timeout(args);
+      final Watchdog[] watchdogs = new Watchdog[count];
+      final ErrorBuilder<?>[] errors = new ErrorBuilder<?>[count];
+      for (int i = 0; i < count; i++) {
+         final Process process = processes.get(i);
+         watchdogs[i] = register(process, timeout, metrics);
+         errors[i] = processError(process, template.redirectError());
+      }
+      final ResultBuilder<?> result = processOutput(processes.get(0), processes.get(count - 1),
+               args);
+      try {
+         terminated(processes, watchdogs, errors);
+      } catch (Throwable th) {
+         discard(result);
+         throw th;
+      }
+
+      return output != null ? outputResult(output) : result.build();
    }
 
    @NonNull
-   Process start(ProcessBuilder builder, Argument[] arguments, @NonNull Object[] args)
+   private List<Process> startPipeline(@CheckForNull Object[] args, @CheckForNull File output)
             throws IOException {
-      final List<String> command = builder.command();
+      final List<String> command = command(template, args);
+      final File directory = workingDirectory(args);
+      final Map<String, String> environment = environment(args);
+      final int count = template.stagesCount();
+      final List<ProcessBuilder> builders = new ArrayList<ProcessBuilder>(count);
+      for (int i = 0; i < count; i++) {
+         builders.add(template.newBuilder(template.stage(command, i), directory, environment));
+      }
+      if (output != null) {
+         builders.get(count - 1).redirectOutput(redirect(output));
+      }
+      final SpawnEvent event = new SpawnEvent();
+      event.begin();
+      final long started = metrics != null ? System.nanoTime() : 0;
+      final List<Process> processes = ProcessBuilder.startPipeline(builders);
+      if (metrics != null) {
+         metrics.spawned(started);
+      }
+      spawned(event, name, command, processes.get(0));
+      return processes;
+   }
+
+   /**
+    * Waits for the processes of a command to exit, once its output ended, and checks them: the
+    * command fails if any of its processes timed out, or with the errors of all the processes
+    * terminated abnormally.
+    */
+   private void terminated(@NonNull List<Process> processes, @NonNull Watchdog[] watchdogs,
+            @NonNull ErrorBuilder<?>[] errors) throws Throwable {
+      for (Process process : processes) {
+         done(process);
+         process.waitFor();
+      }
+
+      TimeoutException timedOut = null;
+      for (Watchdog watchdog : watchdogs) {
+         try {
+            watchdog.cancel();
+         } catch (TimeoutException e) {
+            timedOut = e;
+         }
+      }
+      if (timedOut != null) {
+         throw timedOut;
+      }
+      Throwable error = null;
+      for (int i = 0, count = processes.size(); i < count; i++) {
+         if (exited(processes.get(i)) != normalTermination) {
+            final Throwable stageError = buildError(errors[i]);
+            if (error == null) {
+               error = stageError;
+            } else {
+               error.addSuppressed(stageError);
+            }
+         }
+      }
+      if (error != null) {
+         throw error;
+      }
+   }
+
+   /**
+    * Starts the command and returns its output, read lazily by the caller, who holds the slot of
+    * the invocation, if the running processes are bounded, until the end or the close of the
+    * output.
+    * <p>
+    * The input of the command is closed, as the caller has no way to write it.
+    */
+   @NonNull
+   private Object stream(@CheckForNull Object[] args) throws Throwable {
+      if (admission != null) {
+         admission.acquire(priority(args));
+      }
+      final InputStream output;
+      try {
+         output = startStreamed(args);
+      } catch (Throwable th) {
+         if (admission != null) {
+            admission.release();
+         }
+         throw th;
+      }
+      if (resultType == InputStream.class) {
+         return output;
+      }
+      return resultType == Stream.class ? ProcessOutput.lines(output) : ProcessOutput
+               .iterator(output);
+   }
+
+   @NonNull
+   private InputStream startStreamed(@CheckForNull Object[] args) throws IOException {
+      final List<Process> processes = template.stagesCount() > 1 ? startPipeline(args, null)
+               : Collections.singletonList(start(newBuilder(args, null)));
+      final int count = processes.size();
+      final long timeout = timeout(args);
+      final Watchdog[] watchdogs = new Watchdog[count];
+      final ErrorBuilder<?>[] errors = new ErrorBuilder<?>[count];
+      try {
+         for (int i = 0; i < count; i++) {
+            final Process process = processes.get(i);
+            watchdogs[i] = register(process, timeout, metrics);
+            errors[i] = processError(process, template.redirectError());
+         }
+         processes.get(0).getOutputStream().close();
+      } catch (Throwable th) {
+         for (Process process : processes) {
+            Controller.kill(process);
+         }
+         throw th;
+      }
+
+      return new ProcessOutput(processes.get(count - 1).getInputStream(), stdout()) {
+         @Override
+         protected void exited() throws IOException {
+            try {
+               terminated(processes, watchdogs, errors);
+            } catch (IOException e) {
+               throw e;
+            } catch (RuntimeException e) {
+               throw e;
+            } catch (Error e) {
+               throw e;
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new InterruptedIOException("Interrupted waiting for " + name);
+            } catch (Throwable th) {
+               // a read cannot throw the checked errors of the command
+               throw new ExecutionException(th);
+            } finally {
+               if (admission != null) {
+                  admission.release();
+               }
+            }
+         }
+
+         @Override
+         protected void abandoned() {
+            try {
+               for (Process process : processes) {
+                  Controller.kill(process);
+               }
+               for (Watchdog watchdog : watchdogs) {
+                  try {
+                     watchdog.cancel();
+                  } catch (TimeoutException e) {
+                     // killed anyway
+                  }
+               }
+            } finally {
+               if (admission != null) {
+                  admission.release();
+               }
+            }
+         }
+      };
+   }
+
+   @NonNull
+   private ProcessBuilder newBuilder(@CheckForNull Object[] args, @CheckForNull File output) {
+      final ProcessBuilder builder = template.newBuilder(command(template, args),
+               workingDirectory(args), environment(args));
+      if (output != null) {
+         // the output is written by the command itself, the JVM only sees an empty stream
+         builder.redirectOutput(redirect(output));
+      }
+      return builder;
+   }
+
+   /**
+    * Starts the command and hands its output to the multiplexer, so no thread waits for it to
+    * terminate unless the invocation is synchronous.
+    */
+   private Object invokeMultiplexed(@CheckForNull final Object[] args) throws Throwable {
+      final CompletableFuture<Object> future = new CompletableFuture<Object>();
+      // no thread waits for the turn of the invocation either, it is started by the thread
+      // releasing its slot
+      admit(args).whenComplete(new BiConsumer<Void, Throwable>() {
+         @Override
+         public void accept(Void admitted, Throwable failure) {
+            if (failure != null) {
+               future.completeExceptionally(cause(failure));
+               return;
+            }
+            final CompletableFuture<Object> execution = execution(future);
+            if (future.isDone()) {
+               execution.cancel(false);
+               return;
+            }
+            try {
+               executeMultiplexed(args, execution);
+            } catch (Throwable th) {
+               execution.completeExceptionally(th);
+            }
+         }
+      });
+      if (async) {
+         return future;
+      }
+      try {
+         return future.get();
+      } catch (java.util.concurrent.ExecutionException e) {
+         throw e.getCause();
+      } catch (InterruptedException e) {
+         // not started if still waiting for its turn
+         future.cancel(false);
+         throw e;
+      }
+   }
+
+   private void executeMultiplexed(@CheckForNull Object[] args,
+            @NonNull final CompletableFuture<Object> future) throws Throwable {
+      final File output = outputFile(args);
+      final ProcessBuilder builder = newBuilder(args, output);
+      final Process process = start(builder);
+      final Watchdog watchdog = register(process, timeout(args), metrics);
+
+      final ErrorBuilder<? extends Throwable> error = builder.redirectErrorStream() ? null
+               : newErrorBuilder();
+      final ResultBuilder<?> result = newResultBuilder(args);
+      final Processor recorded = RecordedOutput.of(name, process, result);
+      final AtomicInteger streams = new AtomicInteger(error == null ? 1 : 2);
+      final AtomicReference<Throwable> failed = new AtomicReference<Throwable>();
+      final Consumer<Throwable> completion = new Consumer<Throwable>() {
+         @Override
+         public void accept(Throwable failure) {
+            if (failure != null) {
+               failed.compareAndSet(null, failure);
+            }
+            if (streams.decrementAndGet() > 0) {
+               return;
+            }
+            // the streams may end before the process, whose exit is not waited for by the
+            // multiplexer thread
+            process.onExit().whenCompleteAsync(new BiConsumer<Process, Throwable>() {
+               @Override
+               public void accept(Process exited, Throwable failure) {
+                  complete(process, watchdog, error, result, output, failed.get(), future);
+               }
+            }, processor);
+         }
+      };
+
+      try {
+         result.setProcessInput(process.getOutputStream());
+      } catch (Throwable th) {
+         Controller.kill(process);
+         complete(process, watchdog, error, result, output, th, future);
+         return;
+      }
+      multiplexer.register(process, process.getInputStream(), recorded, stdout(),
+               recorded == result ? completion : new Consumer<Throwable>() {
+                  @Override
+                  public void accept(Throwable failure) {
+                     RecordedOutput.end(recorded);
+                     completion.accept(failure);
+                  }
+               });
+      if (error != null) {
+         multiplexer.register(process, process.getErrorStream(), error, stderr(), completion);
+      }
+   }
+
+   /**
+    * Queues the invocation to be allowed to start, if the running invocations are bounded, without
+    * waiting.
+    *
+    * @return a future completed once the invocation is allowed to start, or exceptionally if
+    *         rejected. The slot of an admitted invocation is released when its
+    *         {@link #execution(CompletableFuture) execution} completes.
+    */
+   @NonNull
+   private CompletableFuture<Void> admit(@CheckForNull Object[] args) {
+      return admission == null ? ADMITTED : admission.acquireAsync(priority(args));
+   }
+
+   /**
+    * The execution of an admitted invocation is tracked apart from the future of the caller, so
+    * the slot is held until the process is done even if the caller cancels its future.
+    *
+    * @param future
+    *           the future returned to the caller.
+    * @return the future to complete with the result of the execution, which releases the slot and
+    *         completes the future of the caller.
+    */
+   @NonNull
+   private CompletableFuture<Object> execution(@NonNull final CompletableFuture<Object> future) {
+      if (admission == null) {
+         return future;
+      }
+      final CompletableFuture<Object> execution = new CompletableFuture<Object>();
+      execution.whenComplete(new BiConsumer<Object, Throwable>() {
+         @Override
+         public void accept(Object result, Throwable failure) {
+            admission.release();
+            if (failure != null) {
+               future.completeExceptionally(failure);
+            } else {
+               future.complete(result);
+            }
+         }
+      });
+      return execution;
+   }
+
+   @NonNull
+   private static Throwable cause(@NonNull Throwable failure) {
+      return failure instanceof CompletionException && failure.getCause() != null ? failure
+               .getCause() : failure;
+   }
+
+   /**
+    * Completes the future of an invocation once its process exited and its output has been
+    * processed, exceptionally if the output could not be read or processed.
+    */
+   private void complete(@NonNull Process process, @NonNull Watchdog watchdog,
+            @CheckForNull ErrorBuilder<? extends Throwable> error,
+            @NonNull ResultBuilder<?> result, @CheckForNull File output,
+            @CheckForNull Throwable failure, @NonNull CompletableFuture<Object> future) {
+      done(process);
+      try {
+         watchdog.cancel();
+         if (failure != null) {
+            discard(result);
+            future.completeExceptionally(failure);
+         } else if (exited(process) != normalTermination) {
+            discard(result);
+            future.completeExceptionally(buildError(error));
+         } else {
+            future.complete(output != null ? outputResult(output) : result.build());
+         }
+      } catch (Throwable th) {
+         discard(result);
+         future.completeExceptionally(th);
+      }
+   }
+
+   /**
+    * Releases what a result builder holds, such as a spilled output, when the invocation fails and
+    * its result is never built.
+    *
+    * @param result
+    *           the builder of the result, released if {@link Closeable}.
+    */
+   static void discard(@NonNull ResultBuilder<?> result) {
+      if (result instanceof Closeable) {
+         try {
+            ((Closeable) result).close();
+         } catch (IOException e) {
+            // nothing else can be done
+         }
+      }
+   }
+
+   /**
+    * Creates the command line for an invocation.
+    * 
+    * @param template
+    *           the parsed command.
+    * @param args
+    *           the invocation arguments.
+    * @return a new command line, specific to the invocation.
+    */
+   @NonNull
+   List<String> command(@NonNull CommandTemplate template, @NonNull Object[] args) {
+      final String[] command = template.tokens();
       for (int i = 0, a = 0, count = args.length; i < count; i++) {
-         if (notExecutionParameter(args, i)) {
+         if (notExecutionParameter(i)) {
             final Argument argument;
             // We use toString() on the argument value to force an NPE if the value is not provided
-            command.set((argument = arguments[a++]).getIndex(), argument.apply(args[i].toString()));
+            command[(argument = template.argument(a++)).getIndex()] = argument.apply(args[i]
+                     .toString());
          }
       }
+      return Arrays.asList(command);
+   }
+
+   final boolean notExecutionParameter(int index) {
+      return index != workingDirIndex && index != timeoutIndex && index != environmentIndex
+               && index != outputProcessorIndex && index != outputFileIndex
+               && index != priorityIndex;
+   }
 
-      return builder.start();
+   private int priority(@CheckForNull Object[] args) {
+      return priorityIndex == -1 ? 0 : ((Integer) args[priorityIndex]).intValue();
    }
 
-   final boolean notExecutionParameter(@NonNull Object[] args, int index) {
-      if (index == workingDirIndex) {
-         builder.directory((File) args[index]);
-      } else if (index == timeoutIndex) {
-         timeout = ((Long) args[index]).longValue();
-      } else if (index == environmentIndex) {
-         setEnvironment(args[index]);
-      } else if (index == outputProcessorIndex) {
-         outputProcessor = (OutputProcessor) args[index];
+   @NonNull
+   private Process start(@NonNull ProcessBuilder builder) throws IOException {
+      final SpawnEvent event = new SpawnEvent();
+      event.begin();
+      final Process process;
+      if (metrics == null) {
+         process = builder.start();
       } else {
-         return true;
+         final long start = System.nanoTime();
+         process = builder.start();
+         metrics.spawned(start);
+      }
+      spawned(event, name, builder.command(), process);
+      return process;
+   }
+
+   /**
+    * @return whether the process, which exited, terminated abnormally.
+    */
+   final boolean abnormal(@NonNull Process process) {
+      return exited(process) != normalTermination;
+   }
+
+   private int exited(@NonNull Process process) {
+      final int exitValue = process.exitValue();
+      if (metrics != null) {
+         metrics.exited(exitValue);
       }
-      return false;
+      ProcessEvents.exited(name, process, exitValue);
+      return exitValue;
+   }
+
+   @CheckForNull
+   private LongAdder stdout() {
+      return metrics != null ? metrics.stdout() : null;
+   }
+
+   @CheckForNull
+   private LongAdder stderr() {
+      return metrics != null ? metrics.stderr() : null;
+   }
+
+   /**
+    * @return the metrics of the method, if recorded.
+    */
+   @CheckForNull
+   final MethodMetrics metrics() {
+      return metrics;
+   }
+
+   /**
+    * @return the cache of the results, if any.
+    */
+   @CheckForNull
+   final ResultCache cache() {
+      return cache;
+   }
+
+   /**
+    * @return the cache of the outputs on disk, if any.
+    */
+   @CheckForNull
+   final DiskCache diskCache() {
+      return diskCache;
    }
 
+   /**
+    * @return the coalescer of the invocations, if any.
+    */
+   @CheckForNull
+   final Coalescer coalescer() {
+      return coalescer;
+   }
+
+   /**
+    * @return the bound to the running processes, if any.
+    */
+   @CheckForNull
+   final Admission admission() {
+      return admission;
+   }
+
+   @CheckForNull
+   private File workingDirectory(@CheckForNull Object[] args) {
+      return workingDirIndex == -1 ? null : (File) args[workingDirIndex];
+   }
+
+   @CheckForNull
    @SuppressWarnings("unchecked")
-   final void setEnvironment(Object env) {
-      builder.environment().putAll(environment); // reset base
-      builder.environment().putAll((Map<String, String>) env); // override with the passed in values
+   private Map<String, String> environment(@CheckForNull Object[] args) {
+      return environmentIndex == -1 ? null : (Map<String, String>) args[environmentIndex];
+   }
+
+   final long timeout(@CheckForNull Object[] args) {
+      return timeoutIndex == -1 ? timeout : ((Long) args[timeoutIndex]).longValue();
+   }
+
+   @NonNull
+   private Redirect redirect(@NonNull File output) {
+      return appendOutput ? Redirect.appendTo(output) : Redirect.to(output);
+   }
+
+   @CheckForNull
+   private File outputFile(@CheckForNull Object[] args) {
+      if (outputFileIndex == -1) {
+         return null;
+      }
+      final Object file = args[outputFileIndex];
+      if (file == null) {
+         throw new NullPointerException("The output file is not provided");
+      }
+      return file instanceof Path ? ((Path) file).toFile() : (File) file;
+   }
+
+   @CheckForNull
+   private Object outputResult(@NonNull File output) {
+      if (resultType == Path.class) {
+         return output.toPath();
+      }
+      return resultType == File.class ? output : null;
+   }
+
+   @CheckForNull
+   private OutputProcessor outputProcessor(@CheckForNull Object[] args) {
+      return outputProcessorIndex == -1 ? null : (OutputProcessor) args[outputProcessorIndex];
    }
 
    private ErrorBuilder<? extends Throwable> processError(Process process, boolean redirectError) {
@@ -233,41 +1073,222 @@ public class MethodInvocationHandler implements InvocationHandler {
       if (redirectError) {
          error = null;
       } else {
-         if (errorBuilderFactory != null) {
-            error = errorBuilderFactory.create();
-         } else {
-            error = new DefaultErrorBuilder();
-         }
-         pump(new OutputPump(process, process.getErrorStream(), error));
+         error = newErrorBuilder();
+         processor.execute(new OutputPump(process, process.getErrorStream(), error, stderr()));
       }
       return error;
    }
 
-   private ResultBuilder<?> processOutput(Process process, @CheckForNull OutputProcessor output)
+   private ResultBuilder<?> processOutput(Process process, @CheckForNull Object[] args)
             throws InterruptedException {
+      return processOutput(process, process, args);
+   }
+
+   /**
+    * Processes the output of the last process of a pipeline, providing the input of the first one,
+    * and waits for the last process to exit, as the caller waits for the result anyway.
+    */
+   private ResultBuilder<?> processOutput(@NonNull Process first, @NonNull Process process,
+            @CheckForNull Object[] args) throws InterruptedException {
+      final ResultBuilder<?> result = pumpOutput(first, process, args);
+      process.waitFor();
+      return result;
+   }
+
+   /**
+    * Processes the output of the last process of a pipeline, providing the input of the first one,
+    * until the end of the output, with the output processor of the invocation if any.
+    */
+   @NonNull
+   private ResultBuilder<?> pumpOutput(@NonNull Process first, @NonNull Process process,
+            @CheckForNull Object[] args) {
 
       ResultBuilder<?> result = VOID;
+      OutputProcessor output = outputProcessor(args);
       if (output == null) {
-         if (resultBuilderFactory != null) {
-            result = resultBuilderFactory.create();
-         }
-         output = result;
+         output = result = newResultBuilder(args);
       }
 
       try {
-         output.setProcessInput(process.getOutputStream());
-         pump(process.getInputStream(), output);
+         output.setProcessInput(first.getOutputStream());
+         final Processor recorded = RecordedOutput.of(name, process, output);
+         final long pumped = pump(process.getInputStream(), recorded, buffers);
+         RecordedOutput.end(recorded);
+         if (metrics != null) {
+            metrics.stdout().add(pumped);
+         }
       } catch (Throwable th) {
          process.destroy();
       } finally {
          done(process);
       }
 
-      process.waitFor();
-
       return result;
    }
 
+   /**
+    * @return whether the method returns a future, rather than waiting for the command to terminate.
+    */
+   static boolean isAsync(@NonNull Method method) {
+      final Class<?> type = method.getReturnType();
+      return type == CompletableFuture.class || type == CompletionStage.class
+               || type == Future.class;
+   }
+
+   /**
+    * @return whether the method returns the output of the command, as an {@link InputStream}, or
+    *         a {@link Stream} or an {@link Iterator} of {@link String} lines.
+    */
+   static boolean isStreamed(@NonNull Method method) {
+      final Class<?> type = method.getReturnType();
+      if (type == InputStream.class) {
+         return true;
+      }
+      if (type != Stream.class && type != Iterator.class) {
+         return false;
+      }
+      final Type returned = method.getGenericReturnType();
+      if (!(returned instanceof ParameterizedType)
+               || ((ParameterizedType) returned).getActualTypeArguments()[0] != String.class) {
+         throw new IllegalArgumentException("Method " + method + " should return a "
+                  + type.getSimpleName() + "<String> of the lines of the output");
+      }
+      return true;
+   }
+
+   /**
+    * @return the type of the result built for the method, that is the type argument of the future
+    *         for asynchronous methods.
+    */
+   @NonNull
+   static Class<?> resultType(@NonNull Method method) {
+      if (!isAsync(method)) {
+         return method.getReturnType();
+      }
+      final Type type = method.getGenericReturnType();
+      if (type instanceof ParameterizedType) {
+         Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+         if (argument instanceof ParameterizedType) {
+            argument = ((ParameterizedType) argument).getRawType();
+         }
+         if (argument instanceof Class<?>) {
+            return (Class<?>) argument;
+         }
+      }
+      throw new IllegalArgumentException("Unspecified result type for " + method);
+   }
+
+   /**
+    * @return a new builder for the result of an invocation.
+    */
+   @NonNull
+   final ResultBuilder<?> newResultBuilder() {
+      return resultBuilderFactory != null ? resultBuilderFactory.create() : VOID;
+   }
+
+   /**
+    * @return a new builder for the result of an invocation, which keeps the output on disk if
+    *         cached.
+    */
+   @NonNull
+   private ResultBuilder<?> newResultBuilder(@CheckForNull Object[] args) {
+      final ResultBuilder<?> result = newResultBuilder();
+      // the key is computed again, but only when the command runs
+      return diskCache == null ? result : diskCache.capture(diskKey(args), result);
+   }
+
+   @NonNull
+   private byte[] diskKey(@CheckForNull Object[] args) {
+      final List<File> files = new ArrayList<File>(inputFiles.length);
+      for (int index : inputFiles) {
+         final Object file = args[index];
+         if (file != null) {
+            files.add(file instanceof Path ? ((Path) file).toFile() : (File) file);
+         }
+      }
+      return diskCache.key(template, command(template, args), workingDirectory(args),
+               environment(args), files);
+   }
+
+   /**
+    * Joins the identical invocation running, if coalesced, or runs the command.
+    */
+   private Object coalesce(@NonNull final ResultCache.Key key, @CheckForNull Object[] args)
+            throws Throwable {
+      if (coalescer == null) {
+         return load(args);
+      }
+      final CompletableFuture<Object> flight = new CompletableFuture<Object>();
+      final CompletableFuture<Object> running = coalescer.join(key, flight);
+      if (running != null) {
+         if (async) {
+            // so the caller cannot complete the shared result
+            return running.copy();
+         }
+         try {
+            return running.get();
+         } catch (java.util.concurrent.ExecutionException e) {
+            throw e.getCause();
+         }
+      }
+      final Object result;
+      try {
+         result = load(args);
+      } catch (Throwable th) {
+         coalescer.land(key, flight);
+         flight.completeExceptionally(th);
+         throw th;
+      }
+      if (!async) {
+         coalescer.land(key, flight);
+         flight.complete(result);
+         return result;
+      }
+      ((CompletableFuture<?>) result).whenComplete(new BiConsumer<Object, Throwable>() {
+         @Override
+         public void accept(Object result, Throwable failure) {
+            coalescer.land(key, flight);
+            if (failure == null) {
+               flight.complete(result);
+            } else {
+               flight.completeExceptionally(failure instanceof CompletionException
+                        && failure.getCause() != null ? failure.getCause() : failure);
+            }
+         }
+      });
+      return flight.copy();
+   }
+
+   /**
+    * Looks up the output of the invocation on disk, if cached, before running the command.
+    */
+   private Object load(@CheckForNull Object[] args) throws Throwable {
+      if (diskCache == null) {
+         return run(args);
+      }
+      final InputStream output = diskCache.get(diskKey(args));
+      if (output == null) {
+         return run(args);
+      }
+      final ResultBuilder<?> result = newResultBuilder();
+      try {
+         result.setProcessInput(OutputStream.nullOutputStream());
+         pump(output, result, buffers);
+      } catch (IOException e) {
+         // removed while reading, the command runs instead
+         return run(args);
+      } finally {
+         output.close();
+      }
+      final Object built = result.build();
+      return async ? CompletableFuture.completedFuture(built) : built;
+   }
+
+   @NonNull
+   final ErrorBuilder<? extends Throwable> newErrorBuilder() {
+      return errorBuilderFactory != null ? errorBuilderFactory.create() : new DefaultErrorBuilder();
+   }
+
    private boolean contains(@NonNull Annotation[] annotations, @NonNull Class<?> annotation,
             @NonNull Class<?>... exclusions) {
       boolean found = false;
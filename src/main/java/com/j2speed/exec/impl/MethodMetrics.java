@@ -0,0 +1,254 @@
+package com.j2speed.exec.impl;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Records the metrics of a compiled method.
+ * <p>
+ * The counters are {@link LongAdder}s and lock free arrays, so recording an invocation neither
+ * locks nor allocates, and the cost is low enough to record every invocation. The values are
+ * only aggregated when read.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class MethodMetrics implements MethodMetricsMXBean {
+   private static final int OTHER_EXIT_CODE = 256;
+
+   @NonNull
+   private final Method method;
+   @CheckForNull
+   private final Admission admission;
+   @CheckForNull
+   private final ResultCache cache;
+   @CheckForNull
+   private final Coalescer coalescer;
+
+   @NonNull
+   private final LongAdder invocations = new LongAdder();
+   @NonNull
+   private final LongAdder completed = new LongAdder();
+   @NonNull
+   private final LongAdder failures = new LongAdder();
+   @NonNull
+   private final LongAdder timeouts = new LongAdder();
+   @NonNull
+   private final LongAdder spawns = new LongAdder();
+   @NonNull
+   private final LongAdder spawnNanos = new LongAdder();
+   @NonNull
+   private final AtomicLong maxSpawnNanos = new AtomicLong();
+   @NonNull
+   private final LongAdder stdoutBytes = new LongAdder();
+   @NonNull
+   private final LongAdder stderrBytes = new LongAdder();
+   @NonNull
+   private final LatencyHistogram wallTime = new LatencyHistogram();
+   @NonNull
+   private final AtomicLongArray exitCodes = new AtomicLongArray(OTHER_EXIT_CODE + 1);
+
+   MethodMetrics(@NonNull Method method, @CheckForNull Admission admission,
+            @CheckForNull ResultCache cache, @CheckForNull Coalescer coalescer) {
+      this.method = method;
+      this.admission = admission;
+      this.cache = cache;
+      this.coalescer = coalescer;
+   }
+
+   /**
+    * Records the start of an invocation.
+    *
+    * @return the start time, to be passed to {@link #completed(long, boolean)}.
+    */
+   long started() {
+      invocations.increment();
+      return System.nanoTime();
+   }
+
+   void completed(long start, boolean failed) {
+      wallTime.record(System.nanoTime() - start);
+      if (failed) {
+         failures.increment();
+      }
+      completed.increment();
+   }
+
+   /**
+    * Records the start of a process.
+    *
+    * @param start
+    *           the time before starting the process.
+    */
+   void spawned(long start) {
+      final long nanos = System.nanoTime() - start;
+      spawns.increment();
+      spawnNanos.add(nanos);
+      long current;
+      while (nanos > (current = maxSpawnNanos.get())
+               && !maxSpawnNanos.compareAndSet(current, nanos)) {
+         // another thread recorded a new maximum
+      }
+   }
+
+   void exited(int exitCode) {
+      exitCodes.incrementAndGet(exitCode >= 0 && exitCode < OTHER_EXIT_CODE ? exitCode
+               : OTHER_EXIT_CODE);
+   }
+
+   void timedOut() {
+      timeouts.increment();
+   }
+
+   @NonNull
+   LongAdder stdout() {
+      return stdoutBytes;
+   }
+
+   @NonNull
+   LongAdder stderr() {
+      return stderrBytes;
+   }
+
+   /**
+    * @return the compiled method.
+    */
+   @NonNull
+   Method method() {
+      return method;
+   }
+
+   @Override
+   public String getMethod() {
+      return method.toGenericString();
+   }
+
+   @Override
+   public long getInvocations() {
+      return invocations.sum();
+   }
+
+   @Override
+   public long getInFlight() {
+      // read in this order, a concurrent invocation cannot make the count negative
+      final long completed = this.completed.sum();
+      return invocations.sum() - completed;
+   }
+
+   @Override
+   public long getFailures() {
+      return failures.sum();
+   }
+
+   @Override
+   public long getTimeouts() {
+      return timeouts.sum();
+   }
+
+   @Override
+   public long getSpawns() {
+      return spawns.sum();
+   }
+
+   @Override
+   public long getMeanSpawnNanos() {
+      final long spawns = this.spawns.sum();
+      return spawns == 0 ? 0 : spawnNanos.sum() / spawns;
+   }
+
+   @Override
+   public long getMaxSpawnNanos() {
+      return maxSpawnNanos.get();
+   }
+
+   @Override
+   public long getMeanWallNanos() {
+      return wallTime.mean();
+   }
+
+   @Override
+   public long getWallNanosP50() {
+      return wallTime.percentile(50);
+   }
+
+   @Override
+   public long getWallNanosP90() {
+      return wallTime.percentile(90);
+   }
+
+   @Override
+   public long getWallNanosP99() {
+      return wallTime.percentile(99);
+   }
+
+   @Override
+   public long getWallNanosP999() {
+      return wallTime.percentile(99.9);
+   }
+
+   @Override
+   public long getMaxWallNanos() {
+      return wallTime.max();
+   }
+
+   @Override
+   public long getStdoutBytes() {
+      return stdoutBytes.sum();
+   }
+
+   @Override
+   public long getStderrBytes() {
+      return stderrBytes.sum();
+   }
+
+   @Override
+   public Map<Integer, Long> getExitCodes() {
+      final Map<Integer, Long> codes = new TreeMap<Integer, Long>();
+      for (int i = 0; i <= OTHER_EXIT_CODE; i++) {
+         final long count = exitCodes.get(i);
+         if (count > 0) {
+            codes.put(i == OTHER_EXIT_CODE ? -1 : i, count);
+         }
+      }
+      return codes;
+   }
+
+   @Override
+   public int getQueueDepth() {
+      return admission == null ? -1 : admission.queueDepth();
+   }
+
+   @Override
+   public long getRejected() {
+      return admission == null ? 0 : admission.rejected();
+   }
+
+   @Override
+   public long getCacheHits() {
+      return cache == null ? -1 : cache.hits();
+   }
+
+   @Override
+   public long getCacheMisses() {
+      return cache == null ? -1 : cache.misses();
+   }
+
+   @Override
+   public int getCacheSize() {
+      return cache == null ? -1 : cache.size();
+   }
+
+   @Override
+   public long getCoalesced() {
+      return coalescer == null ? -1 : coalescer.saved();
+   }
+}
@@ -0,0 +1,106 @@
+package com.j2speed.exec.impl;
+
+import java.util.Map;
+
+/**
+ * The metrics of a compiled method, as exposed through JMX.
+ * <p>
+ * Durations are in nanoseconds, and the percentiles have a relative error of at most 12.5%.
+ *
+ * @author Alessandro Nistico
+ */
+public interface MethodMetricsMXBean {
+
+   /**
+    * @return the signature of the method.
+    */
+   String getMethod();
+
+   /**
+    * @return the number of invocations started.
+    */
+   long getInvocations();
+
+   /**
+    * @return the number of invocations running.
+    */
+   long getInFlight();
+
+   /**
+    * @return the number of invocations that failed.
+    */
+   long getFailures();
+
+   /**
+    * @return the number of processes killed because they timed out.
+    */
+   long getTimeouts();
+
+   /**
+    * @return the number of processes started.
+    */
+   long getSpawns();
+
+   long getMeanSpawnNanos();
+
+   long getMaxSpawnNanos();
+
+   long getMeanWallNanos();
+
+   long getWallNanosP50();
+
+   long getWallNanosP90();
+
+   long getWallNanosP99();
+
+   long getWallNanosP999();
+
+   long getMaxWallNanos();
+
+   /**
+    * @return the number of bytes read from the standard output of the processes.
+    */
+   long getStdoutBytes();
+
+   /**
+    * @return the number of bytes read from the standard error of the processes.
+    */
+   long getStderrBytes();
+
+   /**
+    * @return the number of processes by exit code, the codes out of the 0-255 range are counted as
+    *         -1.
+    */
+   Map<Integer, Long> getExitCodes();
+
+   /**
+    * @return the number of invocations waiting to start, -1 if the method is not bounded.
+    */
+   int getQueueDepth();
+
+   /**
+    * @return the number of invocations rejected because the method is bounded.
+    */
+   long getRejected();
+
+   /**
+    * @return the number of invocations answered by the cache, -1 if the method is not cached.
+    */
+   long getCacheHits();
+
+   /**
+    * @return the number of invocations that missed the cache, -1 if the method is not cached.
+    */
+   long getCacheMisses();
+
+   /**
+    * @return the number of cached results, -1 if the method is not cached.
+    */
+   int getCacheSize();
+
+   /**
+    * @return the number of processes not started, as identical invocations were running, -1 if
+    *         the invocations are not coalesced.
+    */
+   long getCoalesced();
+}
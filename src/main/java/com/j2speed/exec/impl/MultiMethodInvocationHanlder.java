@@ -5,6 +5,8 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
 public class MultiMethodInvocationHanlder implements InvocationHandler {
 
    private final Map<Method, MethodInvocationHandler> handlers = new HashMap<Method, MethodInvocationHandler>();
@@ -18,6 +20,11 @@ public class MultiMethodInvocationHanlder implements InvocationHandler {
       return handler.invoke(proxy, method, args);
    }
 
+   @CheckForNull
+   MethodInvocationHandler get(Method method) {
+      return handlers.get(method);
+   }
+
    public void add(Method method, MethodInvocationHandler handler) {
       if (method == null) {
          throw new IllegalArgumentException("Method null");
@@ -3,9 +3,9 @@
  */
 package com.j2speed.exec.impl;
 
-import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import com.j2speed.exec.ErrorBuilderFactory;
 import com.j2speed.exec.ResultBuilderFactory;
@@ -17,16 +17,19 @@ import com.j2speed.exec.ResultBuilderFactory;
  */
 public final class NoArgsInvocationHandler extends MethodInvocationHandler {
 
-   public NoArgsInvocationHandler(Method method, long timeout, int normalTermination,
+   NoArgsInvocationHandler(Method method, long timeout, int normalTermination,
             ResultBuilderFactory<?> resultBuilderFactory,
-            ErrorBuilderFactory<?> errorBuilderFactory, ProcessBuilder builder,
-            List<Argument> arguments) {
-      super(method, timeout, normalTermination, resultBuilderFactory, errorBuilderFactory, builder,
-               arguments);
+            ErrorBuilderFactory<?> errorBuilderFactory, CommandTemplate template,
+            Executor processor, OutputMultiplexer multiplexer, OutputBuffers buffers,
+            Admission admission, MethodMetrics metrics, ResultCache cache, DiskCache diskCache,
+            Coalescer coalescer) {
+      super(method, timeout, normalTermination, resultBuilderFactory, errorBuilderFactory, template,
+               processor, multiplexer, buffers, admission, metrics, cache, diskCache, coalescer);
    }
 
    @Override
-   Process start(ProcessBuilder builder, Argument[] arguments, Object[] args) throws IOException {
-      return builder.start();
+   List<String> command(CommandTemplate template, Object[] args) {
+      // nothing to bind, the parsed command can be shared
+      return template.command();
    }
 }
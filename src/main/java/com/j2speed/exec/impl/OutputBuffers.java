@@ -0,0 +1,171 @@
+package com.j2speed.exec.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Provides the buffers used to pump the output of a method, taking them from a pool shared by all
+ * the methods.
+ * <p>
+ * The size of the buffers is either fixed or adapted to the output of the method: a pump starts
+ * with the size that fitted the previous one and doubles the buffer every time a read fills it, up
+ * to {@link #MAX_SIZE}. Buffer sizes are powers of two, so the pool holds a few size classes only.
+ * <p>
+ * The pooled buffers are heap buffers, as the output is read from an {@link java.io.InputStream}
+ * into an array: a direct buffer would only add a copy.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class OutputBuffers {
+   /**
+    * The minimum, and initial, size of the buffers.
+    */
+   static final int MIN_SIZE = 4096;
+
+   /**
+    * The maximum size of the buffers.
+    */
+   static final int MAX_SIZE = 1 << 20;
+
+   /**
+    * Fixed buffers of the minimum size, for the outputs that are expected to be small.
+    */
+   static final OutputBuffers DEFAULT = new OutputBuffers(MIN_SIZE);
+
+   /**
+    * The maximum number of pooled buffers for each size, which bounds the retained memory to less
+    * than 16MB.
+    */
+   private static final int POOLED = 8;
+
+   private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   private static final Queue<ByteBuffer>[] POOL = new Queue[CLASSES];
+
+   private static final AtomicInteger[] POOL_SIZES = new AtomicInteger[CLASSES];
+
+   static {
+      for (int i = 0; i < CLASSES; i++) {
+         POOL[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+         POOL_SIZES[i] = new AtomicInteger();
+      }
+   }
+
+   private final boolean adaptive;
+
+   private volatile int size;
+
+   /**
+    * @param size
+    *           the size of the buffers, rounded up to a power of two between {@link #MIN_SIZE} and
+    *           {@link #MAX_SIZE}, or {@code 0} to adapt it to the output.
+    */
+   OutputBuffers(int size) {
+      if (size < 0) {
+         throw new IllegalArgumentException("Negative buffer size");
+      }
+      this.adaptive = size == 0;
+      this.size = sizeFor(size);
+   }
+
+   /**
+    * @return whether the size of the buffers adapts to the output.
+    */
+   boolean isAdaptive() {
+      return adaptive;
+   }
+
+   /**
+    * @return the size of the next buffer to be acquired.
+    */
+   int size() {
+      return size;
+   }
+
+   /**
+    * @return a cleared buffer for a new pump.
+    */
+   @NonNull
+   ByteBuffer acquire() {
+      return acquire(size);
+   }
+
+   /**
+    * Replaces a buffer that a read filled with a larger one, if the size is adaptive.
+    *
+    * @param buffer
+    *           the full buffer, ready to be written.
+    * @return the new buffer, with the content of the old one, or the same buffer if it cannot grow.
+    */
+   @NonNull
+   ByteBuffer grow(@NonNull ByteBuffer buffer) {
+      if (!adaptive || buffer.capacity() >= MAX_SIZE) {
+         return buffer;
+      }
+      final ByteBuffer grown = acquire(buffer.capacity() << 1);
+      buffer.flip();
+      grown.put(buffer);
+      recycle(buffer);
+      return grown;
+   }
+
+   /**
+    * Returns a buffer to the pool at the end of a pump.
+    *
+    * @param buffer
+    *           the buffer, not to be used anymore.
+    * @param pumped
+    *           the number of bytes pumped, used to size the buffer of the next pump.
+    */
+   void release(@NonNull ByteBuffer buffer, long pumped) {
+      if (adaptive) {
+         // a buffer that has grown is kept for the next pump, otherwise the size fits the output
+         size = pumped >= buffer.capacity() ? buffer.capacity()
+                  : sizeFor((int) Math.min(pumped, MAX_SIZE));
+      }
+      recycle(buffer);
+   }
+
+   @NonNull
+   private static ByteBuffer acquire(int size) {
+      final int index = indexOf(size);
+      final ByteBuffer buffer = POOL[index].poll();
+      if (buffer == null) {
+         return ByteBuffer.allocate(size);
+      }
+      POOL_SIZES[index].decrementAndGet();
+      buffer.clear();
+      return buffer;
+   }
+
+   private static void recycle(@NonNull ByteBuffer buffer) {
+      final int index = indexOf(buffer.capacity());
+      if (POOL_SIZES[index].incrementAndGet() <= POOLED) {
+         POOL[index].offer(buffer);
+      } else {
+         POOL_SIZES[index].decrementAndGet();
+      }
+   }
+
+   private static int indexOf(int size) {
+      return Integer.numberOfTrailingZeros(size / MIN_SIZE);
+   }
+
+   private static int sizeFor(int size) {
+      if (size <= MIN_SIZE) {
+         return MIN_SIZE;
+      }
+      if (size >= MAX_SIZE) {
+         return MAX_SIZE;
+      }
+      return Integer.highestOneBit(size - 1) << 1;
+   }
+}
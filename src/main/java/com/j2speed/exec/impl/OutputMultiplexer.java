@@ -0,0 +1,220 @@
+package com.j2speed.exec.impl;
+
+import static com.j2speed.exec.impl.Controller.kill;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.Processor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Pumps the output of many processes from a few threads, instead of using a blocking thread for
+ * each stream.
+ * <p>
+ * The pipes of a process are not selectable in Java, so rather than waiting for events each thread
+ * polls its streams for available data, which on Linux costs a single {@code FIONREAD} call per
+ * stream and poll, and backs off while all of them are idle, up to 10ms. The multiplexer then
+ * trades some latency, and a cost growing with the number of streams, for not having a thread
+ * blocked on each stream: it suits many concurrent commands producing little output.
+ * <p>
+ * Once its process has terminated, a stream is read until its end, so the output left in the pipe
+ * is not lost. A failure reading a stream, or processing its data, kills the process and is
+ * reported when the stream is done.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class OutputMultiplexer {
+   private static final long MIN_IDLE = 50000L; // 50us
+   private static final long MAX_IDLE = 10000000L; // 10ms
+
+   @NonNull
+   private final Loop[] loops;
+   @NonNull
+   private final AtomicInteger next = new AtomicInteger();
+
+   OutputMultiplexer(int threads) {
+      if (threads <= 0) {
+         throw new IllegalArgumentException("The number of threads must be positive");
+      }
+      final ThreadFactory factory = new NamedFactory("output-multiplexer");
+      loops = new Loop[threads];
+      for (int i = 0; i < threads; i++) {
+         loops[i] = new Loop();
+         factory.newThread(loops[i]).start();
+      }
+   }
+
+   /**
+    * Starts pumping a stream of a process.
+    *
+    * @param process
+    *           the process the stream belongs to.
+    * @param input
+    *           the stream to pump.
+    * @param processor
+    *           the processor for the data read from the stream.
+    * @param bytes
+    *           the counter of the bytes read from the stream, if any.
+    * @param done
+    *           invoked when the end of the stream is reached, with the failure reading or
+    *           processing the stream, if any.
+    */
+   void register(@NonNull Process process, @NonNull InputStream input,
+            @NonNull Processor processor, @CheckForNull LongAdder bytes,
+            @NonNull Consumer<Throwable> done) {
+      loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].add(new Stream(process,
+               input, processor, bytes, done));
+   }
+
+   /**
+    * A stream pumped by the multiplexer.
+    */
+   private static final class Stream {
+      @NonNull
+      private final Process process;
+      @NonNull
+      private final InputStream input;
+      @NonNull
+      private final Processor processor;
+      @CheckForNull
+      private final LongAdder bytes;
+      @NonNull
+      private final Consumer<Throwable> done;
+      /**
+       * Allocated when the first data is available, as many streams never produce any.
+       */
+      @CheckForNull
+      private ByteBuffer buffer;
+      private boolean exited;
+      private boolean finished;
+      @CheckForNull
+      private Throwable failure;
+
+      Stream(@NonNull Process process, @NonNull InputStream input, @NonNull Processor processor,
+               @CheckForNull LongAdder bytes, @NonNull Consumer<Throwable> done) {
+         this.process = process;
+         this.input = input;
+         this.processor = processor;
+         this.bytes = bytes;
+         this.done = done;
+      }
+
+      /**
+       * Reads the data available, if any, without blocking while the process is alive.
+       *
+       * @return {@code true} if some data was read.
+       * @throws IOException
+       */
+      boolean poll() throws IOException {
+         final int available = input.available();
+         if (available > 0 || exited) {
+            ByteBuffer buffer = this.buffer;
+            if (buffer == null) {
+               this.buffer = buffer = ByteBuffer.allocate(4096);
+            }
+            // the process is terminated, so the read returns what is left, or the end
+            final int read = input.read(buffer.array(), buffer.position(), exited ? buffer
+                     .remaining() : Math.min(available, buffer.remaining()));
+            if (read == -1) {
+               finished = true;
+               return false;
+            }
+            if (read > 0) {
+               if (bytes != null) {
+                  bytes.add(read);
+               }
+               buffer.position(buffer.position() + read);
+               buffer.flip();
+               try {
+                  processor.process(buffer);
+               } catch (Exception e) {
+                  // errors should not be caught
+                  failure = e;
+                  kill(process);
+                  finished = true;
+               } finally {
+                  buffer.compact();
+               }
+               return true;
+            }
+         }
+         exited = !process.isAlive();
+         return false;
+      }
+   }
+
+   /**
+    * The polling loop of a thread.
+    */
+   private static final class Loop implements Runnable {
+      @NonNull
+      private final Queue<Stream> added = new ConcurrentLinkedQueue<Stream>();
+      @NonNull
+      private final List<Stream> streams = new ArrayList<Stream>();
+      @CheckForNull
+      private volatile Thread thread;
+
+      void add(@NonNull Stream stream) {
+         added.add(stream);
+         LockSupport.unpark(thread);
+      }
+
+      @Override
+      public void run() {
+         thread = Thread.currentThread();
+         long idle = MIN_IDLE;
+         for (;;) {
+            Stream stream;
+            while ((stream = added.poll()) != null) {
+               streams.add(stream);
+            }
+            boolean active = false;
+            for (int i = streams.size() - 1; i >= 0; i--) {
+               stream = streams.get(i);
+               try {
+                  active |= stream.poll();
+               } catch (IOException e) {
+                  kill(stream.process);
+                  stream.failure = e;
+                  stream.finished = true;
+               }
+               if (stream.finished) {
+                  // the order is not relevant, so the last stream takes the place of the done one
+                  final int last = streams.size() - 1;
+                  streams.set(i, streams.get(last));
+                  streams.remove(last);
+                  try {
+                     stream.done.accept(stream.failure);
+                  } catch (Exception e) {
+                     // exception are swallowed, but errors should not be caught
+                  }
+               }
+            }
+            if (active) {
+               idle = MIN_IDLE;
+            } else if (streams.isEmpty() && added.isEmpty()) {
+               LockSupport.park(this);
+            } else {
+               LockSupport.parkNanos(this, idle);
+               idle = Math.min(idle << 1, MAX_IDLE);
+            }
+         }
+      }
+   }
+}
@@ -5,9 +5,11 @@ import static com.j2speed.exec.impl.Controller.kill;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.j2speed.exec.Processor;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 class OutputPump implements Runnable {
@@ -15,17 +17,43 @@ class OutputPump implements Runnable {
    private final InputStream input;
    private final Processor processor;
    private final Process process;
+   private final OutputBuffers buffers;
+   @CheckForNull
+   private final LongAdder bytes;
 
    OutputPump(Process process, InputStream input, Processor processor) {
+      this(process, input, processor, OutputBuffers.DEFAULT, null);
+   }
+
+   OutputPump(Process process, InputStream input, Processor processor,
+            @CheckForNull LongAdder bytes) {
+      this(process, input, processor, OutputBuffers.DEFAULT, bytes);
+   }
+
+   OutputPump(Process process, InputStream input, Processor processor, OutputBuffers buffers) {
+      this(process, input, processor, buffers, null);
+   }
+
+   /**
+    * @param bytes
+    *           the counter of the bytes pumped, if any.
+    */
+   OutputPump(Process process, InputStream input, Processor processor, OutputBuffers buffers,
+            @CheckForNull LongAdder bytes) {
       this.input = input;
       this.processor = processor;
       this.process = process;
+      this.buffers = buffers;
+      this.bytes = bytes;
    }
 
    @Override
    public void run() {
       try {
-         pump(input, processor);
+         final long pumped = pump(input, processor, buffers);
+         if (bytes != null) {
+            bytes.add(pumped);
+         }
       } catch (IOException e) {
          kill(process);
       }
@@ -33,19 +61,40 @@ class OutputPump implements Runnable {
 
    static void pump(@NonNull InputStream input, @NonNull Processor processor)
             throws IOException {
+      pump(input, processor, OutputBuffers.DEFAULT);
+   }
+
+   /**
+    * Pumps the input to the processor until the end of the stream.
+    * 
+    * @return the number of bytes pumped.
+    */
+   static long pump(@NonNull InputStream input, @NonNull Processor processor,
+            @NonNull OutputBuffers buffers) throws IOException {
       int read;
-      ByteBuffer buffer = ByteBuffer.allocate(4096);
-      byte[] buf = buffer.array();
-      while ((read = input.read(buf, buffer.position(), buffer.remaining())) != -1) {
-         buffer.position(buffer.position() + read);
-         buffer.flip();
-         try {
-            processor.process(buffer);
-         } catch (Exception e) {
-            // exception are swallowed, but errors should not be caught
-         } finally {
-            buffer.compact();
+      long pumped = 0;
+      ByteBuffer buffer = buffers.acquire();
+      try {
+         while ((read = input.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+            pumped += read;
+            buffer.position(buffer.position() + read);
+            final boolean full = !buffer.hasRemaining();
+            buffer.flip();
+            try {
+               processor.process(buffer);
+            } catch (Exception e) {
+               // exception are swallowed, but errors should not be caught
+            } finally {
+               buffer.compact();
+            }
+            if (full) {
+               // the output is produced faster than it is read
+               buffer = buffers.grow(buffer);
+            }
          }
+      } finally {
+         buffers.release(buffer, pumped);
       }
+      return pumped;
    }
 }
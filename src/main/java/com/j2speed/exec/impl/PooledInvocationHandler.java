@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package com.j2speed.exec.impl;
+
+import static com.j2speed.exec.impl.Controller.watch;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.j2speed.exec.Env;
+import com.j2speed.exec.ErrorBuilder;
+import com.j2speed.exec.ErrorBuilderFactory;
+import com.j2speed.exec.ExecutionException;
+import com.j2speed.exec.OutputFile;
+import com.j2speed.exec.OutputProcessor;
+import com.j2speed.exec.ResultBuilder;
+import com.j2speed.exec.ResultBuilderFactory;
+import com.j2speed.exec.WorkingDir;
+import com.j2speed.exec.impl.WorkerPool.Worker;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * This encapsulates the invocation mapping for a command served by a pool of long lived workers.
+ * <p>
+ * The parameters of the method, apart from the {@link com.j2speed.exec.Timeout} and the
+ * {@link com.j2speed.exec.Priority}, are sent to a
+ * worker as a request and the response is used to build the result.
+ *
+ * @author Alessandro Nistico
+ */
+public final class PooledInvocationHandler extends MethodInvocationHandler {
+   @NonNull
+   private final WorkerPool pool;
+   private final boolean redirectError;
+
+   PooledInvocationHandler(Method method, long timeout, int normalTermination,
+            ResultBuilderFactory<?> resultBuilderFactory,
+            ErrorBuilderFactory<?> errorBuilderFactory, CommandTemplate template,
+            Executor processor, @NonNull WorkerPool pool, Admission admission,
+            MethodMetrics metrics) {
+      super(method, timeout, normalTermination, resultBuilderFactory, errorBuilderFactory, template,
+               processor, null, OutputBuffers.DEFAULT, admission, metrics, null, null, null);
+      final Class<?>[] params = method.getParameterTypes();
+      final Annotation[][] annotations = method.getParameterAnnotations();
+      for (int i = 0; i < params.length; i++) {
+         if (OutputProcessor.class.isAssignableFrom(params[i])) {
+            throw new IllegalArgumentException("OutputProcessor not supported by pooled method "
+                     + method);
+         }
+         for (Annotation a : annotations[i]) {
+            if (a.annotationType() == WorkingDir.class || a.annotationType() == Env.class
+                     || a.annotationType() == OutputFile.class) {
+               throw new IllegalArgumentException("@" + a.annotationType().getSimpleName()
+                        + " not supported by pooled method " + method);
+            }
+         }
+      }
+      this.pool = pool;
+      this.redirectError = template.redirectError();
+   }
+
+   @Override
+   void executeAsync(Object[] args, CompletableFuture<Object> future) throws Throwable {
+      // the workers outlive the invocations, so there is no exit to wait for
+      future.complete(execute(args));
+   }
+
+   @Override
+   Object execute(Object[] args) throws Throwable {
+      final byte[] request = pool.checked(request(args));
+      final ResultBuilder<?> result = newResultBuilder();
+      final ErrorBuilder<? extends Throwable> error = redirectError ? null
+               : newErrorBuilder();
+      final Worker worker = pool.borrow();
+      boolean reusable = false;
+      try {
+         final Watchdog watchdog = watch(worker.process, timeout(args), metrics());
+         try {
+            worker.exchange(request, result, error);
+         } catch (IOException e) {
+            watchdog.cancel();
+            throw failure(worker, error, e);
+         } finally {
+            // also when the response cannot be processed, which leaves the worker unusable
+            watchdog.cancel();
+         }
+         reusable = true;
+      } finally {
+         pool.release(worker, reusable);
+         if (!reusable) {
+            discard(result);
+         }
+      }
+      return result.build();
+   }
+
+   /**
+    * @return the failure of a worker that stopped responding: the error it reported, as for the
+    *         commands that are not pooled, if it terminated abnormally.
+    */
+   @NonNull
+   private Throwable failure(@NonNull Worker worker,
+            @CheckForNull ErrorBuilder<? extends Throwable> error, @NonNull IOException e)
+            throws InterruptedException {
+      if (error != null && worker.terminated() && abnormal(worker.process)) {
+         final Throwable reported = error.build();
+         if (reported != null) {
+            return reported;
+         }
+      }
+      return new ExecutionException("Pooled worker failed", e);
+   }
+
+   @NonNull
+   private byte[] request(Object[] args) {
+      if (args == null) {
+         return new byte[0];
+      }
+      final StringBuilder request = new StringBuilder(64);
+      for (int i = 0, count = args.length; i < count; i++) {
+         if (notExecutionParameter(i)) {
+            if (request.length() > 0) {
+               request.append(' ');
+            }
+            // We use toString() on the argument value to force an NPE if the value is not provided
+            request.append(args[i].toString());
+         }
+      }
+      return request.toString().getBytes(Charset.defaultCharset());
+   }
+}
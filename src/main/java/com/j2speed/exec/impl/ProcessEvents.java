@@ -0,0 +1,253 @@
+package com.j2speed.exec.impl;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import com.j2speed.exec.Processor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The Flight Recorder events of the execution of the commands, so the phases of a slow invocation
+ * can be seen on the same timeline as the garbage collections and the activity of the threads.
+ * <p>
+ * A process is spawned, its output starts and ends, then it exits or is killed. All the events
+ * carry the PID of the process, only the spawn event carries the command line too.
+ * <p>
+ * The events do not escape the methods creating them and are only filled when they are to be
+ * committed, so when the Flight Recorder is not recording them they cost about a check, with no
+ * allocation. Only the output of a process recorded by {@link RecordedOutput} needs an object.
+ *
+ * @author Alessandro Nistico
+ */
+final class ProcessEvents {
+   private static final String CATEGORY = "j2exec";
+
+   private ProcessEvents() {
+   }
+
+   /**
+    * @return whether the output events are recorded.
+    */
+   static boolean outputRecorded() {
+      return new OutputEvent().isEnabled();
+   }
+
+   /**
+    * Commits the spawn event of a process.
+    */
+   static void spawned(@NonNull SpawnEvent event, @NonNull String method,
+            @NonNull List<String> command, @NonNull Process process) {
+      event.end();
+      if (event.shouldCommit()) {
+         event.method = method;
+         event.command = String.join(" ", command);
+         event.pid = process.pid();
+         event.commit();
+      }
+   }
+
+   /**
+    * Commits the exit event of a process.
+    */
+   static void exited(@NonNull String method, @NonNull Process process, int exitCode) {
+      final ExitEvent event = new ExitEvent();
+      if (event.shouldCommit()) {
+         event.method = method;
+         event.pid = process.pid();
+         event.exitCode = exitCode;
+         event.commit();
+      }
+   }
+
+   /**
+    * Commits the kill event of a process.
+    */
+   static void killed(@NonNull Process process, boolean timedOut) {
+      final KillEvent event = new KillEvent();
+      if (event.shouldCommit()) {
+         event.pid = process.pid();
+         event.timedOut = timedOut;
+         event.commit();
+      }
+   }
+
+   @Name("com.j2speed.exec.ProcessSpawn")
+   @Label("Process Spawn")
+   @Description("The start of the process of a command")
+   @Category(CATEGORY)
+   static final class SpawnEvent extends Event {
+      @Label("Method")
+      String method;
+
+      @Label("Command")
+      String command;
+
+      @Label("PID")
+      long pid;
+   }
+
+   @Name("com.j2speed.exec.ProcessFirstOutput")
+   @Label("Process First Output")
+   @Description("The first byte of the standard output of a process")
+   @Category(CATEGORY)
+   @StackTrace(false)
+   static final class FirstOutputEvent extends Event {
+      @Label("Method")
+      String method;
+
+      @Label("PID")
+      long pid;
+
+      @Label("Time to First Byte")
+      @Description("From the start of the reading of the output")
+      @Timespan
+      long timeToFirstByte;
+   }
+
+   @Name("com.j2speed.exec.ProcessOutput")
+   @Label("Process Output")
+   @Description("The standard output of a process, from the start of its reading to its end")
+   @Category(CATEGORY)
+   @StackTrace(false)
+   static final class OutputEvent extends Event {
+      @Label("Method")
+      String method;
+
+      @Label("PID")
+      long pid;
+
+      @Label("Bytes")
+      @DataAmount
+      long bytes;
+   }
+
+   @Name("com.j2speed.exec.ProcessExit")
+   @Label("Process Exit")
+   @Description("The exit of a process")
+   @Category(CATEGORY)
+   @StackTrace(false)
+   static final class ExitEvent extends Event {
+      @Label("Method")
+      String method;
+
+      @Label("PID")
+      long pid;
+
+      @Label("Exit Code")
+      int exitCode;
+   }
+
+   @Name("com.j2speed.exec.ProcessKill")
+   @Label("Process Kill")
+   @Description("The destruction of a process, because it timed out or its output failed")
+   @Category(CATEGORY)
+   @StackTrace(false)
+   static final class KillEvent extends Event {
+      @Label("PID")
+      long pid;
+
+      @Label("Timed Out")
+      boolean timedOut;
+   }
+
+   /**
+    * Records the output events of a process, passing the output to the actual processor.
+    * <p>
+    * Only created when the output events are recorded.
+    */
+   @NotThreadSafe
+   static final class RecordedOutput implements Processor {
+      @NonNull
+      private final String method;
+      @NonNull
+      private final Process process;
+      @NonNull
+      private final Processor processor;
+      @NonNull
+      private final OutputEvent event = new OutputEvent();
+      private final long started = System.nanoTime();
+      private long bytes;
+      /**
+       * The bytes left in the buffer by the processor, which are passed again with the next ones.
+       */
+      private int left;
+
+      RecordedOutput(@NonNull String method, @NonNull Process process,
+               @NonNull Processor processor) {
+         this.method = method;
+         this.process = process;
+         this.processor = processor;
+         event.begin();
+      }
+
+      @Override
+      public void process(@NonNull ByteBuffer buffer) {
+         final int read = buffer.remaining() - left;
+         if (bytes == 0 && read > 0) {
+            final FirstOutputEvent first = new FirstOutputEvent();
+            if (first.shouldCommit()) {
+               first.method = method;
+               first.pid = process.pid();
+               first.timeToFirstByte = System.nanoTime() - started;
+               first.commit();
+            }
+         }
+         bytes += read;
+         try {
+            processor.process(buffer);
+         } finally {
+            left = buffer.remaining();
+         }
+      }
+
+      @Override
+      public void done() {
+         processor.done();
+      }
+
+      /**
+       * Commits the output event, at the end of the output.
+       */
+      void end() {
+         event.end();
+         if (event.shouldCommit()) {
+            event.method = method;
+            event.pid = process.pid();
+            event.bytes = bytes;
+            event.commit();
+         }
+      }
+
+      /**
+       * @return the processor recording the output of the process, if the output events are
+       *         recorded, otherwise the given processor.
+       */
+      @NonNull
+      static Processor of(@NonNull String method, @NonNull Process process,
+               @NonNull Processor processor) {
+         return outputRecorded() ? new RecordedOutput(method, process, processor) : processor;
+      }
+
+      /**
+       * Commits the output event, if recorded.
+       */
+      static void end(@CheckForNull Processor processor) {
+         if (processor instanceof RecordedOutput) {
+            ((RecordedOutput) processor).end();
+         }
+      }
+   }
+}
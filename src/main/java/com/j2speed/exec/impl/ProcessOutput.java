@@ -0,0 +1,186 @@
+package com.j2speed.exec.impl;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The output of a running command, read by the caller of a method returning an {@link InputStream},
+ * or a {@link Stream} or an {@link Iterator} of its lines.
+ * <p>
+ * The output is read straight from the pipe of the process, with no thread pumping it and no
+ * buffer in between but the one of the reader, so a command writing faster than its output is
+ * read blocks on the pipe rather than the JVM buffering its output.
+ * <p>
+ * The command is checked when its output ends: the read reaching the end waits for the command to
+ * exit and fails if it timed out or terminated abnormally. Closing the output before its end kills
+ * the command.
+ *
+ * @author Alessandro Nistico
+ */
+@NotThreadSafe
+abstract class ProcessOutput extends InputStream {
+   /**
+    * The lines are decoded as the commands of the platform encode them.
+    */
+   private static final Charset CHARSET = Charset.defaultCharset();
+
+   private static final int OPEN = 0;
+   private static final int ENDED = 1;
+   private static final int CLOSED = 2;
+
+   @NonNull
+   private final InputStream output;
+   @CheckForNull
+   private final LongAdder read;
+   /**
+    * Set once ended or closed, as the output may be closed by another thread.
+    */
+   @NonNull
+   private final AtomicInteger state = new AtomicInteger(OPEN);
+
+   /**
+    * @param output
+    *           the output of the process.
+    * @param read
+    *           the counter of the bytes read, if any.
+    */
+   ProcessOutput(@NonNull InputStream output, @CheckForNull LongAdder read) {
+      this.output = output;
+      this.read = read;
+   }
+
+   @Override
+   public int read() throws IOException {
+      final int b = output.read();
+      if (b == -1) {
+         end();
+      } else if (read != null) {
+         read.increment();
+      }
+      return b;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      final int count = output.read(b, off, len);
+      if (count == -1) {
+         end();
+      } else if (read != null) {
+         read.add(count);
+      }
+      return count;
+   }
+
+   @Override
+   public int available() throws IOException {
+      return output.available();
+   }
+
+   @Override
+   public void close() throws IOException {
+      final int previous = state.getAndSet(CLOSED);
+      if (previous == CLOSED) {
+         return;
+      }
+      try {
+         if (previous == OPEN) {
+            abandoned();
+         }
+      } finally {
+         output.close();
+      }
+   }
+
+   private void end() throws IOException {
+      if (state.compareAndSet(OPEN, ENDED)) {
+         exited();
+      }
+   }
+
+   /**
+    * Checks the command, once its output ended.
+    *
+    * @throws IOException
+    *            if interrupted while waiting for the command to exit, or as the failure of the
+    *            command, if it is an {@link IOException}.
+    */
+   protected abstract void exited() throws IOException;
+
+   /**
+    * Kills the command, as its output is closed before its end.
+    */
+   protected abstract void abandoned();
+
+   /**
+    * @param output
+    *           the output of a command.
+    * @return the lines of the output, as read, the command killed if closed before the end.
+    */
+   @NonNull
+   static Stream<String> lines(@NonNull InputStream output) {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(output, CHARSET));
+      return reader.lines().onClose(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               reader.close();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         }
+      });
+   }
+
+   /**
+    * @param output
+    *           the output of a command.
+    * @return an iterator over the lines of the output, as read, which is {@link Closeable} to kill
+    *         the command before the end.
+    */
+   @NonNull
+   static Iterator<String> iterator(@NonNull InputStream output) {
+      return new Lines(lines(output));
+   }
+
+   @NotThreadSafe
+   private static final class Lines implements Iterator<String>, Closeable {
+      @NonNull
+      private final Stream<String> lines;
+      @NonNull
+      private final Iterator<String> iterator;
+
+      Lines(@NonNull Stream<String> lines) {
+         this.lines = lines;
+         this.iterator = lines.iterator();
+      }
+
+      @Override
+      public boolean hasNext() {
+         return iterator.hasNext();
+      }
+
+      @Override
+      public String next() {
+         return iterator.next();
+      }
+
+      @Override
+      public void close() {
+         lines.close();
+      }
+   }
+}
@@ -0,0 +1,310 @@
+package com.j2speed.exec.impl;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.Cacheable;
+import com.j2speed.exec.RejectedException;
+import com.j2speed.exec.TimeoutException;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The results of a compiled method, as set with {@link Cacheable}, keyed by the command line, the
+ * working directory and the environment of the invocations.
+ * <p>
+ * The least recently used result is evicted when the cache is full, and the expired ones when
+ * looked up. The statistics of the cache are exposed to size it.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+public final class ResultCache {
+   @NonNull
+   private final String name;
+   private final int size;
+   private final long ttl;
+   private final long failureTtl;
+
+   @GuardedBy("entries")
+   @NonNull
+   private final LinkedHashMap<Key, Entry> entries;
+
+   @NonNull
+   private final LongAdder hits = new LongAdder();
+   @NonNull
+   private final LongAdder misses = new LongAdder();
+   @NonNull
+   private final LongAdder evictions = new LongAdder();
+
+   /**
+    * @param name
+    *           the name of the method, used in the messages.
+    * @param size
+    *           the maximum number of cached results.
+    * @param ttl
+    *           the time, in milliseconds, a result is cached, {@code 0} until evicted.
+    * @param failureTtl
+    *           the time, in milliseconds, a failure is cached, {@code 0} to not cache failures.
+    */
+   ResultCache(@NonNull String name, int size, long ttl, long failureTtl) {
+      if (size <= 0) {
+         throw new IllegalArgumentException("Cache size must be positive");
+      }
+      if (ttl < 0 || failureTtl < 0) {
+         throw new IllegalArgumentException("Negative time to live");
+      }
+      this.name = name;
+      this.size = size;
+      this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+      this.failureTtl = TimeUnit.MILLISECONDS.toNanos(failureTtl);
+      this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Key, ResultCache.Entry> eldest) {
+            if (size() > ResultCache.this.size) {
+               evictions.increment();
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * Gets the cache of a method of a compiled proxy.
+    *
+    * @param proxy
+    *           the compiled proxy.
+    * @param method
+    *           the method.
+    * @return the cache of the method, {@code null} if the method is not cacheable.
+    */
+   @CheckForNull
+   public static ResultCache of(@NonNull Object proxy, @NonNull Method method) {
+      final MethodInvocationHandler handler = Implementation.handlerOf(proxy, method);
+      return handler != null ? handler.cache() : null;
+   }
+
+   /**
+    * @return the name of the cached method.
+    */
+   @NonNull
+   public String name() {
+      return name;
+   }
+
+   /**
+    * @return the maximum number of cached results.
+    */
+   public int maxSize() {
+      return size;
+   }
+
+   /**
+    * @return the number of cached results, including the expired ones not looked up yet.
+    */
+   public int size() {
+      synchronized (entries) {
+         return entries.size();
+      }
+   }
+
+   /**
+    * @return the number of invocations answered from the cache.
+    */
+   public long hits() {
+      return hits.sum();
+   }
+
+   /**
+    * @return the number of invocations that ran the command.
+    */
+   public long misses() {
+      return misses.sum();
+   }
+
+   /**
+    * @return the number of results evicted to make room for new ones.
+    */
+   public long evictions() {
+      return evictions.sum();
+   }
+
+   /**
+    * Discards all the cached results.
+    */
+   public void clear() {
+      synchronized (entries) {
+         entries.clear();
+      }
+   }
+
+   /**
+    * @return the key of an invocation.
+    */
+   @NonNull
+   static Key key(@NonNull List<String> command, @CheckForNull File directory,
+            @CheckForNull Map<String, String> environment) {
+      return new Key(command, directory, environment);
+   }
+
+   /**
+    * Looks up the result of an invocation, counting a hit or a miss.
+    *
+    * @return the cached result, {@code null} if not cached or expired.
+    */
+   @CheckForNull
+   Entry get(@NonNull Key key) {
+      final Entry entry;
+      synchronized (entries) {
+         final Entry cached = entries.get(key);
+         if (cached != null && cached.expired(System.nanoTime())) {
+            entries.remove(key);
+            entry = null;
+         } else {
+            entry = cached;
+         }
+      }
+      (entry != null ? hits : misses).increment();
+      return entry;
+   }
+
+   /**
+    * Caches the result of an invocation.
+    */
+   void put(@NonNull Key key, @CheckForNull Object result) {
+      final Entry entry = new Entry(result, null, ttl == 0 ? 0 : System.nanoTime() + ttl);
+      synchronized (entries) {
+         entries.put(key, entry);
+      }
+   }
+
+   /**
+    * Caches the failure of an invocation, if failures are cached and the failure is not transient.
+    */
+   void failed(@NonNull Key key, @NonNull Throwable failure) {
+      if (failureTtl == 0 || failure instanceof TimeoutException
+               || failure instanceof RejectedException || failure instanceof InterruptedException
+               || failure instanceof Error) {
+         return;
+      }
+      final Entry entry = new Entry(null, failure, System.nanoTime() + failureTtl);
+      synchronized (entries) {
+         entries.put(key, entry);
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "ResultCache[" + name + "]: " + size() + "/" + size + " results, " + hits()
+               + " hits, " + misses() + " misses";
+   }
+
+   /**
+    * The command line, working directory and environment of an invocation.
+    */
+   @Immutable
+   static final class Key {
+      @NonNull
+      private final List<String> command;
+      @CheckForNull
+      private final File directory;
+      @CheckForNull
+      private final Map<String, String> environment;
+      private final int hash;
+
+      Key(@NonNull List<String> command, @CheckForNull File directory,
+               @CheckForNull Map<String, String> environment) {
+         this.command = command;
+         this.directory = directory;
+         // copied, as the caller may change it afterwards
+         this.environment = environment == null || environment.isEmpty() ? null
+                  : new HashMap<String, String>(environment);
+         int hash = command.hashCode();
+         hash = 31 * hash + (directory == null ? 0 : directory.hashCode());
+         this.hash = 31 * hash + (this.environment == null ? 0 : this.environment.hashCode());
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj) {
+            return true;
+         }
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         final Key other = (Key) obj;
+         return hash == other.hash && command.equals(other.command)
+                  && (directory == null ? other.directory == null : directory
+                           .equals(other.directory))
+                  && (environment == null ? other.environment == null : environment
+                           .equals(other.environment));
+      }
+   }
+
+   /**
+    * A cached result or failure.
+    */
+   @Immutable
+   static final class Entry {
+      @CheckForNull
+      private final Object result;
+      @CheckForNull
+      private final Throwable failure;
+      /**
+       * The expiry, as {@link System#nanoTime()}, {@code 0} for never.
+       */
+      private final long expiry;
+
+      Entry(@CheckForNull Object result, @CheckForNull Throwable failure, long expiry) {
+         this.result = result;
+         this.failure = failure;
+         this.expiry = expiry;
+      }
+
+      boolean expired(long now) {
+         return expiry != 0 && now - expiry >= 0;
+      }
+
+      /**
+       * @return the cached result.
+       * @throws Throwable
+       *            the cached failure.
+       */
+      @CheckForNull
+      Object get() throws Throwable {
+         if (failure != null) {
+            throw failure;
+         }
+         return result;
+      }
+
+      /**
+       * @return the cached result, or failure, as a completed future.
+       */
+      @NonNull
+      CompletableFuture<Object> future() {
+         return failure != null ? CompletableFuture.<Object> failedFuture(failure)
+                  : CompletableFuture.completedFuture(result);
+      }
+   }
+}
@@ -0,0 +1,174 @@
+package com.j2speed.exec.impl;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.j2speed.exec.ResultBuilder;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Builds a {@link LargeOutput}, keeping the output in memory up to a threshold and spilling it to
+ * a temporary file beyond that, so the heap used does not depend on the size of the output.
+ * <p>
+ * The temporary file is released when the built output is closed. If the command fails the output
+ * is not built, and the invocation releases the file by closing the builder.
+ *
+ * @author Alessandro Nistico
+ */
+public class SpillingResultBuilder extends BaseOutputProcessor implements
+         ResultBuilder<LargeOutput>, Closeable {
+   /**
+    * The default threshold, 1MB.
+    */
+   public static final int DEFAULT_THRESHOLD = 1 << 20;
+
+   /**
+    * The size of the mapped segments, 1GB.
+    */
+   static final long SEGMENT_SIZE = 1L << 30;
+
+   private final int threshold;
+   @CheckForNull
+   private final File directory;
+   @NonNull
+   private ByteBuffer buffer;
+   @CheckForNull
+   private FileChannel file;
+   @CheckForNull
+   private IOException failure;
+
+   public SpillingResultBuilder() {
+      this(DEFAULT_THRESHOLD, null);
+   }
+
+   /**
+    * @param threshold
+    *           the number of bytes kept in memory before spilling to a file.
+    * @param directory
+    *           the directory for the temporary file, if {@code null} the default temporary
+    *           directory is used.
+    */
+   public SpillingResultBuilder(int threshold, @CheckForNull File directory) {
+      if (threshold <= 0) {
+         throw new IllegalArgumentException("The threshold must be positive");
+      }
+      this.threshold = threshold;
+      this.directory = directory;
+      this.buffer = ByteBuffer.allocate(Math.min(threshold, 4096));
+   }
+
+   @Override
+   public void process(ByteBuffer data) {
+      if (failure != null) {
+         data.position(data.limit());
+         return;
+      }
+      try {
+         if (data.remaining() > buffer.remaining()) {
+            if (file == null && buffer.position() + data.remaining() <= threshold) {
+               grow(buffer.position() + data.remaining());
+            } else {
+               flush();
+               if (data.remaining() > buffer.remaining()) {
+                  // too large to be buffered, it goes straight to the file
+                  write(data);
+                  return;
+               }
+            }
+         }
+         buffer.put(data);
+      } catch (IOException e) {
+         // the pump swallows the exceptions, so the failure is reported when building
+         failure = e;
+         data.position(data.limit());
+      }
+   }
+
+   @Override
+   public LargeOutput build() {
+      if (failure != null) {
+         close();
+         throw new UncheckedIOException("Cannot spill the output", failure);
+      }
+      final FileChannel file = this.file;
+      if (file == null) {
+         buffer.flip();
+         return new LargeOutput(new ByteBuffer[] { buffer.asReadOnlyBuffer() }, buffer.limit(),
+                  null);
+      }
+      try {
+         flush();
+         final long size = file.size();
+         final ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1)
+                  / SEGMENT_SIZE)];
+         for (int i = 0; i < segments.length; i++) {
+            final long position = i * SEGMENT_SIZE;
+            segments[i] = file.map(MapMode.READ_ONLY, position,
+                     Math.min(SEGMENT_SIZE, size - position));
+         }
+         // the file now belongs to the output
+         this.file = null;
+         return new LargeOutput(segments, size, file);
+      } catch (IOException e) {
+         close();
+         throw new UncheckedIOException("Cannot map the output", e);
+      }
+   }
+
+   private void grow(int required) {
+      final ByteBuffer grown = ByteBuffer.allocate(Math.min(threshold,
+               Math.max(required, buffer.capacity() << 1)));
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+   }
+
+   private void flush() throws IOException {
+      buffer.flip();
+      try {
+         write(buffer);
+      } finally {
+         buffer.clear();
+      }
+   }
+
+   private void write(@NonNull ByteBuffer data) throws IOException {
+      FileChannel file = this.file;
+      if (file == null) {
+         final Path path = directory != null ? Files.createTempFile(directory.toPath(), "output",
+                  ".tmp") : Files.createTempFile("output", ".tmp");
+         this.file = file = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+      }
+      while (data.hasRemaining()) {
+         file.write(data);
+      }
+   }
+
+   /**
+    * Releases the temporary file, if the output has not been built.
+    */
+   @Override
+   public void close() {
+      if (file != null) {
+         try {
+            file.close();
+         } catch (IOException e) {
+            // nothing else can be done
+         }
+         file = null;
+      }
+   }
+}
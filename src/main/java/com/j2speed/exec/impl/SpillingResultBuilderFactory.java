@@ -0,0 +1,17 @@
+package com.j2speed.exec.impl;
+
+import com.j2speed.exec.ResultBuilder;
+
+/**
+ * Creates {@link SpillingResultBuilder}s with the default threshold, spilling to the default
+ * temporary directory.
+ *
+ * @author Alessandro Nistico
+ */
+public class SpillingResultBuilderFactory extends AbstractResultBuilderFactory<LargeOutput> {
+
+   @Override
+   public ResultBuilder<LargeOutput> create() {
+      return new SpillingResultBuilder();
+   }
+}
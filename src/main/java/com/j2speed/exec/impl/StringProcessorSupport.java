@@ -2,19 +2,34 @@ package com.j2speed.exec.impl;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
  * Accumulates a {@link String} from the output.
+ * <p>
+ * The output is kept as bytes and decoded once, when the string is built, so characters split
+ * between chunks of output are decoded correctly. The JDK builds strings directly from the bytes
+ * for US-ASCII and ISO-8859-1, and has a fast path for UTF-8.
  * 
  * @author alex
  */
 public class StringProcessorSupport {
+   private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
    @NonNull
    private final Charset charset;
+   /**
+    * Whether each character is a single byte, so the length is known without decoding.
+    */
+   private final boolean singleByte;
    @NonNull
-   private final StringBuilder builder = new StringBuilder(64);
+   private byte[] bytes = new byte[64];
+   private int count;
+   @CheckForNull
+   private String built;
 
    /**
     * A processor that uses the US-ASCII encoding to decode characters from the output byte stream.
@@ -25,27 +40,44 @@ public class StringProcessorSupport {
 
    public StringProcessorSupport(@NonNull Charset charset) {
       this.charset = charset;
+      this.singleByte = charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1.0f;
    }
 
    public final void process(ByteBuffer buffer) {
-      builder.append(charset.decode(buffer).array());
+      final int remaining = buffer.remaining();
+      if (remaining > bytes.length - count) {
+         final long required = (long) count + remaining;
+         if (required > MAX_SIZE) {
+            throw new OutOfMemoryError("Output too large for a String");
+         }
+         bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_SIZE, Math.max(required,
+                  (long) bytes.length << 1)));
+      }
+      buffer.get(bytes, count, remaining);
+      count += remaining;
+      built = null;
    }
 
    /**
     * Clears and reset the content of the processor.
     */
    public void reset() {
-      builder.delete(0, builder.length());
+      count = 0;
+      built = null;
    }
 
    /**
     * @return the current length of the building string.
     */
    public int length() {
-      return builder.length();
+      return singleByte ? count : buildString().length();
    }
 
    public String buildString() {
-      return builder.toString();
+      String built = this.built;
+      if (built == null) {
+         this.built = built = new String(bytes, 0, count, charset);
+      }
+      return built;
    }
 }
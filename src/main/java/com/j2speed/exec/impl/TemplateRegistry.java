@@ -0,0 +1,175 @@
+package com.j2speed.exec.impl;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The command templates compiled by all the compilers of the JVM, so compiling again an interface,
+ * or another one running the same commands, does not parse the commands and resolve their
+ * executables again.
+ * <p>
+ * A template is shared by all the compilations of the same command with the same command and
+ * working directories, environment and redirection of the error, as it does not depend on
+ * anything else. The least recently compiled templates are dropped beyond {@value #SIZE}.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class TemplateRegistry {
+   static final int SIZE = 1024;
+
+   @GuardedBy("TEMPLATES")
+   private static final Map<Key, Compiled> TEMPLATES = new LinkedHashMap<Key, Compiled>(16, 0.75f,
+            true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Compiled> eldest) {
+         return size() > SIZE;
+      }
+   };
+   private static final LongAdder HITS = new LongAdder();
+   private static final LongAdder MISSES = new LongAdder();
+
+   private TemplateRegistry() {
+   }
+
+   /**
+    * Gets a compiled template, counting a hit or a miss.
+    *
+    * @param key
+    *           the command and the settings it was compiled with.
+    * @param revalidate
+    *           whether to compile the template again if any of its executables changed.
+    * @return the template, {@code null} if not compiled yet, or if its executables changed.
+    */
+   @CheckForNull
+   static CommandTemplate get(@NonNull Key key, boolean revalidate) {
+      final Compiled compiled;
+      synchronized (TEMPLATES) {
+         compiled = TEMPLATES.get(key);
+      }
+      if (compiled == null || (revalidate && compiled.changed())) {
+         MISSES.increment();
+         return null;
+      }
+      HITS.increment();
+      return compiled.template;
+   }
+
+   /**
+    * Registers a compiled template.
+    *
+    * @param key
+    *           the command and the settings it was compiled with.
+    * @param template
+    *           the template.
+    * @param executables
+    *           the executables of the stages, {@code null} for the ones not resolved.
+    */
+   static void put(@NonNull Key key, @NonNull CommandTemplate template,
+            @NonNull Executable[] executables) {
+      synchronized (TEMPLATES) {
+         TEMPLATES.put(key, new Compiled(template, executables));
+      }
+   }
+
+   static int size() {
+      synchronized (TEMPLATES) {
+         return TEMPLATES.size();
+      }
+   }
+
+   static long hits() {
+      return HITS.sum();
+   }
+
+   static long misses() {
+      return MISSES.sum();
+   }
+
+   /**
+    * A command, and the settings it is compiled with.
+    */
+   @Immutable
+   static final class Key {
+      @NonNull
+      private final String command;
+      @CheckForNull
+      private final File commandDirectory;
+      @CheckForNull
+      private final File workingDirectory;
+      @NonNull
+      private final Map<String, String> environment;
+      private final boolean redirectError;
+      private final int hash;
+
+      Key(@NonNull String command, @CheckForNull File commandDirectory,
+               @CheckForNull File workingDirectory, @NonNull Map<String, String> environment,
+               boolean redirectError) {
+         this.command = command;
+         this.commandDirectory = commandDirectory;
+         this.workingDirectory = workingDirectory;
+         this.environment = environment.isEmpty() ? Collections.<String, String> emptyMap()
+                  : Collections.unmodifiableMap(new HashMap<String, String>(environment));
+         this.redirectError = redirectError;
+         this.hash = Objects.hash(command, commandDirectory, workingDirectory, this.environment,
+                  redirectError);
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj) {
+            return true;
+         }
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         final Key other = (Key) obj;
+         return hash == other.hash && redirectError == other.redirectError
+                  && command.equals(other.command)
+                  && Objects.equals(commandDirectory, other.commandDirectory)
+                  && Objects.equals(workingDirectory, other.workingDirectory)
+                  && environment.equals(other.environment);
+      }
+   }
+
+   @Immutable
+   private static final class Compiled {
+      @NonNull
+      final CommandTemplate template;
+      @NonNull
+      final Executable[] executables;
+
+      Compiled(@NonNull CommandTemplate template, @NonNull Executable[] executables) {
+         this.template = template;
+         this.executables = executables;
+      }
+
+      boolean changed() {
+         for (Executable executable : executables) {
+            if (executable != null && executable.current() != executable) {
+               return true;
+            }
+         }
+         return false;
+      }
+   }
+}
@@ -0,0 +1,254 @@
+package com.j2speed.exec.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A hashed wheel of timeouts for the {@link Watchdog}s, where scheduling and cancelling a timeout
+ * take constant time.
+ * <p>
+ * Time is divided in ticks, and each tick is hashed to a bucket of the wheel: a bucket holds the
+ * timeouts of all the ticks that map to it, and when the wheel thread reaches a tick it expires the
+ * timeouts of that tick in the bucket, leaving the others for the next rounds. Timeouts are thus
+ * fired at the tick after their deadline, so the resolution is the tick duration.
+ * <p>
+ * Scheduling and cancelling only push the watchdog on a lock free stack, linked through the
+ * watchdog itself, and the wheel thread moves it in or out of its bucket at the next tick. The
+ * wheel thread parks while there are no timeouts, and ends when the wheel is
+ * {@link #shutdown() shut down}.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class TimerWheel {
+   /**
+    * The default tick duration, in milliseconds.
+    */
+   static final long DEFAULT_TICK = 10;
+
+   @NonNull
+   private final AtomicReference<Watchdog> scheduled = new AtomicReference<Watchdog>();
+   @NonNull
+   private final AtomicReference<Watchdog> cancelled = new AtomicReference<Watchdog>();
+
+   private final long tickNanos;
+   private final long start;
+   private final int mask;
+   @GuardedBy("wheel thread")
+   @NonNull
+   private final Watchdog[] buckets;
+   @GuardedBy("wheel thread")
+   private long tick;
+   @GuardedBy("wheel thread")
+   private int count;
+
+   private volatile boolean idle;
+   private volatile boolean stopped;
+   @NonNull
+   private final Thread thread;
+
+   /**
+    * @param tick
+    *           the tick duration, in milliseconds.
+    * @param size
+    *           the number of buckets, rounded up to a power of two.
+    * @param threads
+    *           the factory of the wheel thread.
+    */
+   TimerWheel(long tick, int size, @NonNull ThreadFactory threads) {
+      if (tick <= 0 || size <= 0) {
+         throw new IllegalArgumentException("Tick and size must be positive");
+      }
+      this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+      this.buckets = new Watchdog[size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1];
+      this.mask = buckets.length - 1;
+      this.start = System.nanoTime();
+      this.thread = threads.newThread(new Runnable() {
+         @Override
+         public void run() {
+            loop();
+         }
+      });
+      thread.start();
+   }
+
+   /**
+    * Creates a watchdog for the process, which fires after the timeout.
+    *
+    * @param process
+    *           the process to watch.
+    * @param timeout
+    *           the timeout in milliseconds, if not positive, or so long that the deadline cannot be
+    *           represented, the process is not watched.
+    * @param metrics
+    *           the metrics recording the timeout, if any.
+    * @return the watchdog to cancel when the operation completes.
+    * @throws IllegalStateException
+    *            if the wheel has been shut down.
+    */
+   @NonNull
+   Watchdog schedule(@NonNull Process process, long timeout, @CheckForNull MethodMetrics metrics) {
+      if (stopped) {
+         throw new IllegalStateException("Timer wheel shut down");
+      }
+      if (timeout <= 0) {
+         return Watchdog.NONE;
+      }
+      final long now = System.nanoTime();
+      final long delay = TimeUnit.MILLISECONDS.toNanos(timeout);
+      // the deadline must not overflow, relative to the start, once rounded up to a tick
+      if (delay > Long.MAX_VALUE - tickNanos - (now - start)) {
+         return Watchdog.NONE;
+      }
+      final Watchdog watchdog = new Watchdog(process, this, metrics);
+      watchdog.deadline = now + delay;
+      Watchdog head;
+      do {
+         head = scheduled.get();
+         watchdog.nextScheduled = head;
+      } while (!scheduled.compareAndSet(head, watchdog));
+      if (idle) {
+         LockSupport.unpark(thread);
+      }
+      return watchdog;
+   }
+
+   /**
+    * Removes a cancelled watchdog from the wheel, at the next tick.
+    */
+   void cancelled(@NonNull Watchdog watchdog) {
+      Watchdog head;
+      do {
+         head = cancelled.get();
+         watchdog.nextCancelled = head;
+      } while (!cancelled.compareAndSet(head, watchdog));
+   }
+
+   /**
+    * Stops the wheel thread, the timeouts not expired yet are not fired any more.
+    */
+   void shutdown() {
+      stopped = true;
+      LockSupport.unpark(thread);
+   }
+
+   private void loop() {
+      tick = currentTick();
+      while (!stopped) {
+         removeCancelled();
+         addScheduled();
+         if (count == 0) {
+            idle = true;
+            // checks again, a watchdog scheduled before the flag was set did not unpark the thread
+            if (scheduled.get() == null && !stopped) {
+               LockSupport.park(this);
+            }
+            idle = false;
+            // nothing to expire in the ticks passed while idle
+            tick = currentTick();
+            continue;
+         }
+         final long nextTick = start + (tick + 1) * tickNanos;
+         long delay;
+         while ((delay = nextTick - System.nanoTime()) > 0) {
+            if (stopped) {
+               return;
+            }
+            LockSupport.parkNanos(this, delay);
+         }
+         tick++;
+         removeCancelled();
+         addScheduled();
+         expire(tick);
+      }
+   }
+
+   private long currentTick() {
+      return (System.nanoTime() - start) / tickNanos;
+   }
+
+   @GuardedBy("wheel thread")
+   private void addScheduled() {
+      for (Watchdog watchdog = scheduled.getAndSet(null), next; watchdog != null; watchdog = next) {
+         next = watchdog.nextScheduled;
+         watchdog.nextScheduled = null;
+         if (watchdog.state() != Watchdog.WAITING) {
+            continue;
+         }
+         // rounded up, so the watchdog never fires before its deadline
+         long deadlineTick = (watchdog.deadline - start + tickNanos - 1) / tickNanos;
+         if (deadlineTick <= tick) {
+            deadlineTick = tick + 1;
+         }
+         watchdog.deadlineTick = deadlineTick;
+         link(watchdog, (int) (deadlineTick & mask));
+      }
+   }
+
+   @GuardedBy("wheel thread")
+   private void removeCancelled() {
+      for (Watchdog watchdog = cancelled.getAndSet(null), next; watchdog != null; watchdog = next) {
+         next = watchdog.nextCancelled;
+         watchdog.nextCancelled = null;
+         if (watchdog.bucket != -1) {
+            unlink(watchdog);
+         }
+      }
+   }
+
+   @GuardedBy("wheel thread")
+   private void expire(long tick) {
+      for (Watchdog watchdog = buckets[(int) (tick & mask)], next; watchdog != null; watchdog = next) {
+         next = watchdog.next;
+         if (watchdog.deadlineTick <= tick) {
+            unlink(watchdog);
+            if (watchdog.expire()) {
+               try {
+                  watchdog.run();
+               } catch (Throwable th) {
+                  // the wheel must keep going
+               }
+            }
+         }
+      }
+   }
+
+   @GuardedBy("wheel thread")
+   private void link(@NonNull Watchdog watchdog, int bucket) {
+      final Watchdog head = buckets[bucket];
+      watchdog.bucket = bucket;
+      watchdog.previous = null;
+      watchdog.next = head;
+      if (head != null) {
+         head.previous = watchdog;
+      }
+      buckets[bucket] = watchdog;
+      count++;
+   }
+
+   @GuardedBy("wheel thread")
+   private void unlink(@NonNull Watchdog watchdog) {
+      final Watchdog previous = watchdog.previous;
+      final Watchdog next = watchdog.next;
+      if (previous != null) {
+         previous.next = next;
+      } else {
+         buckets[watchdog.bucket] = next;
+      }
+      if (next != null) {
+         next.previous = previous;
+      }
+      watchdog.previous = null;
+      watchdog.next = null;
+      watchdog.bucket = -1;
+      count--;
+   }
+}
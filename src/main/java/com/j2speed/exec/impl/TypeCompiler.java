@@ -91,20 +91,113 @@ public final class TypeCompiler<T> extends Compiler<T> {
       return this;
    }
 
+   @Override
+   public TypeCompiler<T> pooled(int size, int maxRequests) {
+      super.pooled(size, maxRequests);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> delimiter(String delimiter) {
+      super.delimiter(delimiter);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> lengthPrefix(boolean lengthPrefix) {
+      super.lengthPrefix(lengthPrefix);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> virtualThreads(boolean virtualThreads) {
+      super.virtualThreads(virtualThreads);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> bufferSize(int bufferSize) {
+      super.bufferSize(bufferSize);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> multiplexed(boolean multiplexed) {
+      super.multiplexed(multiplexed);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> metrics(boolean metrics) {
+      super.metrics(metrics);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> maxConcurrent(int max, int maxQueued, long maxWait) {
+      super.maxConcurrent(max, maxQueued, maxWait);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> cacheable(int size, long ttl, long failureTtl) {
+      super.cacheable(size, ttl, failureTtl);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> persistentCache(File directory, long maxSize, boolean stamps) {
+      super.persistentCache(directory, maxSize, stamps);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> singleFlight(boolean singleFlight) {
+      super.singleFlight(singleFlight);
+      return this;
+   }
+
+   @Override
+   public TypeCompiler<T> revalidate(boolean revalidate) {
+      super.revalidate(revalidate);
+      return this;
+   }
+
+   /**
+    * Compiles the interface into an instance of the implementation generated by
+    * {@link com.j2speed.exec.processor.ExecProcessor}, if found, otherwise into a
+    * {@link java.lang.reflect.Proxy}.
+    */
    @Override
    public T compile() {
-      InvocationHandler handler = null;
-      if (compilingMethods.size() > 1) {
-         MultiMethodInvocationHanlder multiHandler = new MultiMethodInvocationHanlder();
-         for (Map.Entry<Method, MethodCompiler<T>> compilers : compilingMethods.entrySet()) {
-            multiHandler.add(compilers.getKey(), compilers.getValue().newHandler());
-         }
-         handler = multiHandler;
-      } else {
-         for (MethodCompiler<?> methodCompiler : compilingMethods.values()) {
-            handler = methodCompiler.newHandler();
+      // the bound of the type is shared by all the methods of the new proxy
+      final Admission admission = newAdmission(type.getName(), null);
+      final Map<Method, MethodInvocationHandler> handlers =
+               new HashMap<Method, MethodInvocationHandler>();
+      for (Map.Entry<Method, MethodCompiler<T>> compilers : compilingMethods.entrySet()) {
+         handlers.put(compilers.getKey(), compilers.getValue().newHandler(admission));
+      }
+      T compiled = Implementation.create(type, handlers);
+      if (compiled == null) {
+         InvocationHandler handler = null;
+         if (handlers.size() > 1) {
+            MultiMethodInvocationHanlder multiHandler = new MultiMethodInvocationHanlder();
+            for (Map.Entry<Method, MethodInvocationHandler> entry : handlers.entrySet()) {
+               multiHandler.add(entry.getKey(), entry.getValue());
+            }
+            handler = multiHandler;
+         } else {
+            for (MethodInvocationHandler methodHandler : handlers.values()) {
+               handler = methodHandler;
+            }
          }
+         compiled = type.cast(newProxyInstance(type.getClassLoader(), new Class[] { type },
+                  handler));
+      }
+      // exposed only once all the methods compiled
+      for (MethodCompiler<T> methodCompiler : compilingMethods.values()) {
+         methodCompiler.expose(compiled);
       }
-      return type.cast(newProxyInstance(type.getClassLoader(), new Class[] { type }, handler));
+      return compiled;
    }
-}
\ No newline at end of file
+}
@@ -3,14 +3,15 @@
  */
 package com.j2speed.exec.impl;
 
-import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import com.j2speed.exec.Env;
 import com.j2speed.exec.ErrorBuilderFactory;
+import com.j2speed.exec.Priority;
 import com.j2speed.exec.ResultBuilderFactory;
 import com.j2speed.exec.Run;
 import com.j2speed.exec.Timeout;
@@ -24,24 +25,24 @@ import edu.umd.cs.findbugs.annotations.NonNull;
  * @author Alessandro Nistico
  */
 public final class VarargsInvocationHandler extends MethodInvocationHandler {
-   @NonNull
-   private final List<String> command;
 
-   public VarargsInvocationHandler(Method method, long timeout, int normalTermination,
+   VarargsInvocationHandler(Method method, long timeout, int normalTermination,
             ResultBuilderFactory<?> resultBuilderFactory,
-            ErrorBuilderFactory<?> errorBuilderFactory, ProcessBuilder builder,
-            List<Argument> arguments) {
-      super(method, timeout, normalTermination, resultBuilderFactory, errorBuilderFactory, builder,
-               arguments);
+            ErrorBuilderFactory<?> errorBuilderFactory, CommandTemplate template,
+            Executor processor, OutputMultiplexer multiplexer, OutputBuffers buffers,
+            Admission admission, MethodMetrics metrics, ResultCache cache, DiskCache diskCache,
+            Coalescer coalescer) {
+      super(method, timeout, normalTermination, resultBuilderFactory, errorBuilderFactory, template,
+               processor, multiplexer, buffers, admission, metrics, cache, diskCache, coalescer);
       Annotation[] varargAnnotations = method.getParameterAnnotations()[method.getParameterTypes().length - 1];
       if (varargAnnotations != null) {
          checkVarArgsAnnotations(varargAnnotations);
       }
-      command = builder.command();
    }
 
    private void checkVarArgsAnnotations(@NonNull Annotation[] annotations) {
-      final Class<?>[] exclusions = { Run.class, Env.class, Timeout.class, WorkingDir.class };
+      final Class<?>[] exclusions = { Run.class, Env.class, Timeout.class, WorkingDir.class,
+               Priority.class };
       for (Annotation a : annotations) {
          for (Class<?> exclusion : exclusions) {
             if (exclusion == a.annotationType()) {
@@ -56,31 +57,32 @@ public final class VarargsInvocationHandler extends MethodInvocationHandler {
    }
 
    @Override
-   Process start(ProcessBuilder builder, Argument[] arguments, Object[] args) throws IOException {
-      final int last = arguments.length - 1;
+   List<String> command(CommandTemplate template, Object[] args) {
+      final int last = template.argumentsCount() - 1;
       final int varargsCount;
       final int nonVarargsCount;
       final Object[] varargs = (Object[]) args[nonVarargsCount = args.length - 1];
-      final List<String> command = new ArrayList<String>(this.command.size()
+      final List<String> command = new ArrayList<String>(template.size()
                + (varargsCount = varargs.length));
-      command.addAll(this.command);
+      command.addAll(template.command());
       Argument argument;
       for (int i = 0, a = 0; i < nonVarargsCount; i++) {
-         if (notExecutionParameter(args, i)) {
+         if (notExecutionParameter(i)) {
             // We use toString() on the argument value to force an NPE if the value is not provided
-            command.set((argument = arguments[a++]).getIndex(), argument.apply(args[i].toString()));
+            command.set((argument = template.argument(a++)).getIndex(),
+                     argument.apply(args[i].toString()));
          }
       }
       if (varargsCount > 0) {
          int i;
          // We use toString() on the argument value to force an NPE if the value is not provided
-         command.set((argument = arguments[last]).getIndex(),
+         command.set((argument = template.argument(last)).getIndex(),
                   argument.apply(varargs[i = varargsCount - 1].toString()));
          while (--i >= 0) {
             command.add(argument.getIndex(), argument.apply(varargs[i].toString()));
          }
       }
 
-      return builder.command(command).start();
+      return command;
    }
 }
@@ -1,9 +1,11 @@
 package com.j2speed.exec.impl;
 
 import static com.j2speed.exec.impl.Controller.kill;
+import static com.j2speed.exec.impl.Controller.timedOut;
 
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 import com.j2speed.exec.TimeoutException;
@@ -14,45 +16,108 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
  * A watchdog that, when executed, will kill a process, if not already terminated.
- * 
+ * <p>
+ * The watchdog is also the entry of its timeout in the {@link TimerWheel}, so scheduling and
+ * cancelling a timeout does not allocate anything else.
+ *
  * @author Alessandro Nistico
  */
 @ThreadSafe
 final class Watchdog implements Runnable {
-   
-   @NonNull
+
+   /**
+    * The watchdog of the processes without a timeout, which never fires.
+    */
+   static final Watchdog NONE = new Watchdog(null, null, null);
+
+   static final int WAITING = 0;
+   static final int CANCELLED = 1;
+   static final int EXPIRED = 2;
+
+   private static final AtomicIntegerFieldUpdater<Watchdog> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(Watchdog.class, "state");
+
+   @CheckForNull
    private final Process process;
    @CheckForNull
-   private volatile Future<?> future;
+   private final TimerWheel wheel;
+   @CheckForNull
+   private final MethodMetrics metrics;
+
+   private volatile int state;
 
    private volatile boolean timedout;
 
-   Watchdog(@NonNull Process process) {
+   /**
+    * The deadline, as {@link System#nanoTime()}.
+    */
+   long deadline;
+
+   /**
+    * The links used by the {@link TimerWheel} to queue the watchdog, before and after it is
+    * scheduled, and to cancel it.
+    */
+   @CheckForNull
+   Watchdog nextScheduled;
+   @CheckForNull
+   Watchdog nextCancelled;
+
+   /**
+    * The position of the watchdog in the wheel, only accessed by the wheel thread.
+    */
+   @GuardedBy("wheel thread")
+   long deadlineTick;
+   @GuardedBy("wheel thread")
+   int bucket = -1;
+   @GuardedBy("wheel thread")
+   @CheckForNull
+   Watchdog previous;
+   @GuardedBy("wheel thread")
+   @CheckForNull
+   Watchdog next;
+
+   Watchdog(@CheckForNull Process process, @CheckForNull TimerWheel wheel,
+            @CheckForNull MethodMetrics metrics) {
       this.process = process;
+      this.wheel = wheel;
+      this.metrics = metrics;
    }
 
-   void setFuture(@NonNull Future<?> future) {
-      this.future = future;
+   int state() {
+      return state;
    }
 
+   /**
+    * Cancels the timeout, once the watched operation completed.
+    *
+    * @throws TimeoutException
+    *            if the process was killed because it timed out.
+    */
    void cancel() throws TimeoutException {
-      Future<?> future;
-      if ((future = this.future) != null) {
-         future.cancel(true);
+      if (wheel != null && STATE.compareAndSet(this, WAITING, CANCELLED)) {
+         wheel.cancelled(this);
       }
       if (timedout) {
          throw new TimeoutException();
       }
    }
 
+   /**
+    * Marks the timeout as expired, unless it has been cancelled.
+    *
+    * @return whether the watchdog is to be run.
+    */
+   boolean expire() {
+      return STATE.compareAndSet(this, WAITING, EXPIRED);
+   }
+
    @Override
    public void run() {
-      try {
-         process.exitValue();
-      } catch (IllegalThreadStateException e) {
+      if (process.isAlive()) {
          // process not done yet, must be destroyed
          timedout = true;
-         kill(process);
+         timedOut(metrics);
+         kill(process, true);
       }
    }
 }
@@ -0,0 +1,375 @@
+package com.j2speed.exec.impl;
+
+import static com.j2speed.exec.impl.Controller.kill;
+import static com.j2speed.exec.impl.Controller.register;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.j2speed.exec.Processor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A bounded pool of long lived worker processes, all started from the same command.
+ * <p>
+ * Workers are started on demand, up to the size of the pool, and replaced when they terminate,
+ * fail or have served the maximum number of requests.
+ * <p>
+ * The error output of a worker is passed to the error processor of the request it is serving, and
+ * discarded between requests.
+ *
+ * @author Alessandro Nistico
+ */
+@ThreadSafe
+final class WorkerPool {
+   /**
+    * How long to wait, in milliseconds, for a worker that stopped responding to exit and for its
+    * error output to be read.
+    */
+   private static final long EXIT_WAIT = 1000;
+
+   @NonNull
+   private final CommandTemplate template;
+   @NonNull
+   private final Executor processor;
+   private final int maxRequests;
+   @NonNull
+   private final byte[] delimiter;
+   private final boolean lengthPrefix;
+   @NonNull
+   private final Semaphore available;
+   @NonNull
+   private final BlockingQueue<Worker> idle;
+
+   WorkerPool(@NonNull CommandTemplate template, @NonNull Executor processor, int size,
+            int maxRequests, @NonNull String delimiter, boolean lengthPrefix) {
+      if (size <= 0) {
+         throw new IllegalArgumentException("The pool size must be positive");
+      }
+      this.template = template;
+      this.processor = processor;
+      this.maxRequests = maxRequests;
+      this.delimiter = delimiter.getBytes(Charset.defaultCharset());
+      this.lengthPrefix = lengthPrefix;
+      this.available = new Semaphore(size);
+      this.idle = new LinkedBlockingQueue<Worker>(size);
+   }
+
+   /**
+    * Checks that a request can be framed, as a request containing the delimiter would be read by
+    * the worker as more than one, and their responses handed to other requests.
+    *
+    * @param request
+    *           the request, without framing.
+    * @return the request.
+    * @throws IllegalArgumentException
+    *            if the request contains the delimiter.
+    */
+   @NonNull
+   byte[] checked(@NonNull byte[] request) {
+      if (!lengthPrefix) {
+         for (int i = 0, last = request.length - delimiter.length; i <= last; i++) {
+            int matched = 0;
+            while (matched < delimiter.length && request[i + matched] == delimiter[matched]) {
+               matched++;
+            }
+            if (matched == delimiter.length) {
+               throw new IllegalArgumentException("The request contains the delimiter at " + i);
+            }
+         }
+      }
+      return request;
+   }
+
+   /**
+    * Takes a live worker from the pool, waiting for one to be available if all are busy.
+    *
+    * @return the worker, to be returned with {@link #release(Worker, boolean)}.
+    * @throws IOException
+    *            if a new worker cannot be started.
+    * @throws InterruptedException
+    */
+   @NonNull
+   Worker borrow() throws IOException, InterruptedException {
+      available.acquire();
+      try {
+         Worker worker;
+         while ((worker = idle.poll()) != null) {
+            if (worker.isAlive()) {
+               return worker;
+            }
+            worker.destroy();
+         }
+         return new Worker(template.newBuilder(template.command(), null, null).start());
+      } catch (IOException e) {
+         available.release();
+         throw e;
+      } catch (RuntimeException e) {
+         available.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Returns a worker to the pool.
+    *
+    * @param worker
+    *           the worker to return.
+    * @param reusable
+    *           {@code false} if the worker must not serve any more requests, for example because
+    *           it failed.
+    */
+   void release(@NonNull Worker worker, boolean reusable) {
+      try {
+         if (reusable && (maxRequests == 0 || worker.requests < maxRequests) && worker.isAlive()) {
+            idle.offer(worker);
+         } else {
+            worker.destroy();
+         }
+      } finally {
+         available.release();
+      }
+   }
+
+   /**
+    * A worker process, used by one request at a time.
+    */
+   final class Worker {
+      @NonNull
+      final Process process;
+      @NonNull
+      private final InputStream output;
+      @NonNull
+      private final OutputStream input;
+      /**
+       * Holds the bytes of a response not consumed by its processor yet, grown when it gets full.
+       */
+      @NonNull
+      private ByteBuffer buffer = ByteBuffer.allocate(Math.max(4096, 2 * delimiter.length));
+      /**
+       * The processor of the error output of the request being served, if any.
+       */
+      @GuardedBy("this")
+      @CheckForNull
+      private Processor error;
+      /**
+       * Released once the error output of the worker has been read to its end.
+       */
+      @NonNull
+      private final CountDownLatch errorRead = new CountDownLatch(1);
+      private int requests;
+
+      Worker(@NonNull Process process) {
+         this.process = process;
+         // registered for the shutdown, the timeout is applied on each request
+         register(process, 0);
+         this.output = process.getInputStream();
+         this.input = process.getOutputStream();
+         if (template.redirectError()) {
+            errorRead.countDown();
+         } else {
+            final OutputPump pump = new OutputPump(process, process.getErrorStream(),
+                     new Processor() {
+                        @Override
+                        public void process(ByteBuffer buffer) {
+                           processError(buffer);
+                        }
+
+                        @Override
+                        public void done() {
+                        }
+                     });
+            processor.execute(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     pump.run();
+                  } finally {
+                     errorRead.countDown();
+                  }
+               }
+            });
+         }
+      }
+
+      boolean isAlive() {
+         return process.isAlive();
+      }
+
+      void destroy() {
+         kill(process);
+      }
+
+      /**
+       * Waits for a worker that stopped responding to exit, and for its error output to be read.
+       *
+       * @return whether the worker exited.
+       * @throws InterruptedException
+       */
+      boolean terminated() throws InterruptedException {
+         return process.waitFor(EXIT_WAIT, TimeUnit.MILLISECONDS)
+                  && errorRead.await(EXIT_WAIT, TimeUnit.MILLISECONDS);
+      }
+
+      /**
+       * Sends a request to the worker and passes the response to the given processor.
+       *
+       * @param request
+       *           the request, without framing.
+       * @param response
+       *           the processor for the response.
+       * @param error
+       *           the processor for the error output of the worker while serving the request, if
+       *           any.
+       * @throws IOException
+       *            if the worker terminates or the communication fails.
+       */
+      void exchange(@NonNull byte[] request, @NonNull Processor response,
+               @CheckForNull Processor error) throws IOException {
+         requests++;
+         // on failure the worker is not reused, and its error output goes on to the same
+         // processor up to the end
+         serving(error);
+         if (lengthPrefix) {
+            input.write(new byte[] { (byte) (request.length >>> 24),
+                     (byte) (request.length >>> 16), (byte) (request.length >>> 8),
+                     (byte) request.length });
+            input.write(request);
+            input.flush();
+            readLength(response);
+         } else {
+            input.write(request);
+            input.write(delimiter);
+            input.flush();
+            readDelimited(response);
+         }
+         serving(null);
+         response.done();
+      }
+
+      private synchronized void serving(@CheckForNull Processor error) {
+         this.error = error;
+      }
+
+      private synchronized void processError(@NonNull ByteBuffer buffer) {
+         if (error != null) {
+            error.process(buffer);
+         } else {
+            buffer.position(buffer.limit());
+         }
+      }
+
+      private void readLength(@NonNull Processor response) throws IOException {
+         int length = 0;
+         for (int i = 0; i < 4; i++) {
+            length = (length << 8) | read();
+         }
+         if (length < 0) {
+            throw new IOException("Invalid response length " + length);
+         }
+         buffer.clear();
+         while (length > 0) {
+            final int read = output.read(buffer.array(), buffer.position(),
+                     Math.min(length, buffer.remaining()));
+            if (read == -1) {
+               throw new IOException("Worker terminated");
+            }
+            length -= read;
+            buffer.position(buffer.position() + read);
+            buffer.flip();
+            response.process(buffer);
+            compact();
+         }
+      }
+
+      private void readDelimited(@NonNull Processor response) throws IOException {
+         final byte[] delimiter = WorkerPool.this.delimiter;
+         buffer.clear();
+         int matched = 0;
+         for (;;) {
+            final byte b = (byte) read();
+            final byte[] buf = buffer.array();
+            buf[buffer.position()] = b;
+            buffer.position(buffer.position() + 1);
+            matched = b == delimiter[matched] ? matched + 1 : matchFrom(buf, buffer.position());
+            if (matched == delimiter.length) {
+               buffer.position(buffer.position() - matched);
+               flush(response, 0);
+               return;
+            }
+            if (!buffer.hasRemaining()) {
+               // keep what could be the beginning of the delimiter
+               flush(response, matched);
+            }
+         }
+      }
+
+      /**
+       * @return the length of the longest prefix of the delimiter the data ends with.
+       */
+      private int matchFrom(@NonNull byte[] data, int end) {
+         final byte[] delimiter = WorkerPool.this.delimiter;
+         for (int length = Math.min(delimiter.length - 1, end); length > 0; length--) {
+            boolean match = true;
+            for (int i = 0, start = end - length; match && i < length; i++) {
+               match = data[start + i] == delimiter[i];
+            }
+            if (match) {
+               return length;
+            }
+         }
+         return 0;
+      }
+
+      /**
+       * Passes the buffered response to the processor, but for the last {@code keep} bytes.
+       */
+      private void flush(@NonNull Processor response, int keep) {
+         final int end = buffer.position();
+         buffer.flip();
+         buffer.limit(end - keep);
+         if (buffer.hasRemaining()) {
+            response.process(buffer);
+         }
+         // what the processor left is kept, ahead of the bytes held back
+         buffer.limit(end);
+         compact();
+      }
+
+      /**
+       * Moves the bytes not consumed yet to the beginning of the buffer, growing it if they fill
+       * it.
+       */
+      private void compact() {
+         buffer.compact();
+         if (!buffer.hasRemaining()) {
+            final ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() << 1);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+         }
+      }
+
+      private int read() throws IOException {
+         final int read = output.read();
+         if (read == -1) {
+            throw new IOException("Worker terminated");
+         }
+         return read;
+      }
+   }
+}
@@ -0,0 +1,383 @@
+package com.j2speed.exec.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+import com.j2speed.exec.Run;
+import com.j2speed.exec.impl.Implementation;
+import com.j2speed.exec.impl.MethodInvocationHandler;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Generates, at build time, the implementation of each interface with methods annotated with
+ * {@link Run}, used by {@link com.j2speed.exec.impl.TypeCompiler#compile()} in place of a
+ * {@link java.lang.reflect.Proxy}.
+ * <p>
+ * Each method of a generated implementation calls the handler of the method directly, from a
+ * field, so the invocations are monomorphic calls that the JIT can inline, rather than going
+ * through the {@link java.lang.reflect.InvocationHandler} of a proxy and a lookup of the handler
+ * of the invoked method. The handlers are still created by the compiler, so all its settings
+ * apply, and the commands are checked at build time, with a warning for the syntax errors and the
+ * missing parameters.
+ * <p>
+ * No implementation is generated for the generic or private interfaces, which are still compiled
+ * into a proxy.
+ * <p>
+ * The processor is registered as a service, so it runs whenever the library is in the class path
+ * of the compiler.
+ *
+ * @author Alessandro Nistico
+ */
+@SupportedAnnotationTypes("com.j2speed.exec.Run")
+public final class ExecProcessor extends AbstractProcessor {
+
+   @Override
+   public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+   }
+
+   @Override
+   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+      final Set<TypeElement> types = new LinkedHashSet<TypeElement>();
+      for (Element element : round.getElementsAnnotatedWith(Run.class)) {
+         final Element enclosing = element.getEnclosingElement();
+         if (enclosing.getKind() != ElementKind.INTERFACE) {
+            error("@Run is only allowed on the methods of an interface", element);
+            continue;
+         }
+         final ExecutableElement method = (ExecutableElement) element;
+         final String error = check(method.getAnnotation(Run.class).value(), method
+                  .getParameters().size());
+         if (error != null) {
+            // only a warning, as the command can still be replaced when compiled
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.MANDATORY_WARNING, error,
+                     element);
+         }
+         types.add((TypeElement) enclosing);
+      }
+      for (TypeElement type : types) {
+         if (implementable(type)) {
+            generate(type);
+         }
+      }
+      // other processors may handle @Run too
+      return false;
+   }
+
+   /**
+    * Checks a command as the compiler parses it.
+    *
+    * @param command
+    *           the command.
+    * @param parameters
+    *           the number of parameters of the method.
+    * @return the error, {@code null} if the command is valid.
+    */
+   @CheckForNull
+   static String check(@NonNull String command, int parameters) {
+      command = command.trim();
+      if (command.isEmpty()) {
+         return "Empty command";
+      }
+      boolean quoting = false;
+      boolean emptyStage = true;
+      int arguments = 0;
+      for (int i = 0, length = command.length(); i < length;) {
+         final char ch = command.charAt(i++);
+         switch (ch) {
+         case '|':
+            if (!quoting) {
+               if (emptyStage) {
+                  return "Empty pipeline stage in \"" + command + "\"";
+               }
+               emptyStage = true;
+            }
+            break;
+         case ' ':
+            break;
+         case '\\':
+            i++; // do not check the next char
+            emptyStage = false;
+            break;
+         case '"':
+            quoting = !quoting;
+            emptyStage = false;
+            break;
+         case '{':
+            if (!command.startsWith("?}", i)) {
+               return "Syntax error at " + (i + 1) + " in \"" + command + "\"";
+            }
+            i += 2;
+            arguments++;
+            emptyStage = false;
+            break;
+         default:
+            emptyStage = false;
+         }
+      }
+      if (emptyStage) {
+         return "Empty pipeline stage in \"" + command + "\"";
+      }
+      if (arguments > parameters) {
+         return "Not enough parameters in the method for \"" + command + "\"";
+      }
+      return null;
+   }
+
+   private boolean implementable(@NonNull TypeElement type) {
+      if (!type.getTypeParameters().isEmpty()) {
+         note("No implementation generated for the generic interface", type);
+         return false;
+      }
+      for (Element element = type; element instanceof TypeElement; element = element
+               .getEnclosingElement()) {
+         if (element.getModifiers().contains(Modifier.PRIVATE)) {
+            note("No implementation generated for the private interface", type);
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void generate(@NonNull TypeElement type) {
+      final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+      final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+      final String name = binaryName.substring(binaryName.lastIndexOf('.') + 1)
+               + Implementation.SUFFIX;
+      final List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+      // the same method can be inherited from more interfaces
+      final Set<String> signatures = new HashSet<String>();
+      for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils()
+               .getAllMembers(type))) {
+         if (method.getModifiers().contains(Modifier.ABSTRACT)
+                  && method.getEnclosingElement().getKind() == ElementKind.INTERFACE
+                  && signatures.add(method.getSimpleName() + lookup(method))) {
+            methods.add(method);
+         }
+      }
+
+      final PrintWriter out;
+      try {
+         out = new PrintWriter(processingEnv.getFiler().createSourceFile(
+                  pkg.isUnnamed() ? name : pkg.getQualifiedName() + "." + name, type)
+                  .openWriter());
+      } catch (IOException e) {
+         error("Cannot generate the implementation: " + e.getMessage(), type);
+         return;
+      }
+      try {
+         if (!pkg.isUnnamed()) {
+            out.println("package " + pkg.getQualifiedName() + ";");
+            out.println();
+         }
+         out.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+         out.println("@SuppressWarnings(\"unchecked\")");
+         out.println("final class " + name + " extends " + Implementation.class.getName()
+                  + " implements " + type.getQualifiedName() + " {");
+         for (int i = 0; i < methods.size(); i++) {
+            out.println("   private final " + MethodInvocationHandler.class.getName() + " handler"
+                     + i + ";");
+         }
+         out.println();
+         out.println("   " + name + "(java.util.Map<java.lang.reflect.Method, "
+                  + MethodInvocationHandler.class.getName() + "> handlers) {");
+         out.println("      super(handlers);");
+         for (int i = 0; i < methods.size(); i++) {
+            out.println("      handler" + i + " = handler(" + type.getQualifiedName()
+                     + ".class, \"" + methods.get(i).getSimpleName() + "\""
+                     + lookup(methods.get(i)) + ");");
+         }
+         out.println("   }");
+         for (int i = 0; i < methods.size(); i++) {
+            out.println();
+            method(out, type, methods.get(i), "handler" + i);
+         }
+         out.println("}");
+      } finally {
+         out.close();
+      }
+   }
+
+   private void method(@NonNull PrintWriter out, @NonNull TypeElement type,
+            @NonNull ExecutableElement method, @NonNull String handler) {
+      // as inherited by the interface, with the type arguments of its super interfaces
+      final ExecutableType executable = (ExecutableType) types().asMemberOf(
+               (DeclaredType) type.asType(), method);
+      final List<? extends TypeMirror> parameters = executable.getParameterTypes();
+      final StringBuilder signature = new StringBuilder("   public ");
+      if (!method.getTypeParameters().isEmpty()) {
+         signature.append('<');
+         for (TypeParameterElement parameter : method.getTypeParameters()) {
+            if (parameter != method.getTypeParameters().get(0)) {
+               signature.append(", ");
+            }
+            signature.append(parameter.getSimpleName());
+            final List<? extends TypeMirror> bounds = parameter.getBounds();
+            for (int i = 0; i < bounds.size(); i++) {
+               signature.append(i == 0 ? " extends " : " & ").append(bounds.get(i));
+            }
+         }
+         signature.append("> ");
+      }
+      signature.append(executable.getReturnType()).append(' ').append(method.getSimpleName())
+               .append('(');
+      for (int i = 0; i < parameters.size(); i++) {
+         if (i > 0) {
+            signature.append(", ");
+         }
+         if (i == parameters.size() - 1 && method.isVarArgs()) {
+            signature.append(((ArrayType) parameters.get(i)).getComponentType()).append("...");
+         } else {
+            signature.append(parameters.get(i));
+         }
+         signature.append(" arg").append(i);
+      }
+      signature.append(')');
+      final List<? extends TypeMirror> thrown = executable.getThrownTypes();
+      for (int i = 0; i < thrown.size(); i++) {
+         signature.append(i == 0 ? " throws " : ", ").append(thrown.get(i));
+      }
+
+      final StringBuilder args = new StringBuilder();
+      if (parameters.isEmpty()) {
+         // as passed by a proxy
+         args.append("null");
+      } else {
+         args.append("new Object[] { ");
+         for (int i = 0; i < parameters.size(); i++) {
+            args.append(i == 0 ? "arg" : ", arg").append(i);
+         }
+         args.append(" }");
+      }
+      // the handlers are bound to their method, so none is passed
+      final String invoke = handler + ".invoke(this, null, " + args + ")";
+      final TypeMirror returnType = executable.getReturnType();
+      final String call;
+      if (returnType.getKind() == TypeKind.VOID) {
+         call = invoke + ";";
+      } else if (returnType.getKind().isPrimitive()) {
+         call = "return (" + types().boxedClass(types().getPrimitiveType(returnType.getKind()))
+                  .getQualifiedName() + ") " + invoke + ";";
+      } else {
+         call = "return (" + returnType + ") " + invoke + ";";
+      }
+
+      out.println("   @Override");
+      out.println(signature.append(" {"));
+      if (declares(thrown, Throwable.class)) {
+         out.println("      " + call);
+         out.println("   }");
+         return;
+      }
+      out.println("      try {");
+      out.println("         " + call);
+      out.println("      } catch (RuntimeException e) {");
+      out.println("         throw e;");
+      out.println("      } catch (Error e) {");
+      out.println("         throw e;");
+      for (TypeMirror exception : caught(thrown)) {
+         out.println("      } catch (" + exception + " e) {");
+         out.println("         throw e;");
+      }
+      out.println("      } catch (Throwable th) {");
+      out.println("         throw new java.lang.reflect.UndeclaredThrowableException(th);");
+      out.println("      }");
+      out.println("   }");
+   }
+
+   /**
+    * @return the checked exceptions to rethrow, in an order each one can be caught in.
+    */
+   @NonNull
+   private List<TypeMirror> caught(@NonNull List<? extends TypeMirror> thrown) {
+      final TypeMirror runtime = type(RuntimeException.class);
+      final TypeMirror error = type(Error.class);
+      final List<TypeMirror> caught = new ArrayList<TypeMirror>();
+      for (TypeMirror exception : thrown) {
+         if (types().isSubtype(exception, runtime) || types().isSubtype(exception, error)) {
+            continue;
+         }
+         boolean covered = false;
+         for (TypeMirror other : thrown) {
+            if (other != exception && !types().isSameType(other, exception)
+                     && types().isSubtype(exception, other)) {
+               covered = true;
+            }
+         }
+         for (TypeMirror other : caught) {
+            covered |= types().isSameType(other, exception);
+         }
+         if (!covered) {
+            caught.add(exception);
+         }
+      }
+      return caught;
+   }
+
+   private boolean declares(@NonNull List<? extends TypeMirror> thrown, @NonNull Class<?> type) {
+      for (TypeMirror exception : thrown) {
+         if (types().isSameType(exception, type(type))) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * @return the parameter types of a method as looked up by reflection, that is erased as
+    *         declared.
+    */
+   @NonNull
+   private String lookup(@NonNull ExecutableElement method) {
+      final StringBuilder lookup = new StringBuilder();
+      for (Element parameter : method.getParameters()) {
+         lookup.append(", ").append(types().erasure(parameter.asType())).append(".class");
+      }
+      return lookup.toString();
+   }
+
+   @NonNull
+   private TypeMirror type(@NonNull Class<?> type) {
+      return processingEnv.getElementUtils().getTypeElement(type.getCanonicalName()).asType();
+   }
+
+   @NonNull
+   private Types types() {
+      return processingEnv.getTypeUtils();
+   }
+
+   private void error(@NonNull String message, @NonNull Element element) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+   }
+
+   private void note(@NonNull String message, @NonNull Element element) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, message, element);
+   }
+}
@@ -0,0 +1,30 @@
+package com.j2speed.exec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Replies to each line read from the standard input with the same line, prefixed by an identifier
+ * of the process. Terminates with an error, reported on the standard error, when the line is
+ * "exit".
+ */
+public class EchoServer {
+   static final String EXIT = "exit";
+   static final String EXITING = "Exiting on request";
+
+   public static void main(String[] args) throws IOException {
+      final String id = Long.toString(System.nanoTime());
+      final BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+      String line;
+      while ((line = input.readLine()) != null) {
+         if (EXIT.equals(line)) {
+            System.err.print(EXITING);
+            System.err.flush();
+            System.exit(1);
+         }
+         System.out.print(id + ":" + line + "\n");
+         System.out.flush();
+      }
+   }
+}
@@ -2,11 +2,57 @@ package com.j2speed.exec;
 
 import static com.j2speed.exec.impl.Compiler.using;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.Test;
 
+import com.j2speed.exec.impl.AbstractResultBuilderFactory;
+import com.j2speed.exec.impl.Admission;
+import com.j2speed.exec.impl.Batch;
+import com.j2speed.exec.impl.Coalescer;
+import com.j2speed.exec.impl.DiskCache;
+import com.j2speed.exec.impl.Implementation;
+import com.j2speed.exec.impl.LargeOutput;
+import com.j2speed.exec.impl.ResultCache;
+import com.j2speed.exec.impl.SpillingResultBuilder;
 import com.j2speed.exec.impl.StringResultBuilder;
 import com.j2speed.exec.impl.StringResultBuilderFactory;
 
@@ -19,6 +65,7 @@ public class InvocationTest {
    private static final String CONCATENATE = CMD_PREFIX + "Concatenate";
    private static final String CONCATENATE_WITH_PWD = CMD_PREFIX + "ConcatenateWithPWD";
    private static final String FOREVER = CMD_PREFIX + "WaitForEver";
+   private static final String UPPER_CASE = CMD_PREFIX + "UpperCase";
    private static final String POSTFIX = "postfix";
    private static final String PREFIX = "prefix";
 
@@ -126,6 +173,951 @@ public class InvocationTest {
       forEver.doNothing(500);
    }
 
+   @Test
+   public void testConcurrentInvocationsDoNotSerialize() throws Exception {
+      final Echo echo = using(Echo.class).workIn(PWD).compile();
+      final int callers = 8;
+      final long delay = 250;
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Future<String>> results = new ArrayList<Future<String>>(callers);
+      final ExecutorService executor = Executors.newFixedThreadPool(callers);
+      try {
+         for (int i = 0; i < callers; i++) {
+            final SlowValue value = new SlowValue("value" + i, delay);
+            results.add(executor.submit(new Callable<String>() {
+               @Override
+               public String call() throws Exception {
+                  start.await();
+                  return echo.echo(value);
+               }
+            }));
+         }
+         final long started = System.nanoTime();
+         start.countDown();
+         for (int i = 0; i < callers; i++) {
+            assertEquals("value" + i, results.get(i).get());
+         }
+         final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+         // Building the command line of an invocation takes at least "delay" milliseconds, so if
+         // the callers were serialized it would take at least "callers * delay" milliseconds.
+         assertTrue("Invocations serialized, took " + elapsed + "ms", elapsed < (callers * delay)
+                  - (2 * delay));
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Echo {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+   }
+
+   @Test
+   public void testGeneratedImplementationReplacesTheProxy() {
+      final Echo echo = using(Echo.class).workIn(PWD).compile();
+      assertTrue(echo instanceof Implementation);
+      assertEquals(PREFIX, echo.echo(PREFIX));
+      // no implementation can be generated for a private interface
+      final Hidden hidden = using(Hidden.class).workIn(PWD).compile();
+      assertTrue(Proxy.isProxyClass(hidden.getClass()));
+      assertEquals(PREFIX, hidden.echo(PREFIX));
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   private interface Hidden {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+   }
+
+   /**
+    * A value that takes some time to be converted to a string.
+    */
+   private static final class SlowValue {
+      private final String value;
+      private final long delay;
+
+      SlowValue(String value, long delay) {
+         this.value = value;
+         this.delay = delay;
+      }
+
+      @Override
+      public String toString() {
+         try {
+            Thread.sleep(delay);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         return value;
+      }
+   }
+
+   @Test
+   public void testMaxConcurrentRejectsWhenQueueIsFull() throws Exception {
+      final Bounded bounded = using(Bounded.class).workIn(PWD).compile();
+      final Admission admission = Admission.of(bounded, Bounded.class.getDeclaredMethod("echo",
+               Object.class));
+      final ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+         final Future<String> running = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+               return bounded.echo(new SlowValue(PREFIX, 500));
+            }
+         });
+         while (admission.inFlight() == 0) {
+            Thread.sleep(1);
+         }
+         try {
+            bounded.echo(POSTFIX);
+            fail("Started beyond the bound");
+         } catch (RejectedException e) {
+            // expected
+         }
+         assertEquals(PREFIX, running.get());
+         assertEquals(POSTFIX, bounded.echo(POSTFIX));
+         assertEquals(1, admission.rejected());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testBoundedAsynchronousCommandDoesNotBlockTheCaller() throws Exception {
+      final BoundedAsync bounded = using(BoundedAsync.class).multiplexed(true).workIn(PWD)
+               .compile();
+      final Admission admission = Admission.of(bounded, BoundedAsync.class.getDeclaredMethod(
+               "echo", Object.class));
+      final ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+         final Future<CompletableFuture<String>> running = executor.submit(
+                  new Callable<CompletableFuture<String>>() {
+                     @Override
+                     public CompletableFuture<String> call() throws Exception {
+                        return bounded.echo(new SlowValue(PREFIX, 2000));
+                     }
+                  });
+         while (admission.inFlight() == 0) {
+            Thread.sleep(1);
+         }
+         final CompletableFuture<String> waiting = bounded.echo(POSTFIX);
+         // queued, rather than waiting on the caller thread
+         assertFalse(waiting.isDone());
+         assertEquals(1, admission.queueDepth());
+         assertEquals(PREFIX, running.get().get());
+         assertEquals(POSTFIX, waiting.get());
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void testBoundedAsynchronousCommandCancelledWhileQueuedDoesNotRun() throws Exception {
+      final BoundedAsync bounded = using(BoundedAsync.class).workIn(PWD).compile();
+      final Admission admission = Admission.of(bounded, BoundedAsync.class.getDeclaredMethod(
+               "echo", Object.class));
+      final AtomicInteger started = new AtomicInteger();
+      final CompletableFuture<String> running = bounded.echo(new SlowValue(PREFIX, 500));
+      while (admission.inFlight() == 0) {
+         Thread.sleep(1);
+      }
+      final CompletableFuture<String> cancelled = bounded.echo(new Object() {
+         @Override
+         public String toString() {
+            started.incrementAndGet();
+            return POSTFIX;
+         }
+      });
+      assertTrue(cancelled.cancel(false));
+      assertEquals(PREFIX, running.get());
+      assertEquals(POSTFIX, bounded.echo(POSTFIX).get());
+      assertEquals(0, started.get());
+      assertEquals(0, admission.inFlight());
+   }
+
+   @Test
+   public void testBoundedAsynchronousCommandCancelledWhileRunningKeepsItsSlot()
+            throws Exception {
+      final BoundedAsync bounded = using(BoundedAsync.class).workIn(PWD).compile();
+      final Admission admission = Admission.of(bounded, BoundedAsync.class.getDeclaredMethod(
+               "echo", Object.class));
+      final CompletableFuture<String> running = bounded.echo(new SlowValue(PREFIX, 500));
+      while (admission.inFlight() == 0) {
+         Thread.sleep(1);
+      }
+      assertTrue(running.cancel(false));
+      // the slot is held until the command is done, not released with the future
+      assertEquals(1, admission.inFlight());
+      final CompletableFuture<String> waiting = bounded.echo(POSTFIX);
+      assertFalse(waiting.isDone());
+      assertEquals(POSTFIX, waiting.get());
+      assertEquals(0, admission.inFlight());
+   }
+
+   @MaxConcurrent(1)
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface BoundedAsync {
+      @Run(CONCATENATE + " {?}")
+      CompletableFuture<String> echo(Object value);
+   }
+
+   @MaxConcurrent(value = 1, queue = 0)
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Bounded {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+   }
+
+   @Test
+   public void testMetricsAreExposedThroughJmx() throws Exception {
+      final Measured measured = using(Measured.class).workIn(PWD).metrics(true).compile();
+      assertEquals(PREFIX, measured.echo(PREFIX));
+      assertEquals(POSTFIX, measured.echo(POSTFIX));
+
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final Set<ObjectName> names = server.queryNames(new ObjectName(
+               "com.j2speed.exec:type=Method,interface=" + Measured.class.getName() + ",*"), null);
+      assertEquals(1, names.size());
+      final ObjectName name = names.iterator().next();
+      assertEquals(2L, server.getAttribute(name, "Invocations"));
+      assertEquals(2L, server.getAttribute(name, "Spawns"));
+      assertEquals(0L, server.getAttribute(name, "Failures"));
+      assertEquals(0L, server.getAttribute(name, "InFlight"));
+      assertEquals((long) (PREFIX + POSTFIX).length(), server.getAttribute(name, "StdoutBytes"));
+      assertTrue((Long) server.getAttribute(name, "WallNanosP99") > 0);
+      assertTrue(server.isRegistered(new ObjectName("com.j2speed.exec:type=Controller")));
+   }
+
+   @Test
+   public void testMetricsAreUnregisteredWithTheProxy() throws Exception {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName pattern = new ObjectName("com.j2speed.exec:type=Method,interface="
+               + Discarded.class.getName() + ",*");
+      for (int i = 0; i < 3; i++) {
+         assertEquals(PREFIX, using(Discarded.class).workIn(PWD).metrics(true).compile().echo(
+                  PREFIX));
+      }
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (!server.queryNames(pattern, null).isEmpty() && System.nanoTime() < deadline) {
+         System.gc();
+         Thread.sleep(10);
+      }
+      assertTrue(server.queryNames(pattern, null).isEmpty());
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Discarded {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Measured {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+   }
+
+   @Test
+   public void testProcessEventsAreRecorded() throws Exception {
+      final Measured measured = using(Measured.class).workIn(PWD).compile();
+      final Path file = Files.createTempFile("events", ".jfr");
+      final Recording recording = new Recording();
+      try {
+         for (String event : new String[] { "ProcessSpawn", "ProcessFirstOutput",
+                  "ProcessOutput", "ProcessExit" }) {
+            recording.enable("com.j2speed.exec." + event);
+         }
+         recording.start();
+         assertEquals(PREFIX, measured.echo(PREFIX));
+         recording.stop();
+         recording.dump(file);
+
+         final List<String> events = new ArrayList<String>();
+         for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            events.add(event.getEventType().getName());
+            if (event.hasField("bytes")) {
+               assertEquals(PREFIX.length(), event.getLong("bytes"));
+            }
+            if (event.hasField("command")) {
+               assertTrue(event.getString("command").endsWith(PREFIX));
+            }
+            assertTrue(event.getString("method").endsWith("Measured.echo"));
+         }
+         assertEquals(Arrays.asList("com.j2speed.exec.ProcessSpawn",
+                  "com.j2speed.exec.ProcessFirstOutput", "com.j2speed.exec.ProcessOutput",
+                  "com.j2speed.exec.ProcessExit"), events);
+      } finally {
+         recording.close();
+         Files.delete(file);
+      }
+   }
+
+   @Test
+   public void testCacheableRunsOncePerCommandLine() throws Exception {
+      final Cached cached = using(Cached.class).workIn(PWD).compile();
+      final ResultCache cache = ResultCache.of(cached, Cached.class.getDeclaredMethod("echo",
+               Object.class));
+      assertEquals(PREFIX, cached.echo(PREFIX));
+      assertEquals(PREFIX, cached.echo(PREFIX));
+      assertEquals(POSTFIX, cached.async(POSTFIX).get());
+      assertEquals(POSTFIX, cached.async(POSTFIX).get());
+      assertEquals(POSTFIX, cached.echo(POSTFIX));
+      assertEquals(1, cache.hits());
+      assertEquals(2, cache.misses());
+      assertEquals(2, cache.size());
+      assertEquals(1, ResultCache.of(cached, Cached.class.getDeclaredMethod("async",
+               Object.class)).hits());
+   }
+
+   @Cacheable
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Cached {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+
+      @Run(CONCATENATE + " {?}")
+      CompletableFuture<String> async(Object value);
+   }
+
+   @Test
+   public void testSingleFlightSharesTheRunningProcess() throws Exception {
+      final Coalesced coalesced = using(Coalesced.class).workIn(PWD).compile();
+      final Coalescer coalescer = Coalescer.of(coalesced, Coalesced.class.getDeclaredMethod(
+               "echo", Object.class));
+      final int callers = 4;
+      final List<Future<String>> results = new ArrayList<Future<String>>(callers);
+      final ExecutorService executor = Executors.newFixedThreadPool(callers);
+      try {
+         for (int i = 0; i < callers; i++) {
+            results.add(executor.submit(new Callable<String>() {
+               @Override
+               public String call() throws Exception {
+                  return coalesced.echo(PREFIX);
+               }
+            }));
+            // the first invocation leads, the others join it while its process starts
+            while (coalescer.inFlight() == 0) {
+               Thread.sleep(1);
+            }
+         }
+         for (Future<String> result : results) {
+            assertEquals(PREFIX, result.get());
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+      assertTrue(coalescer.saved() > 0);
+      assertEquals(0, coalescer.inFlight());
+      assertEquals(POSTFIX, coalesced.async(POSTFIX).get());
+   }
+
+   @Test
+   public void testSingleFlightSharesTheFailure() throws Exception {
+      final Coalesced coalesced = using(Coalesced.class).workIn(PWD).compile();
+      final Coalescer coalescer = Coalescer.of(coalesced, Coalesced.class.getDeclaredMethod(
+               "hang", long.class));
+      final ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+         final Future<?> leader = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+               coalesced.hang(500);
+               return null;
+            }
+         });
+         while (coalescer.inFlight() == 0) {
+            Thread.sleep(1);
+         }
+         try {
+            coalesced.hang(500);
+            fail("Timeout not shared");
+         } catch (TimeoutException e) {
+            // expected
+         }
+         try {
+            leader.get();
+            fail("Timeout not reported");
+         } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+      assertEquals(1, coalescer.saved());
+   }
+
+   @SingleFlight
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Coalesced {
+      @Run(CONCATENATE + " {?}")
+      String echo(Object value);
+
+      @Run(FOREVER)
+      String hang(@Timeout long timeout);
+
+      @Run(CONCATENATE + " {?}")
+      CompletableFuture<String> async(Object value);
+   }
+
+   @Test
+   public void testPersistentCacheOutlivesTheProxy() throws Exception {
+      final File directory = Files.createTempDirectory("cache").toFile();
+      final File input = File.createTempFile("input", ".txt");
+      try {
+         final Method echo = Persisted.class.getDeclaredMethod("echo", String.class, File.class);
+         Persisted persisted = using(Persisted.class).workIn(PWD)
+                  .persistentCache(directory, 1 << 20, true).compile();
+         assertEquals(PREFIX + input, persisted.echo(PREFIX, input));
+         assertEquals(PREFIX + input, persisted.echo(PREFIX, input));
+         assertEquals(1, DiskCache.of(persisted, echo).hits());
+
+         // as after a restart
+         persisted = using(Persisted.class).workIn(PWD).persistentCache(directory, 1 << 20, true)
+                  .compile();
+         assertEquals(PREFIX + input, persisted.echo(PREFIX, input));
+         assertEquals(1, DiskCache.of(persisted, echo).hits());
+
+         // a changed input is not served from the cache
+         Files.write(input.toPath(), PREFIX.getBytes());
+         assertEquals(PREFIX + input, persisted.echo(PREFIX, input));
+         assertEquals(1, DiskCache.of(persisted, echo).misses());
+         assertEquals(2, DiskCache.of(persisted, echo).count());
+      } finally {
+         input.delete();
+         Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                     throws IOException {
+               Files.delete(file);
+               return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e)
+                     throws IOException {
+               Files.delete(directory);
+               return FileVisitResult.CONTINUE;
+            }
+         });
+      }
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Persisted {
+      @Run(CONCATENATE + " {?} {?}")
+      String echo(String value, File input);
+   }
+
+   @Test
+   public void testBatchKeepsOrderAndCollectsFailures() throws Exception {
+      final Echo echo = using(Echo.class).workIn(PWD).compile();
+      final int parallelism = 3;
+      final AtomicInteger inFlight = new AtomicInteger();
+      final AtomicInteger maxInFlight = new AtomicInteger();
+      final List<Object[]> arguments = new ArrayList<Object[]>();
+      for (int i = 0; i < 10; i++) {
+         final String value = "value" + i;
+         final boolean failing = i == 4;
+         arguments.add(new Object[] { new Object() {
+            @Override
+            public String toString() {
+               final int current = inFlight.incrementAndGet();
+               while (current > maxInFlight.get()) {
+                  maxInFlight.compareAndSet(maxInFlight.get(), current);
+               }
+               try {
+                  Thread.sleep(50);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               } finally {
+                  inFlight.decrementAndGet();
+               }
+               if (failing) {
+                  throw new IllegalStateException(value);
+               }
+               return value;
+            }
+         } });
+      }
+      final Batch<String> batch = new Batch<String>(echo, Echo.class.getDeclaredMethod("echo",
+               Object.class), parallelism);
+      final List<Batch.Outcome<String>> outcomes = batch.invokeAll(arguments);
+      assertEquals(arguments.size(), outcomes.size());
+      for (int i = 0; i < outcomes.size(); i++) {
+         final Batch.Outcome<String> outcome = outcomes.get(i);
+         assertEquals(i, outcome.index());
+         if (i == 4) {
+            assertFalse(outcome.isSuccess());
+            assertTrue(outcome.failure() instanceof IllegalStateException);
+         } else {
+            assertEquals("value" + i, outcome.get());
+         }
+      }
+      assertEquals(parallelism, maxInFlight.get());
+   }
+
+   @Test
+   public void testBatchKeepsInvocationsInFlightWithinTheWindow() throws Exception {
+      final Echo echo = using(Echo.class).workIn(PWD).compile();
+      final int parallelism = 2;
+      final int window = parallelism * Batch.WINDOW;
+      final CountDownLatch first = new CountDownLatch(1);
+      final AtomicInteger read = new AtomicInteger();
+      final Iterable<Object[]> arguments = new Iterable<Object[]>() {
+         @Override
+         public Iterator<Object[]> iterator() {
+            return new Iterator<Object[]>() {
+               @Override
+               public boolean hasNext() {
+                  return read.get() < 20;
+               }
+
+               @Override
+               public Object[] next() {
+                  final String value = "value" + read.getAndIncrement();
+                  return new Object[] { new Object() {
+                     @Override
+                     public String toString() {
+                        if ("value0".equals(value)) {
+                           try {
+                              first.await();
+                           } catch (InterruptedException e) {
+                              Thread.currentThread().interrupt();
+                           }
+                        }
+                        return value;
+                     }
+                  } };
+               }
+            };
+         }
+      };
+      final Batch<String> batch = new Batch<String>(echo, Echo.class.getDeclaredMethod("echo",
+               Object.class), parallelism);
+      final Iterator<Batch.Outcome<String>> outcomes = batch.stream(arguments);
+      try {
+         // the invocations after the slow first one go on, until the window is full
+         final long deadline = System.currentTimeMillis() + 30000;
+         while (read.get() < window && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+         }
+         Thread.sleep(500);
+         assertEquals(window, read.get());
+      } finally {
+         first.countDown();
+      }
+      for (int i = 0; i < 20; i++) {
+         assertEquals("value" + i, outcomes.next().get());
+      }
+      assertFalse(outcomes.hasNext());
+   }
+
+   @Test
+   public void testSpilledOutputOfFailedCommandIsReleased() {
+      final AtomicInteger spilled = new AtomicInteger();
+      final AtomicInteger released = new AtomicInteger();
+      // the command succeeds, but not with the expected exit code
+      final Spilled failing = using(Spilled.class).workIn(PWD).normalTermination(1).use(
+               new AbstractResultBuilderFactory<LargeOutput>() {
+                  @Override
+                  public ResultBuilder<LargeOutput> create() {
+                     return new SpillingResultBuilder(16, null) {
+                        @Override
+                        public void process(ByteBuffer data) {
+                           spilled.addAndGet(data.remaining());
+                           super.process(data);
+                        }
+
+                        @Override
+                        public void close() {
+                           released.incrementAndGet();
+                           super.close();
+                        }
+                     };
+                  }
+               }).compile();
+      final StringBuilder value = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+         value.append(PREFIX);
+      }
+      try {
+         failing.echo(value.toString());
+         fail("Abnormal termination not detected");
+      } catch (ExecutionException e) {
+         // expected
+      }
+      assertEquals(value.length(), spilled.get());
+      assertEquals(1, released.get());
+   }
+
+   interface Spilled {
+      @Run(CONCATENATE + " {?}")
+      LargeOutput echo(String value);
+   }
+
+   @Test
+   public void testPooledCommand() {
+      EchoService echo = using(EchoService.class).workIn(PWD).compile();
+
+      String first = echo.echo(PREFIX);
+      String second = echo.echo(POSTFIX);
+      String third = echo.echo(PREFIX);
+
+      assertEquals(PREFIX, payload(first));
+      assertEquals(POSTFIX, payload(second));
+      assertEquals(PREFIX, payload(third));
+      // the same worker serves the first two requests, and is then recycled
+      assertEquals(worker(first), worker(second));
+      assertFalse(worker(second).equals(worker(third)));
+
+      assertEquals(PREFIX + " " + POSTFIX, payload(echo.echo(PREFIX, POSTFIX)));
+   }
+
+   @Test
+   public void testPooledCommandReplacesFailedWorker() {
+      EchoService echo = using(EchoService.class).workIn(PWD).compile();
+
+      String first = echo.echo(PREFIX);
+      try {
+         echo.echo(EchoServer.EXIT);
+         fail("Worker termination not detected");
+      } catch (ExecutionException e) {
+         // reported as for a command that is not pooled
+         assertEquals(EchoServer.EXITING, e.getMessage());
+      }
+      String second = echo.echo(PREFIX);
+
+      assertEquals(PREFIX, payload(second));
+      assertFalse(worker(first).equals(worker(second)));
+   }
+
+   @Test
+   public void testPooledCommandKeepsResponseNotConsumed() {
+      // consumes the response 3 bytes at a time, leaving the rest for the next chunk
+      Chunked echo = using(Chunked.class).workIn(PWD).use(
+               new AbstractResultBuilderFactory<String>() {
+                  @Override
+                  public ResultBuilder<String> create() {
+                     return new ResultBuilder<String>() {
+                        private final StringBuilder response = new StringBuilder();
+
+                        @Override
+                        public void setProcessInput(OutputStream input) {
+                        }
+
+                        @Override
+                        public void process(ByteBuffer buffer) {
+                           while (buffer.remaining() >= 3) {
+                              for (int i = 0; i < 3; i++) {
+                                 response.append((char) buffer.get());
+                              }
+                           }
+                        }
+
+                        @Override
+                        public void done() {
+                        }
+
+                        @Override
+                        public String build() {
+                           return response.toString();
+                        }
+                     };
+                  }
+               }).compile();
+      final StringBuilder request = new StringBuilder();
+      for (int i = 0; i < 20000; i++) {
+         request.append((char) ('a' + i % 26));
+      }
+      final String response = payload(echo.echo(request.toString()));
+      // only the end of the response that is not a whole chunk may be missing
+      assertTrue(response.length() > request.length() - 3);
+      assertEquals(request.substring(0, response.length()), response);
+   }
+
+   @Pooled
+   interface Chunked {
+      @Run(CMD_PREFIX + "EchoServer")
+      String echo(String request);
+   }
+
+   @Test
+   public void testPooledCommandRejectsRequestWithDelimiter() {
+      EchoService echo = using(EchoService.class).workIn(PWD).compile();
+
+      String first = echo.echo(PREFIX);
+      try {
+         echo.echo(PREFIX + "\n" + POSTFIX);
+         fail("Request split by the delimiter");
+      } catch (IllegalArgumentException e) {
+         // expected
+      }
+      // the worker is not left with a response for another request
+      String second = echo.echo(POSTFIX);
+
+      assertEquals(POSTFIX, payload(second));
+      assertEquals(worker(first), worker(second));
+   }
+
+   @Test(expected = TimeoutException.class)
+   public void testPooledCommandTimeout() {
+      EchoService forEver = using(EchoService.class).workIn(PWD).compile();
+      forEver.doNothing(PREFIX, 500);
+   }
+
+   private static String worker(String response) {
+      return response.substring(0, response.indexOf(':'));
+   }
+
+   private static String payload(String response) {
+      return response.substring(response.indexOf(':') + 1);
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   @Pooled(size = 1, maxRequests = 2)
+   interface EchoService {
+      @Run(CMD_PREFIX + "EchoServer")
+      String echo(String request);
+
+      @Run(CMD_PREFIX + "EchoServer")
+      String echo(String first, String second);
+
+      @Run(FOREVER)
+      String doNothing(String request, @Timeout long timeout);
+   }
+
+   @Test
+   public void testAsynchronousCommand() throws Exception {
+      AsyncConcat concatenate = using(AsyncConcat.class).workIn(PWD).compile();
+
+      CompletableFuture<String> first = concatenate.concat(PREFIX, POSTFIX);
+      Future<String> second = concatenate.concat(POSTFIX);
+
+      assertEquals(PREFIX + POSTFIX, first.get());
+      assertEquals(POSTFIX, second.get());
+   }
+
+   @Test(expected = TimeoutException.class)
+   public void testAsynchronousCommandTimeout() throws Throwable {
+      AsyncConcat forEver = using(AsyncConcat.class).workIn(PWD).compile();
+      try {
+         forEver.doNothing(500).get();
+      } catch (java.util.concurrent.ExecutionException e) {
+         throw e.getCause();
+      }
+   }
+
+   @Test
+   public void testAsynchronousCommandOnVirtualThreads() throws Exception {
+      // falls back to platform threads if the JVM does not support virtual threads
+      AsyncConcat concatenate = using(AsyncConcat.class).virtualThreads(true).workIn(PWD)
+               .compile();
+
+      assertEquals(PREFIX + POSTFIX, concatenate.concat(PREFIX, POSTFIX).get());
+   }
+
+   @Test
+   public void testMultiplexedCommand() throws Exception {
+      Concat concatenate = using(Concat.class).multiplexed(true).workIn(PWD).compile();
+      AsyncConcat asyncConcatenate = using(AsyncConcat.class).multiplexed(true).workIn(PWD)
+               .compile();
+
+      assertEquals(PREFIX + POSTFIX, concatenate.concat(PREFIX, POSTFIX));
+      assertEquals(PREFIX + POSTFIX, asyncConcatenate.concat(PREFIX, POSTFIX).get());
+   }
+
+   @Test
+   public void testMultiplexedCommandReportsProcessingFailure() throws Exception {
+      Multiplexed multiplexed = using(Multiplexed.class).multiplexed(true).workIn(PWD).use(
+               new AbstractResultBuilderFactory<String>() {
+                  @Override
+                  public ResultBuilder<String> create() {
+                     return new ResultBuilder<String>() {
+                        @Override
+                        public void setProcessInput(OutputStream input) {
+                        }
+
+                        @Override
+                        public void process(ByteBuffer buffer) {
+                           throw new IllegalStateException("Cannot process");
+                        }
+
+                        @Override
+                        public void done() {
+                        }
+
+                        @Override
+                        public String build() {
+                           return "";
+                        }
+                     };
+                  }
+               }).compile();
+      try {
+         multiplexed.echo(PREFIX).get();
+         fail("Processing failure not reported");
+      } catch (java.util.concurrent.ExecutionException e) {
+         assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+   }
+
+   interface Multiplexed {
+      @Run(CONCATENATE + " {?}")
+      CompletableFuture<String> echo(String value);
+   }
+
+   @Test(expected = TimeoutException.class)
+   public void testMultiplexedCommandTimeout() {
+      ForEver forEver = using(ForEver.class).multiplexed(true).workIn(PWD).compile();
+      forEver.doNothing(500);
+   }
+
+   @Test
+   public void testPipeline() {
+      Pipeline pipeline = using(Pipeline.class).workIn(PWD).compile();
+
+      assertEquals((PREFIX + POSTFIX).toUpperCase(), pipeline.upperCase(PREFIX, POSTFIX));
+      assertEquals((PREFIX + POSTFIX).toUpperCase(), pipeline.twice(PREFIX, POSTFIX));
+   }
+
+   @Test
+   public void testPipelineWithVarargs() {
+      Pipeline pipeline = using(Pipeline.class).workIn(PWD).compile();
+
+      assertEquals(PREFIX.toUpperCase(), pipeline.upperCaseAll(PREFIX));
+      assertEquals((PREFIX + POSTFIX + PREFIX).toUpperCase(), pipeline.upperCaseAll(PREFIX,
+               POSTFIX, PREFIX));
+   }
+
+   @Test(expected = TimeoutException.class)
+   public void testPipelineTimeout() {
+      Pipeline pipeline = using(Pipeline.class).workIn(PWD).compile();
+      pipeline.forEver(500);
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface Pipeline {
+      @Run(CONCATENATE + " {?} {?} | " + UPPER_CASE)
+      String upperCase(String prefix, String postfix);
+
+      @Run(CONCATENATE + " {?} {?}|" + UPPER_CASE + " | " + UPPER_CASE)
+      String twice(String prefix, String postfix);
+
+      @Run(FOREVER + " | " + UPPER_CASE)
+      String forEver(@Timeout long timeout);
+
+      @Run(CONCATENATE + " {?} | " + UPPER_CASE)
+      String upperCaseAll(String... values);
+   }
+
+   @Test
+   public void testStreamedOutput() throws Exception {
+      Streamed streamed = using(Streamed.class).workIn(PWD).compile();
+
+      try (Stream<String> lines = streamed.lines(PREFIX)) {
+         assertEquals(Arrays.asList(PREFIX), lines.collect(Collectors.toList()));
+      }
+      Iterator<String> iterator = streamed.iterator(POSTFIX);
+      assertEquals(POSTFIX, iterator.next());
+      assertFalse(iterator.hasNext());
+      try (InputStream output = streamed.read(PREFIX)) {
+         assertEquals(PREFIX, new String(output.readAllBytes()));
+      }
+      assertEquals(Arrays.asList((PREFIX + POSTFIX).toUpperCase()), streamed.upperCase(PREFIX,
+               POSTFIX).collect(Collectors.toList()));
+   }
+
+   @Test
+   public void testStreamedOutputChecksTheCommandAtTheEnd() throws Exception {
+      Streamed streamed = using(Streamed.class).workIn(PWD).compile();
+
+      try (Stream<String> lines = streamed.failing()) {
+         lines.count();
+         fail("Missing class not reported");
+      } catch (ExecutionException e) {
+         // expected
+      }
+      try (Stream<String> lines = streamed.forEver(500)) {
+         lines.count();
+         fail("Timeout not reported");
+      } catch (TimeoutException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testClosingStreamedOutputKillsTheCommand() throws Exception {
+      Streamed streamed = using(Streamed.class).workIn(PWD).compile();
+      Admission admission = Admission.of(streamed, Streamed.class.getDeclaredMethod("forEver",
+               long.class));
+
+      long start = System.nanoTime();
+      Stream<String> lines = streamed.forEver(0);
+      assertEquals(1, admission.inFlight());
+      lines.close();
+      assertEquals(0, admission.inFlight());
+      // the slot is released, not held until the command would terminate
+      assertEquals(PREFIX, streamed.iterator(PREFIX).next());
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+   }
+
+   @MaxConcurrent(value = 1, queue = 0)
+   interface Streamed {
+      @Run(CONCATENATE + " {?}")
+      Stream<String> lines(String value);
+
+      @Run(CONCATENATE + " {?}")
+      Iterator<String> iterator(String value);
+
+      @Run(CONCATENATE + " {?}")
+      InputStream read(String value);
+
+      @Run(CONCATENATE + " {?} {?} | " + UPPER_CASE)
+      Stream<String> upperCase(String prefix, String postfix);
+
+      @Run(CMD_PREFIX + "Missing")
+      Stream<String> failing();
+
+      @Run(FOREVER)
+      Stream<String> forEver(@Timeout long timeout);
+   }
+
+   @Test
+   public void testCommandOutputToFile() throws Exception {
+      ConcatToFile concatenate = using(ConcatToFile.class).workIn(PWD).compile();
+      Path file = File.createTempFile("output", ".txt").toPath();
+      try {
+         assertEquals(file, concatenate.concat(PREFIX, file));
+         concatenate.append(POSTFIX, file.toFile());
+
+         assertEquals(PREFIX + POSTFIX, new String(Files.readAllBytes(file)));
+      } finally {
+         Files.delete(file);
+      }
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface ConcatToFile {
+      @Run(CONCATENATE + " {?}")
+      Path concat(String value, @OutputFile Path file);
+
+      @Run(CONCATENATE + " {?}")
+      void append(String value, @OutputFile(append = true) File file);
+   }
+
+   @ResultFactory(StringResultBuilderFactory.class)
+   interface AsyncConcat {
+      @Run(CONCATENATE + " {?} {?}")
+      CompletableFuture<String> concat(String prefix, String postfix);
+
+      @Run(CONCATENATE + " {?}")
+      Future<String> concat(String value);
+
+      @Run(FOREVER)
+      CompletableFuture<Void> doNothing(@Timeout long timeout);
+   }
+
    @RedirectError
    @ResultFactory(StringResultBuilderFactory.class)
    interface Nothing {
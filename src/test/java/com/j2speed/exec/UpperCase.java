@@ -0,0 +1,20 @@
+package com.j2speed.exec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies the standard input to the standard output, in upper case.
+ */
+public class UpperCase {
+   public static void main(String[] args) throws IOException {
+      final InputStream input = System.in;
+      final OutputStream output = System.out;
+      int c;
+      while ((c = input.read()) != -1) {
+         output.write(Character.toUpperCase(c));
+      }
+      output.flush();
+   }
+}
@@ -0,0 +1,137 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.j2speed.exec.RejectedException;
+
+public class AdmissionTest {
+
+   @Test
+   public void testWaitersStartByPriorityThenArrival() throws Exception {
+      final Admission admission = new Admission("test", 1, 10, 0, null);
+      admission.acquire(0);
+      final List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+      final List<Thread> waiters = new ArrayList<Thread>();
+      final int[] priorities = { 0, 5, 0, 5 };
+      for (int i = 0; i < priorities.length; i++) {
+         final int id = i;
+         final int priority = priorities[i];
+         final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+               try {
+                  admission.acquire(priority);
+                  started.add(id);
+                  admission.release();
+               } catch (InterruptedException e) {
+                  // the test fails on the order
+               }
+            }
+         };
+         waiters.add(waiter);
+         waiter.start();
+         // waits for the waiter to be queued, so the arrival order is known
+         while (admission.queueDepth() <= i) {
+            Thread.sleep(1);
+         }
+      }
+      assertEquals(4, admission.maxQueueDepth());
+
+      admission.release();
+      for (Thread waiter : waiters) {
+         waiter.join(5000);
+      }
+      assertEquals(List.of(1, 3, 0, 2), started);
+      assertEquals(0, admission.inFlight());
+      assertEquals(5, admission.admitted());
+   }
+
+   @Test
+   public void testFullQueueIsRejected() throws Exception {
+      final Admission admission = new Admission("test", 1, 0, 0, null);
+      admission.acquire(0);
+      try {
+         admission.acquire(0);
+         fail("Admitted with a full queue");
+      } catch (RejectedException e) {
+         // expected
+      }
+      assertEquals(1, admission.rejected());
+      admission.release();
+      admission.acquire(0);
+   }
+
+   @Test
+   public void testWaitingTooLongIsRejected() throws Exception {
+      final Admission admission = new Admission("test", 1, 10, 50, null);
+      admission.acquire(0);
+      try {
+         admission.acquire(0);
+         fail("Admitted while another invocation runs");
+      } catch (RejectedException e) {
+         // expected
+      }
+      assertEquals(0, admission.queueDepth());
+      assertEquals(1, admission.rejected());
+   }
+
+   @Test
+   public void testParentBoundIsShared() throws Exception {
+      final Admission type = new Admission("type", 1, 0, 0, null);
+      final Admission first = new Admission("first", 1, 0, 0, type);
+      final Admission second = new Admission("second", 1, 0, 0, type);
+      first.acquire(0);
+      try {
+         second.acquire(0);
+         fail("Admitted beyond the bound of the type");
+      } catch (RejectedException e) {
+         // expected
+      }
+      // the slot of the method is given back when the type rejects the invocation
+      assertEquals(0, second.inFlight());
+      first.release();
+      second.acquire(0);
+      assertEquals(1, type.inFlight());
+   }
+
+   @Test
+   public void testAsynchronousWaiterIsAdmittedOnRelease() throws Exception {
+      final Admission admission = new Admission("test", 1, 1, 0, null);
+      admission.acquire(0);
+      final CompletableFuture<Void> waiting = admission.acquireAsync(0);
+      assertFalse(waiting.isDone());
+      assertEquals(1, admission.queueDepth());
+      assertTrue(admission.acquireAsync(0).isCompletedExceptionally());
+
+      admission.release();
+      assertTrue(waiting.isDone() && !waiting.isCompletedExceptionally());
+      assertEquals(1, admission.inFlight());
+      assertEquals(0, admission.queueDepth());
+   }
+
+   @Test
+   public void testAsynchronousWaiterWaitingTooLongIsRejected() throws Exception {
+      final Admission admission = new Admission("test", 1, 10, 50, null);
+      admission.acquire(0);
+      try {
+         admission.acquireAsync(0).get(5, TimeUnit.SECONDS);
+         fail("Admitted while another invocation runs");
+      } catch (ExecutionException e) {
+         assertTrue(e.getCause() instanceof RejectedException);
+      }
+      assertEquals(0, admission.queueDepth());
+      assertEquals(1, admission.rejected());
+   }
+}
@@ -1,6 +1,7 @@
 package com.j2speed.exec.impl;
 
 import static com.j2speed.exec.impl.Compiler.using;
+import static org.junit.Assert.assertEquals;
 
 import java.io.File;
 import java.util.Map;
@@ -10,7 +11,9 @@ import org.junit.Test;
 import com.j2speed.exec.Env;
 import com.j2speed.exec.ErrorBuilderFactory;
 import com.j2speed.exec.ErrorFactory;
+import com.j2speed.exec.OutputFile;
 import com.j2speed.exec.OutputProcessor;
+import com.j2speed.exec.Pooled;
 import com.j2speed.exec.ResultFactory;
 import com.j2speed.exec.Run;
 import com.j2speed.exec.Timeout;
@@ -179,10 +182,71 @@ public class CompilerTest {
       String testMethod(OutputProcessor out);
    }
    
+   @Test(expected = IllegalStateException.class)
+   public void testThatMethodWithOutputFileMustReturnFile() {
+      using(TestMethodWithOutputFile.class).compile();
+   }
+
+   interface TestMethodWithOutputFile {
+      @Run("cmd")
+      String testMethod(@OutputFile File out);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testThatPipelineHasNoEmptyStage() {
+      using(PipelineWithEmptyStage.class).compile();
+   }
+
+   interface PipelineWithEmptyStage {
+      @Run("cmd {?} | | sort")
+      String m(String value);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testThatPooledCommandHasNoBindingParameters() {
+      using(PooledWithBindingParameters.class).compile();
+   }
+
+   interface PooledWithBindingParameters {
+      @Run("cmd {?}")
+      @Pooled
+      String m(String request);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testThatPooledCommandExcludesWorkingDir() {
+      using(PooledWithWorkingDir.class).compile();
+   }
+
+   interface PooledWithWorkingDir {
+      @Run("cmd")
+      @Pooled
+      String m(String request, @WorkingDir File dir);
+   }
+
+   @Test
+   public void testTemplateIsCompiledOnce() {
+      final String command = "cmd " + System.nanoTime() + " {?}";
+      using(TestInterface4.class).on("testMethod", String.class).run(command).compile();
+      final long hits = TemplateRegistry.hits();
+      final int size = TemplateRegistry.size();
+      using(TestInterface4.class).on("testMethod", String.class).run(command).compile();
+      assertEquals(hits + 1, TemplateRegistry.hits());
+      assertEquals(size, TemplateRegistry.size());
+      // compiled again in another directory
+      using(TestInterface4.class).on("testMethod", String.class).run(command).workIn(
+               new File(".")).compile();
+      assertEquals(hits + 1, TemplateRegistry.hits());
+   }
+
    interface TestInterface {
       void testMethod();
    }
 
+   interface TestInterface4 {
+      void testMethod(String value);
+   }
+
    interface TestInterface2 {
       @ResultFactory(BadResult.class)
       String testMethod();
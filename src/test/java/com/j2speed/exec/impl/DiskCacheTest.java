@@ -0,0 +1,40 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.j2speed.exec.ResultBuilder;
+
+public class DiskCacheTest {
+
+   @Test
+   public void testOutputTooLargeIsPassedThroughUncached() throws IOException {
+      final Path directory = Files.createTempDirectory("cache");
+      try {
+         final DiskCache cache = new DiskCache("test", directory.toFile(), 10, false);
+         final ResultBuilder<String> result = cache.capture(new byte[16],
+                  new StringResultBuilder());
+         result.setProcessInput(OutputStream.nullOutputStream());
+         final byte[] output = new byte[25];
+         Arrays.fill(output, (byte) 'a');
+         for (int i = 0; i < output.length; i += 5) {
+            result.process(ByteBuffer.wrap(output, i, 5));
+         }
+         result.done();
+
+         assertEquals(new String(output), result.build());
+         assertEquals(0, cache.count());
+      } finally {
+         Files.delete(directory.resolve("index"));
+         Files.delete(directory);
+      }
+   }
+}
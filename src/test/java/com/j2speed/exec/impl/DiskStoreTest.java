@@ -0,0 +1,178 @@
+package com.j2speed.exec.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DiskStoreTest {
+   private final List<Path> directories = new ArrayList<Path>();
+
+   @After
+   public void deleteDirectories() throws IOException {
+      for (Path directory : directories) {
+         Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                     throws IOException {
+               Files.delete(file);
+               return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e)
+                     throws IOException {
+               Files.delete(directory);
+               return FileVisitResult.CONTINUE;
+            }
+         });
+      }
+   }
+
+   @Test
+   public void testOutputIsReadBack() throws Exception {
+      final DiskStore store = DiskStore.of(newDirectory());
+      final byte[] output = "output".getBytes(UTF_8);
+      assertNull(store.get(key(1, 1)));
+      store.put(key(1, 1), output, output.length, 1000);
+      assertArrayEquals(output, read(store, key(1, 1)));
+      assertEquals(1, store.count());
+      assertEquals(output.length, store.bytes());
+   }
+
+   @Test
+   public void testLeastRecentlyUsedIsEvicted() throws Exception {
+      final DiskStore store = DiskStore.of(newDirectory());
+      final byte[] output = new byte[100];
+      store.put(key(1, 1), output, output.length, 250);
+      store.put(key(2, 2), output, output.length, 250);
+      assertNotNull(read(store, key(1, 1)));
+      store.put(key(3, 3), output, output.length, 250);
+      assertNull(store.get(key(2, 2)));
+      assertNotNull(read(store, key(1, 1)));
+      assertNotNull(read(store, key(3, 3)));
+      assertEquals(200, store.bytes());
+   }
+
+   @Test
+   public void testCollidingKeysSurviveRemoval() throws Exception {
+      final File directory = newDirectory();
+      final DiskStore store = DiskStore.of(directory);
+      final byte[] output = new byte[1];
+      // all in the same slot, so they are probed in sequence
+      for (int i = 1; i <= 4; i++) {
+         store.put(key(i << 16, i), output, output.length, 1000);
+      }
+      // removed by hand, so removed from the index when looked up
+      final String name = String.format("%016x%016x", 2L << 16, 2L);
+      Files.delete(directory.toPath().resolve(name.substring(0, 2)).resolve(name));
+      assertNull(store.get(key(2 << 16, 2)));
+      assertEquals(3, store.count());
+      for (int i : new int[] { 1, 3, 4 }) {
+         assertNotNull(read(store, key(i << 16, i)));
+      }
+   }
+
+   @Test
+   public void testCorruptedIndexIsReset() throws Exception {
+      final File directory = newDirectory();
+      final DiskStore store = DiskStore.of(directory);
+      final byte[] output = new byte[1];
+      store.put(key(1, 1), output, output.length, 1000);
+      try (RandomAccessFile index = new RandomAccessFile(new File(directory, "index"), "rw")) {
+         // a negative count
+         index.seek(12);
+         index.writeInt(-1);
+      }
+      assertNull(store.get(key(1, 1)));
+      assertEquals(0, store.count());
+      store.put(key(1, 1), output, output.length, 1000);
+      assertNotNull(read(store, key(1, 1)));
+      assertEquals(1, store.count());
+   }
+
+   @Test
+   public void testStoreIsOpenedOnceByConcurrentThreads() throws Exception {
+      final File directory = newDirectory();
+      final ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+         final List<Future<DiskStore>> stores = new ArrayList<Future<DiskStore>>();
+         for (int i = 0; i < 8; i++) {
+            stores.add(executor.submit(new Callable<DiskStore>() {
+               @Override
+               public DiskStore call() {
+                  return DiskStore.of(directory);
+               }
+            }));
+         }
+         for (Future<DiskStore> store : stores) {
+            assertSame(stores.get(0).get(), store.get());
+         }
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void testOutputIsSharedWithOtherJvms() throws Exception {
+      final File directory = newDirectory();
+      final DiskStore store = DiskStore.of(directory);
+      final Process other = new ProcessBuilder(new File(System.getProperty("java.home"),
+               "bin/java").getPath(), "-cp", System.getProperty("java.class.path"),
+               DiskStoreTest.class.getName(), directory.getPath()).inheritIO().start();
+      assertEquals(0, other.waitFor());
+      assertArrayEquals("other".getBytes(UTF_8), read(store, key(7, 7)));
+   }
+
+   /**
+    * Writes an output in the given directory, from another JVM.
+    */
+   public static void main(String[] args) throws IOException {
+      final byte[] output = "other".getBytes(UTF_8);
+      DiskStore.of(new File(args[0])).put(key(7, 7), output, output.length, 1000);
+   }
+
+   private static byte[] key(long high, long low) {
+      return ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+   }
+
+   private static byte[] read(DiskStore store, byte[] key) throws IOException {
+      final InputStream input = store.get(key);
+      if (input == null) {
+         return null;
+      }
+      try {
+         return input.readAllBytes();
+      } finally {
+         input.close();
+      }
+   }
+
+   private File newDirectory() throws IOException {
+      final Path directory = Files.createTempDirectory("cache");
+      directories.add(directory);
+      return directory.toFile();
+   }
+}
@@ -0,0 +1,60 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class ExecutableTest {
+
+   @Test
+   public void testResolvedInPath() {
+      final Executable sh = Executable.resolve("sh");
+      assertTrue(sh.found());
+      assertTrue(new File(sh.path()).isAbsolute());
+      assertSame(sh, Executable.resolve("sh"));
+      assertSame(sh, sh.current());
+   }
+
+   @Test
+   public void testMissingIsRemembered() {
+      final String name = "j2exec-missing-" + System.nanoTime();
+      final Executable missing = Executable.resolve(name);
+      assertFalse(missing.found());
+      assertEquals(name, missing.path());
+      assertSame(missing, Executable.resolve(name));
+      assertSame(missing, missing.current());
+   }
+
+   @Test
+   public void testNamesWithSeparatorAreNotResolved() {
+      assertNull(Executable.resolve("./sh"));
+      assertNull(Executable.resolve("/bin/sh"));
+   }
+
+   @Test
+   public void testModifiedIsResolvedAgain() throws Exception {
+      final File directory = Files.createTempDirectory("bin").toFile();
+      final File file = new File(directory, "tool");
+      Files.write(file.toPath(), "#!/bin/sh\n".getBytes("US-ASCII"));
+      assertTrue(file.setExecutable(true));
+      try {
+         final Executable tool = Executable.in(directory, "tool");
+         assertEquals(file.getAbsolutePath(), tool.path());
+         assertSame(tool, tool.current());
+         Files.write(file.toPath(), "#!/bin/sh\nexit 0\n".getBytes("US-ASCII"));
+         assertTrue(file.setLastModified(file.lastModified() - 10000));
+         assertNotSame(tool, tool.current());
+      } finally {
+         file.delete();
+         directory.delete();
+      }
+   }
+}
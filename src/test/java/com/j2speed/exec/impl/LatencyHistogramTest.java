@@ -0,0 +1,48 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+   @Test
+   public void testEmpty() {
+      final LatencyHistogram histogram = new LatencyHistogram();
+      assertEquals(0, histogram.count());
+      assertEquals(0, histogram.mean());
+      assertEquals(0, histogram.percentile(99));
+   }
+
+   @Test
+   public void testBucketsCoverAllValues() {
+      long previous = -1;
+      for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+         final int index = LatencyHistogram.indexOf(value);
+         assertTrue(value <= LatencyHistogram.upperBound(index));
+         assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+         assertTrue(index >= previous);
+         previous = index;
+      }
+   }
+
+   @Test
+   public void testPercentilesWithinRelativeError() {
+      final LatencyHistogram histogram = new LatencyHistogram();
+      for (long value = 1; value <= 10000; value++) {
+         histogram.record(value * 1000);
+      }
+      assertEquals(10000, histogram.count());
+      assertEquals(5000500, histogram.mean());
+      assertEquals(10000000, histogram.max());
+      assertWithin(5000000, histogram.percentile(50));
+      assertWithin(9900000, histogram.percentile(99));
+      assertEquals(10000000, histogram.percentile(100));
+   }
+
+   private static void assertWithin(long expected, long actual) {
+      assertTrue(actual + " not within 12.5% of " + expected, actual >= expected
+               && actual <= expected + expected / 8);
+   }
+}
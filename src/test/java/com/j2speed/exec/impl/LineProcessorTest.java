@@ -4,6 +4,9 @@ import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -29,4 +32,49 @@ public class LineProcessorTest {
       processor.process(ByteBuffer.wrap(output));
    }
 
+   @Test
+   public void testLinesSplitAcrossChunks() {
+      final Charset utf8 = Charset.forName("UTF-8");
+      final String[] lines = { "caf\u00e9", "", "\u20ac 10", "last" };
+      final List<String> actual = new ArrayList<String>();
+
+      LineProcessor processor = new LineProcessor(utf8, "\r\n") {
+         @Override
+         protected void process(String line) {
+            actual.add(line);
+         }
+      };
+
+      // one byte at a time, so both the characters and the separators are split
+      byte[] output = (lines[0] + "\r\n" + lines[1] + "\r\n" + lines[2] + "\r\r\n" + lines[3])
+               .getBytes(utf8);
+      for (byte b : output) {
+         processor.process(ByteBuffer.wrap(new byte[] { b }));
+      }
+      processor.done();
+
+      assertEquals(Arrays.asList(lines[0], lines[1], lines[2] + "\r", lines[3]), actual);
+   }
+
+   @Test
+   public void testLinesAsCharSequence() {
+      final List<String> actual = new ArrayList<String>();
+
+      LineProcessor processor = new LineProcessor(Charset.forName("US-ASCII"), "\n") {
+         @Override
+         protected void process(String line) {
+            fail("Not expected");
+         }
+
+         @Override
+         protected void process(CharSequence line) {
+            actual.add(line.toString());
+         }
+      };
+
+      processor.process(ByteBuffer.wrap("Hello\nWorld!\n".getBytes(Charset.forName("US-ASCII"))));
+
+      assertEquals(Arrays.asList("Hello", "World!"), actual);
+   }
+
 }
@@ -0,0 +1,78 @@
+package com.j2speed.exec.impl;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.j2speed.exec.ExecutionException;
+import com.j2speed.exec.TimeoutException;
+
+public class ResultCacheTest {
+
+   @Test
+   public void testLeastRecentlyUsedIsEvicted() throws Throwable {
+      final ResultCache cache = new ResultCache("test", 2, 0, 0);
+      final ResultCache.Key one = ResultCache.key(asList("echo", "one"), null, null);
+      final ResultCache.Key two = ResultCache.key(asList("echo", "two"), null, null);
+      final ResultCache.Key three = ResultCache.key(asList("echo", "three"), null, null);
+      cache.put(one, "one");
+      cache.put(two, "two");
+      assertEquals("one", cache.get(one).get());
+      cache.put(three, "three");
+      assertNull(cache.get(two));
+      assertEquals("one", cache.get(ResultCache.key(asList("echo", "one"), null, null)).get());
+      assertEquals(1, cache.evictions());
+      assertEquals(2, cache.hits());
+      assertEquals(1, cache.misses());
+   }
+
+   @Test
+   public void testKeyCoversDirectoryAndEnvironment() {
+      final ResultCache cache = new ResultCache("test", 10, 0, 0);
+      cache.put(ResultCache.key(asList("pwd"), new File("a"), null), "a");
+      assertNull(cache.get(ResultCache.key(asList("pwd"), new File("b"), null)));
+      assertNotNull(cache.get(ResultCache.key(asList("pwd"), new File("a"),
+               Collections.<String, String> emptyMap())));
+      assertNull(cache.get(ResultCache.key(asList("pwd"), new File("a"),
+               Collections.singletonMap("NAME", "value"))));
+   }
+
+   @Test
+   public void testResultsExpire() throws Exception {
+      final ResultCache cache = new ResultCache("test", 10, 20, 0);
+      final ResultCache.Key key = ResultCache.key(asList("date"), null, null);
+      cache.put(key, "now");
+      assertNotNull(cache.get(key));
+      Thread.sleep(40);
+      assertNull(cache.get(key));
+      assertEquals(0, cache.size());
+   }
+
+   @Test
+   public void testOnlyPermanentFailuresAreCached() throws Throwable {
+      final ResultCache.Key key = ResultCache.key(asList("false"), null, null);
+      final ResultCache notCaching = new ResultCache("test", 10, 0, 0);
+      notCaching.failed(key, new ExecutionException("failed"));
+      assertNull(notCaching.get(key));
+
+      final ResultCache cache = new ResultCache("test", 10, 0, 1000);
+      cache.failed(key, new TimeoutException());
+      assertNull(cache.get(key));
+      final ExecutionException failure = new ExecutionException("failed");
+      cache.failed(key, failure);
+      try {
+         cache.get(key).get();
+         fail("Failure not cached");
+      } catch (ExecutionException e) {
+         assertSame(failure, e);
+      }
+   }
+}
@@ -0,0 +1,65 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class SpillingResultBuilderTest {
+   private static final Charset ASCII = Charset.forName("US-ASCII");
+
+   @Test
+   public void testOutputKeptInMemory() throws IOException {
+      SpillingResultBuilder builder = new SpillingResultBuilder(16, null);
+      builder.process(ByteBuffer.wrap("Hello ".getBytes(ASCII)));
+      builder.process(ByteBuffer.wrap("World!".getBytes(ASCII)));
+
+      LargeOutput output = builder.build();
+      try {
+         assertFalse(output.isSpilled());
+         assertEquals(12, output.size());
+         assertEquals("Hello World!", read(output.openStream()));
+      } finally {
+         output.close();
+      }
+   }
+
+   @Test
+   public void testOutputSpilledToFile() throws IOException {
+      SpillingResultBuilder builder = new SpillingResultBuilder(8, null);
+      StringBuilder expected = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+         String chunk = "chunk " + i + ";";
+         expected.append(chunk);
+         builder.process(ByteBuffer.wrap(chunk.getBytes(ASCII)));
+      }
+
+      LargeOutput output = builder.build();
+      try {
+         assertTrue(output.isSpilled());
+         assertEquals(expected.length(), output.size());
+         assertEquals(1, output.segmentsCount());
+         assertEquals(expected.toString(), read(output.openStream()));
+         assertEquals(expected.toString(), ASCII.decode(output.segment(0)).toString());
+      } finally {
+         output.close();
+      }
+   }
+
+   private static String read(InputStream input) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[5];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+         bytes.write(buffer, 0, read);
+      }
+      return new String(bytes.toByteArray(), ASCII);
+   }
+}
@@ -0,0 +1,39 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class StringResultBuilderTest {
+
+   @Test
+   public void testCharactersSplitAcrossChunks() {
+      final Charset utf8 = Charset.forName("UTF-8");
+      final String expected = "caf\u00e9 \u20ac10 \ud83d\ude00";
+      StringResultBuilder builder = new StringResultBuilder(utf8);
+
+      // one byte at a time, so all the multi-byte characters are split
+      for (byte b : expected.getBytes(utf8)) {
+         builder.process(ByteBuffer.wrap(new byte[] { b }));
+      }
+
+      assertEquals(expected.length(), builder.length());
+      assertEquals(expected, builder.build());
+   }
+
+   @Test
+   public void testOnlyRemainingBytesAreProcessed() {
+      StringResultBuilder builder = new StringResultBuilder();
+      ByteBuffer buffer = ByteBuffer.allocate(16);
+      buffer.put("Hello".getBytes(Charset.forName("US-ASCII")));
+      buffer.flip();
+
+      builder.process(buffer);
+
+      assertEquals(5, builder.length());
+      assertEquals("Hello", builder.build());
+   }
+}
@@ -0,0 +1,142 @@
+package com.j2speed.exec.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.j2speed.exec.TimeoutException;
+
+public class TimerWheelTest {
+   private final TimerWheel wheel = new TimerWheel(1, 8, new NamedFactory("test-watchdog"));
+
+   @After
+   public void shutdown() {
+      wheel.shutdown();
+   }
+
+   @Test
+   public void testNoTimeoutIsNotScheduled() {
+      assertSame(Watchdog.NONE, wheel.schedule(new FakeProcess(), 0, null));
+      Watchdog.NONE.cancel();
+   }
+
+   @Test
+   public void testExpiredProcessIsKilled() throws Exception {
+      final FakeProcess process = new FakeProcess();
+      final long started = System.nanoTime();
+      // longer than a round of the wheel, so the bucket is visited before the deadline too
+      final Watchdog watchdog = wheel.schedule(process, 20, null);
+      assertTrue(process.destroyed.await(5, TimeUnit.SECONDS));
+      assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(20));
+      try {
+         watchdog.cancel();
+         fail("Timeout not reported");
+      } catch (TimeoutException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testCancelledProcessIsNotKilled() throws Exception {
+      final FakeProcess process = new FakeProcess();
+      final Watchdog cancelled = wheel.schedule(process, 20, null);
+      cancelled.cancel();
+      // a later timeout in the same bucket still fires
+      final FakeProcess other = new FakeProcess();
+      wheel.schedule(other, 20, null);
+      assertTrue(other.destroyed.await(5, TimeUnit.SECONDS));
+      assertFalse(process.destroyed.await(50, TimeUnit.MILLISECONDS));
+   }
+
+   @Test
+   public void testTimeoutTooLongIsNotScheduled() throws Exception {
+      final FakeProcess process = new FakeProcess();
+      final Watchdog watchdog = wheel.schedule(process, Long.MAX_VALUE, null);
+      assertSame(Watchdog.NONE, watchdog);
+      assertFalse(process.destroyed.await(50, TimeUnit.MILLISECONDS));
+      watchdog.cancel();
+   }
+
+   @Test
+   public void testLongestTimeoutDoesNotFire() throws Exception {
+      final FakeProcess process = new FakeProcess();
+      // a deadline far in the future, but still representable
+      final Watchdog watchdog = wheel.schedule(process, Long.MAX_VALUE / 1000000 / 2, null);
+      assertFalse(process.destroyed.await(50, TimeUnit.MILLISECONDS));
+      watchdog.cancel();
+   }
+
+   @Test
+   public void testShutdownStopsTheThread() throws Exception {
+      final Thread[] threads = new Thread[1];
+      final TimerWheel stopped = new TimerWheel(1, 8, new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            threads[0] = new Thread(r, "stopped-watchdog");
+            threads[0].setDaemon(true);
+            return threads[0];
+         }
+      });
+      stopped.schedule(new FakeProcess(), 10000, null);
+      stopped.shutdown();
+      threads[0].join(5000);
+      assertFalse(threads[0].isAlive());
+      try {
+         stopped.schedule(new FakeProcess(), 10, null);
+         fail("Scheduled on a stopped wheel");
+      } catch (IllegalStateException e) {
+         assertEquals("Timer wheel shut down", e.getMessage());
+      }
+   }
+
+   private static final class FakeProcess extends Process {
+      final CountDownLatch destroyed = new CountDownLatch(1);
+
+      @Override
+      public OutputStream getOutputStream() {
+         return new ByteArrayOutputStream();
+      }
+
+      @Override
+      public InputStream getInputStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public InputStream getErrorStream() {
+         return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public int waitFor() throws InterruptedException {
+         destroyed.await();
+         return 1;
+      }
+
+      @Override
+      public int exitValue() {
+         if (destroyed.getCount() > 0) {
+            throw new IllegalThreadStateException();
+         }
+         return 1;
+      }
+
+      @Override
+      public void destroy() {
+         destroyed.countDown();
+      }
+   }
+}
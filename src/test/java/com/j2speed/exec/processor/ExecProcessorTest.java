@@ -0,0 +1,28 @@
+package com.j2speed.exec.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ExecProcessorTest {
+
+   @Test
+   public void testValidCommands() {
+      assertNull(ExecProcessor.check("cmd", 0));
+      assertNull(ExecProcessor.check("cmd -s {?} -d \"a \\\"quoted\\\" string\" -g {?}", 2));
+      assertNull(ExecProcessor.check("cmd {?} | sort | uniq", 1));
+      assertNull(ExecProcessor.check("cmd \"a | b\"", 0));
+   }
+
+   @Test
+   public void testInvalidCommands() {
+      assertEquals("Empty command", ExecProcessor.check("  ", 0));
+      assertEquals("Syntax error at 6 in \"cmd {x}\"", ExecProcessor.check("cmd {x}", 1));
+      assertEquals("Empty pipeline stage in \"cmd | | sort\"", ExecProcessor.check(
+               "cmd | | sort", 0));
+      assertEquals("Empty pipeline stage in \"cmd |\"", ExecProcessor.check("cmd |", 0));
+      assertEquals("Not enough parameters in the method for \"cmd {?} {?}\"", ExecProcessor
+               .check("cmd {?} {?}", 1));
+   }
+}